@@ -0,0 +1,203 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/* A selector thread shared by a number of AsyncSession objects.
+**
+** Sessions are spread across a small, fixed set of loops. All channel
+** operations for a session happen on its loop's thread, so other threads
+** hand work to the loop using execute().
+*/
+class AsyncLoop implements Runnable
+{
+	/* Static Properties */
+	public static synchronized int
+	getThreads()
+	{
+		return _threads;
+	}
+
+	public static synchronized void
+	setThreads(int threads)
+	{
+		if (threads < 1)
+			threads = 1;
+		_threads = threads;
+	}
+
+	/* Returns the loop the next session should use, starting new loop
+	** threads as needed.
+	*/
+	public static synchronized AsyncLoop
+	next() throws IOException
+	{
+		if (_loops.size() < _threads)
+		{
+			AsyncLoop loop = new AsyncLoop(_loops.size());
+			_loops.add(loop);
+			return loop;
+		}
+		_next = (_next + 1) % _loops.size();
+		return _loops.get(_next);
+	}
+
+	/* Returns the threads shared by all sessions for work which may block and
+	** so must not be done by a loop, such as looking up host names and
+	** decoding responses. Threads are started as they are needed.
+	*/
+	public static synchronized Executor
+	getWorkers()
+	{
+		if (_workers == null)
+		{
+			_workers = Executors.newCachedThreadPool(task ->
+			{
+				Thread thread = new Thread(task, "imu-async-worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return _workers;
+	}
+
+	/* Constructor */
+	private
+	AsyncLoop(int index) throws IOException
+	{
+		_selector = Selector.open();
+		_tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		Thread thread = new Thread(this, "imu-async-" + index);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* Properties */
+	public Selector
+	getSelector()
+	{
+		return _selector;
+	}
+
+	/* Methods */
+	public void
+	execute(Runnable task)
+	{
+		_tasks.add(task);
+		_selector.wakeup();
+	}
+
+	@Override
+	public void
+	run()
+	{
+		while (true)
+		{
+			try
+			{
+				_selector.select();
+			}
+			catch (IOException e)
+			{
+				Trace.write(1, "async loop select failed: %s", e.getMessage());
+				continue;
+			}
+
+			Runnable task;
+			while ((task = _tasks.poll()) != null)
+			{
+				try
+				{
+					task.run();
+				}
+				catch (RuntimeException e)
+				{
+					Trace.write(1, "async loop task failed: %s", e.toString());
+				}
+			}
+
+			Iterator<SelectionKey> iter = _selector.selectedKeys().iterator();
+			while (iter.hasNext())
+			{
+				SelectionKey key = iter.next();
+				iter.remove();
+
+				AsyncSession session = (AsyncSession) key.attachment();
+				try
+				{
+					session.ready(key);
+				}
+				catch (CancelledKeyException e)
+				{
+					// session has been disconnected
+				}
+				catch (RuntimeException e)
+				{
+					Trace.write(1, "async loop session failed: %s", e.toString());
+				}
+			}
+		}
+	}
+
+	private static int _threads = 2;
+	private static ArrayList<AsyncLoop> _loops = new ArrayList<AsyncLoop>();
+	private static int _next = 0;
+	private static Executor _workers = null;
+
+	private final Selector _selector;
+	private final ConcurrentLinkedQueue<Runnable> _tasks;
+}
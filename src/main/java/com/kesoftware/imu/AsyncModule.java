@@ -0,0 +1,253 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.concurrent.CompletableFuture;
+
+/*!
+** Provides non-blocking access to an EMu module over an `AsyncSession`
+** [$<link>(:asyncsession:asyncsession)].
+**
+** The methods mirror the corresponding `Module` [$<link>(:module:module)]
+** methods but return a `CompletableFuture` instead of waiting for the
+** server's response.
+**
+** @extends com.kesoftware.imu.AsyncHandler
+**
+** @usage
+**   com.kesoftware.imu.AsyncModule
+** @end
+**
+** @since 2.8
+*/
+public class AsyncModule extends AsyncHandler
+{
+	/* Constructor */
+	/*!
+	** Creates an object which can be used to access the EMu module specified
+	** by ``table``.
+	**
+	** @param table
+	**   Name of the EMu module to be accessed.
+	**
+	** @param session
+	**   An `AsyncSession` object [$<link>(:asyncsession:asyncsession)] to be
+	**   used to communicate with the IMu server.
+	*/
+	public
+	AsyncModule(String table, AsyncSession session)
+	{
+		super(session);
+		_name = "Module";
+		_create = table;
+
+		_table = table;
+	}
+
+	/* Properties */
+	/*!
+	** @property table
+	**   The name of the table associated with the `AsyncModule` object.
+	*/
+	public String
+	getTable()
+	{
+		return _table;
+	}
+
+	/* Methods */
+	/*!
+	** Fetches ``count`` records from the position described by a combination
+	** of ``flag`` and ``offset``.
+	** See **fetch( )** [$<link>(:module:fetch)] in `Module`.
+	**
+	** @returns
+	**   A `CompletableFuture` which yields a `ModuleFetchResult` object.
+	*/
+	public CompletableFuture<ModuleFetchResult>
+	fetch(String flag, long offset, int count, String columns)
+	{
+		return doFetch(flag, offset, count, columns);
+	}
+
+	public CompletableFuture<ModuleFetchResult>
+	fetch(String flag, long offset, int count, String[] columns)
+	{
+		return doFetch(flag, offset, count, columns);
+	}
+
+	public CompletableFuture<ModuleFetchResult>
+	fetch(String flag, long offset, int count)
+	{
+		return doFetch(flag, offset, count, null);
+	}
+
+	public CompletableFuture<ModuleFetchResult>
+	fetch(ModuleFetchPosition pos, int count, String columns)
+	{
+		return doFetch(pos._flag, pos._offset, count, columns);
+	}
+
+	public CompletableFuture<ModuleFetchResult>
+	fetch(ModuleFetchPosition pos, int count, String[] columns)
+	{
+		return doFetch(pos._flag, pos._offset, count, columns);
+	}
+
+	public CompletableFuture<ModuleFetchResult>
+	fetch(ModuleFetchPosition pos, int count)
+	{
+		return doFetch(pos._flag, pos._offset, count, null);
+	}
+
+	/*!
+	** Searches for a record with the key value ``key``.
+	**
+	** @returns
+	**   A `CompletableFuture` which yields the number of records found.
+	*/
+	public CompletableFuture<Long>
+	findKey(long key)
+	{
+		return call("findKey", key).thenApply(result -> (Long) result);
+	}
+
+	/*!
+	** Searches for records which match the search terms specified in
+	** ``terms``.
+	**
+	** @returns
+	**   A `CompletableFuture` which yields an estimate of the number of
+	**   records found.
+	*/
+	public CompletableFuture<Long>
+	findTerms(Terms terms)
+	{
+		return call("findTerms", terms.toArray()).thenApply(result -> (Long) result);
+	}
+
+	/*!
+	** Searches for records which match the TexQL ``WHERE`` clause.
+	**
+	** @returns
+	**   A `CompletableFuture` which yields an estimate of the number of
+	**   records found.
+	*/
+	public CompletableFuture<Long>
+	findWhere(String where)
+	{
+		return call("findWhere", where).thenApply(result -> (Long) result);
+	}
+
+	/*!
+	** Sorts the current result set by the sort keys in ``keys``.
+	** See **sort( )** [$<link>(:module:sort)] in `Module`.
+	**
+	** @returns
+	**   A `CompletableFuture` which yields a `ModuleSortResult` object, or
+	**   ``null`` if the ``report`` flag was not specified.
+	*/
+	public CompletableFuture<ModuleSortResult>
+	sort(String keys, String flags)
+	{
+		return doSort(keys, flags);
+	}
+
+	public CompletableFuture<ModuleSortResult>
+	sort(String keys, String[] flags)
+	{
+		return doSort(keys, flags);
+	}
+
+	public CompletableFuture<ModuleSortResult>
+	sort(String[] keys, String flags)
+	{
+		return doSort(keys, flags);
+	}
+
+	public CompletableFuture<ModuleSortResult>
+	sort(String[] keys, String[] flags)
+	{
+		return doSort(keys, flags);
+	}
+
+	public CompletableFuture<ModuleSortResult>
+	sort(String keys)
+	{
+		return doSort(keys, null);
+	}
+
+	public CompletableFuture<ModuleSortResult>
+	sort(String[] keys)
+	{
+		return doSort(keys, null);
+	}
+
+	protected String _table;
+
+	protected CompletableFuture<ModuleFetchResult>
+	doFetch(String flag, long offset, int count, Object columns)
+	{
+		Map args = new Map();
+		args.put("flag", flag);
+		args.put("offset", offset);
+		args.put("count", count);
+		if (columns != null)
+			args.put("columns", columns);
+		return call("fetch", args).thenApply(Module::newFetchResult);
+	}
+
+	protected CompletableFuture<ModuleSortResult>
+	doSort(Object columns, Object flags)
+	{
+		Map args = new Map();
+		args.put("columns", columns);
+		if (flags != null)
+			args.put("flags", flags);
+		return call("sort", args).thenApply(Module::newSortResult);
+	}
+}
@@ -0,0 +1,1380 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/*!
+** Manages a non-blocking connection to an IMu server.
+**
+** An `AsyncSession` provides the same low-level request mechanism as a
+** `Session` [$<link>(:session:session)] but never blocks the calling thread.
+** Each request is encoded and queued immediately and a `CompletableFuture`
+** is returned which completes when the server's response has been read.
+** Requests on the same session are sent and answered in order.
+**
+** All connections are driven by a small number of shared I/O threads (see
+** **defaultThreads** [$<link>(:asyncsession:defaultThreads)]) so a handful
+** of threads can service many concurrent sessions. The I/O threads only
+** move bytes. Looking up the host, decoding responses and completing
+** futures are done by a separate pool of worker threads, which is grown as
+** needed, so a slow decode or a dependent action which blocks delays only
+** its own session.
+**
+** Responses are held until they have been completely received. Binary
+** values larger than 64KB are written to temporary files as they arrive;
+** the rest of each response is held in memory. Responses are decoded using
+** the `Session` **defaultParser** [$<link>(:session:defaultParser)] in
+** effect when the `AsyncSession` is created.
+**
+** @usage
+**   com.kesoftware.imu.AsyncSession
+** @end
+**
+** @since 2.8
+*/
+public class AsyncSession
+{
+	/* Static Properties */
+	/*!
+	** @property defaultThreads
+	**
+	** The number of I/O threads shared by all `AsyncSession` objects.
+	** Changing this value only has an effect before the first sessions are
+	** connected.
+	*/
+	public static int
+	getDefaultThreads()
+	{
+		return AsyncLoop.getThreads();
+	}
+
+	public static void
+	setDefaultThreads(int threads)
+	{
+		AsyncLoop.setThreads(threads);
+	}
+
+	/* Constructors */
+	/*!
+	** Creates an `AsyncSession` object with the specified ``host`` and
+	** ``port``.
+	**
+	** @param host
+	**   The host to connect to.
+	**
+	** @param port
+	**   The port on the host to connect on.
+	*/
+	public
+	AsyncSession(String host, int port)
+	{
+		_host = host;
+		_port = port;
+
+		_pending = new ArrayDeque<CompletableFuture<Map>>();
+		_writes = new ArrayDeque<ByteBuffer>();
+
+		_encoded = new ByteArrayOutputStream();
+		_encoder = new Stream(InputStream.nullInputStream(), _encoded, StreamParser.CHAR);
+		_encoder.setCompact(Session.getDefaultCompact());
+		_read = ByteBuffer.allocate(65536);
+		_inbox = new ArrayDeque<Chunk>();
+
+		_frameInput = new FrameInput();
+		_decoder = new Stream(_frameInput, OutputStream.nullOutputStream(), Session.getDefaultParser());
+		_parts = new ArrayList<Part>();
+		_frame = new byte[65536];
+	}
+
+	/*!
+	** Creates an `AsyncSession` object with the specified ``host``.
+	**
+	** The port to connect on will be taken from the `Session`
+	** **defaultPort** [$<link>(:session:defaultPort)] class property.
+	**
+	** @param host
+	**   The host to connect to.
+	*/
+	public
+	AsyncSession(String host)
+	{
+		this(host, Session.getDefaultPort());
+	}
+
+	/*!
+	** Creates an `AsyncSession` object with the specified ``port``.
+	**
+	** The host to connect to will be taken from the `Session`
+	** **defaultHost** [$<link>(:session:defaultHost)] class property.
+	**
+	** @param port
+	**   The port on the host to connect on.
+	*/
+	public
+	AsyncSession(int port)
+	{
+		this(Session.getDefaultHost(), port);
+	}
+
+	/*!
+	** Creates an `AsyncSession` object.
+	**
+	** The host and port to connect to will be taken from the `Session`
+	** **defaultHost** [$<link>(:session:defaultHost)] and **defaultPort**
+	** [$<link>(:session:defaultPort)] class properties.
+	*/
+	public
+	AsyncSession()
+	{
+		this(Session.getDefaultHost(), Session.getDefaultPort());
+	}
+
+	/* Properties */
+	/*!
+	** @property close
+	**
+	** A flag controlling whether the connection to the server should be
+	** closed after the next response.
+	** This flag is passed to the server as part of each request to allow it
+	** to clean up.
+	*/
+	public synchronized boolean
+	getClose()
+	{
+		if (_close == null)
+			return false;
+		return _close.booleanValue();
+	}
+
+	public synchronized void
+	setClose(boolean close)
+	{
+		_close = Boolean.valueOf(close);
+	}
+
+	/*!
+	** @property compact
+	**
+	** A flag controlling whether requests are sent in compact form.
+	** See the `Session` **compact** [$<link>(:session:compact)] property.
+	** The initial value is taken from the `Session` **defaultCompact**
+	** [$<link>(:session:defaultCompact)] class property.
+	*/
+	public synchronized boolean
+	getCompact()
+	{
+		return _encoder.isCompact();
+	}
+
+	public synchronized void
+	setCompact(boolean compact)
+	{
+		_encoder.setCompact(compact);
+	}
+
+	/*!
+	** @property context
+	**
+	** The unique identifier assigned by the server to the current session.
+	*/
+	public synchronized String
+	getContext()
+	{
+		return _context;
+	}
+
+	public synchronized void
+	setContext(String context)
+	{
+		_context = context;
+	}
+
+	/*!
+	** @property fileBytes
+	**
+	** The total number of bytes of binary data received which were saved to
+	** temporary files.
+	*/
+	public long
+	getFileBytes()
+	{
+		return _decoder.getFileBytes();
+	}
+
+	/*!
+	** @property host
+	**
+	** The name of the host to connect to.
+	** Setting this property after the connection has been established has no
+	** effect.
+	*/
+	public synchronized String
+	getHost()
+	{
+		return _host;
+	}
+
+	public synchronized void
+	setHost(String host)
+	{
+		_host = host;
+	}
+
+	/*!
+	** @property memoryBytes
+	**
+	** The total number of bytes of binary data received which were kept in
+	** memory.
+	*/
+	public long
+	getMemoryBytes()
+	{
+		return _decoder.getMemoryBytes();
+	}
+
+	/*!
+	** @property memoryThreshold
+	**
+	** The size, in bytes, of the largest binary value which is kept in
+	** memory rather than being saved to a temporary file.
+	** See the `Session` **memoryThreshold**
+	** [$<link>(:session:memoryThreshold)] property.
+	*/
+	public synchronized int
+	getMemoryThreshold()
+	{
+		return _decoder.getMemoryThreshold();
+	}
+
+	public synchronized void
+	setMemoryThreshold(int threshold)
+	{
+		_decoder.setMemoryThreshold(threshold);
+	}
+
+	/*!
+	** @property port
+	**
+	** The number of the port on the host to connect to.
+	** Setting this property after the connection has been established has no
+	** effect.
+	*/
+	public synchronized int
+	getPort()
+	{
+		return _port;
+	}
+
+	public synchronized void
+	setPort(int port)
+	{
+		_port = port;
+	}
+
+	/*!
+	** @property requestSize
+	**
+	** The number of bytes queued to be sent to the server for the most
+	** recent request.
+	*/
+	public synchronized long
+	getRequestSize()
+	{
+		return _encoder.getRequestSize();
+	}
+
+	/*!
+	** @property suspend
+	**
+	** A flag controlling whether the server process handling this session
+	** should begin listening on a distinct, process-specific port.
+	** See the `Session` **suspend** [$<link>(:session:suspend)] property.
+	*/
+	public synchronized boolean
+	getSuspend()
+	{
+		if (_suspend == null)
+			return false;
+		return _suspend.booleanValue();
+	}
+
+	public synchronized void
+	setSuspend(boolean suspend)
+	{
+		_suspend = Boolean.valueOf(suspend);
+	}
+
+	/*!
+	** @property pending
+	**
+	** The number of requests which have been queued but whose responses
+	** have not yet been received.
+	*/
+	public synchronized int
+	getPending()
+	{
+		return _pending.size();
+	}
+
+	/* Methods */
+	/*!
+	** Starts opening a connection to an IMu server.
+	**
+	** It is not necessary to call this method before making requests as
+	** the connection is opened automatically.
+	**
+	** @returns
+	**   A `CompletableFuture` which completes once the connection has been
+	**   established or completes exceptionally with an `IMuException` if the
+	**   connection could not be opened.
+	*/
+	public synchronized CompletableFuture<Void>
+	connect()
+	{
+		if (_channel != null)
+			return _connected;
+
+		_connected = new CompletableFuture<Void>();
+		Trace.write(2, "connecting asynchronously to %s:%d", _host, _port);
+		try
+		{
+			_channel = SocketChannel.open();
+			_channel.configureBlocking(false);
+			_loop = AsyncLoop.next();
+			final SocketChannel channel = _channel;
+			final AsyncLoop loop = _loop;
+			final String host = _host;
+			final int port = _port;
+			AsyncLoop.getWorkers().execute(() -> resolve(channel, loop, host, port));
+		}
+		catch (IOException e)
+		{
+			failConnect(e);
+		}
+		return _connected;
+	}
+
+	/*!
+	** Closes the connection to the IMu server.
+	**
+	** Any requests still waiting for a response complete exceptionally.
+	*/
+	public void
+	disconnect()
+	{
+		close(new IMuException("SessionDisconnected"));
+	}
+
+	/*!
+	** Logs in as the given user with the given password.
+	**
+	** See the `Session` **login( )** [$<link>(:session:login)] method.
+	**
+	** @param login
+	**   The name of the user to login as.
+	**
+	** @param password
+	**   The user's password for authentication.
+	**
+	** @param spawn
+	**   A flag indicating whether the process should create a new child
+	**   process specifically for handling the newly logged in user's requests.
+	**
+	** @returns
+	**   A `CompletableFuture` which yields the server's response.
+	*/
+	public CompletableFuture<Map>
+	login(String login, String password, boolean spawn)
+	{
+		Map request = new Map();
+		request.put("login", login);
+		request.put("password", password);
+		request.put("spawn", spawn);
+		return request(request);
+	}
+
+	/*!
+	** Logs in as the given user with the given password, spawning a new
+	** server process for the user.
+	**
+	** @param login
+	**   The name of the user to login as.
+	**
+	** @param password
+	**   The user's password for authentication.
+	**
+	** @returns
+	**   A `CompletableFuture` which yields the server's response.
+	*/
+	public CompletableFuture<Map>
+	login(String login, String password)
+	{
+		return login(login, password, true);
+	}
+
+	/*!
+	** Logs the user out of the server.
+	**
+	** @returns
+	**   A `CompletableFuture` which yields the server's response.
+	*/
+	public CompletableFuture<Map>
+	logout()
+	{
+		Map request = new Map();
+		request.put("logout", true);
+		return request(request);
+	}
+
+	/*!
+	** Submits a low-level request to the IMu server.
+	**
+	** The request is encoded on the calling thread and queued for sending.
+	** The connection is opened if necessary.
+	**
+	** @param request
+	**   A `Map` object [$<link>(:map:map)] containing the request parameters.
+	**
+	** @returns
+	**   A `CompletableFuture` which yields the `Map` object
+	**   [$<link>(:map:map)] containing the server's response, or completes
+	**   exceptionally with an `IMuException` if a server-side or
+	**   communication error occurred.
+	*/
+	public CompletableFuture<Map>
+	request(Map request)
+	{
+		CompletableFuture<Map> future = new CompletableFuture<Map>();
+		AsyncLoop loop;
+		synchronized (this)
+		{
+			connect();
+			if (_channel == null)
+			{
+				future.completeExceptionally(failure(_connected));
+				return future;
+			}
+
+			if (_close != null)
+				request.put("close", _close);
+			if (_context != null)
+				request.put("context", _context);
+			if (_suspend != null)
+				request.put("suspend", _suspend);
+
+			byte[] data;
+			try
+			{
+				_encoded.reset();
+				_encoder.put(request);
+				data = _encoded.toByteArray();
+			}
+			catch (IMuException e)
+			{
+				future.completeExceptionally(e);
+				return future;
+			}
+			_writes.addLast(ByteBuffer.wrap(data));
+			_pending.addLast(future);
+			loop = _loop;
+		}
+		loop.execute(this::wantWrite);
+		return future;
+	}
+
+	/* Called by the loop thread when the channel is ready */
+	void
+	ready(SelectionKey key)
+	{
+		try
+		{
+			if (key.isConnectable())
+				finishConnect(key);
+			if (key.isValid() && key.isWritable())
+				write(key);
+			if (key.isValid() && key.isReadable())
+				read(key);
+		}
+		catch (IOException e)
+		{
+			Trace.write(2, "async connection failed: %s", e.getMessage());
+			if (key.isValid())
+				key.interestOps(0);
+			// Responses already read are still delivered first
+			enqueue(new Chunk(generation(), null, new IMuException("SessionIO", e)));
+		}
+	}
+
+	/* Frame scanner states */
+	private static final int TOP = 0;
+	private static final int VALUE = 1;
+	private static final int STRING = 2;
+	private static final int ESCAPE = 3;
+	private static final int SIZE = 4;
+	private static final int LINE = 5;
+	private static final int BINARY = 6;
+
+	/* Binary values larger than this are written to a temporary file as they
+	** are received rather than being kept in the frame
+	*/
+	private static final int SPOOL_SIZE = 65536;
+
+	/* Reading stops while this many bytes are waiting to be scanned */
+	private static final int MAX_WAITING = 1048576;
+
+	/* The largest frame, not counting spooled binaries, which fits in an array */
+	private static final int MAX_FRAME = Integer.MAX_VALUE - 8;
+
+	private Boolean _close;
+	private String _context;
+	private String _host;
+	private int _port;
+	private Boolean _suspend;
+
+	private AsyncLoop _loop;
+	private SocketChannel _channel;
+	private SelectionKey _key;
+	private CompletableFuture<Void> _connected;
+	private int _generation;
+
+	private final ArrayDeque<CompletableFuture<Map>> _pending;
+	private final ArrayDeque<ByteBuffer> _writes;
+	private final ByteArrayOutputStream _encoded;
+	private final Stream _encoder;
+
+	/* Only used by the loop thread */
+	private final ByteBuffer _read;
+
+	/* Bytes passed from the loop thread to the worker, locked by _inbox */
+	private final ArrayDeque<Chunk> _inbox;
+	private long _waiting;
+	private boolean _draining;
+	private boolean _paused;
+
+	/* Only used by the worker draining the inbox */
+	private final FrameInput _frameInput;
+	private final Stream _decoder;
+	private final ArrayList<Part> _parts;
+	private byte[] _frame;
+	private int _length;
+	private int _state;
+	private int _depth;
+	private long _remaining;
+	private TempFile _spool;
+	private FileOutputStream _spoolOutput;
+	private int _scanGeneration;
+
+	private synchronized int
+	generation()
+	{
+		return _generation;
+	}
+
+	/* Looks up the host, which may block, before handing the connection to
+	** its loop
+	*/
+	private void
+	resolve(SocketChannel channel, AsyncLoop loop, String host, int port)
+	{
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		if (address.isUnresolved())
+		{
+			synchronized (this)
+			{
+				if (_channel != channel)
+					return;
+			}
+			failConnect(new UnknownHostException(host));
+			return;
+		}
+		loop.execute(() -> register(channel, address));
+	}
+
+	private void
+	register(SocketChannel channel, InetSocketAddress address)
+	{
+		try
+		{
+			boolean done = channel.connect(address);
+			SelectionKey key = channel.register(_loop.getSelector(),
+				done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+			synchronized (this)
+			{
+				if (_channel != channel)
+				{
+					key.cancel();
+					return;
+				}
+				_key = key;
+			}
+			if (done)
+				connected(key);
+		}
+		catch (IOException e)
+		{
+			failConnect(e);
+		}
+	}
+
+	private void
+	finishConnect(SelectionKey key) throws IOException
+	{
+		try
+		{
+			if (! ((SocketChannel) key.channel()).finishConnect())
+				return;
+		}
+		catch (IOException e)
+		{
+			failConnect(e);
+			return;
+		}
+		connected(key);
+	}
+
+	private void
+	connected(SelectionKey key)
+	{
+		Trace.write(2, "connected ok");
+		synchronized (this)
+		{
+			int ops = SelectionKey.OP_READ;
+			if (! _writes.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+		_connected.complete(null);
+	}
+
+	private void
+	failConnect(IOException e)
+	{
+		String mesg = e.getMessage();
+		Trace.write(2, "connection failed: %s", mesg);
+		IMuException x = new IMuException("SessionConnect", _host, _port, mesg);
+		_connected.completeExceptionally(x);
+		close(x);
+	}
+
+	private static Throwable
+	failure(CompletableFuture<?> future)
+	{
+		try
+		{
+			future.getNow(null);
+		}
+		catch (Exception e)
+		{
+			if (e.getCause() != null)
+				return e.getCause();
+			return e;
+		}
+		return new IMuException("SessionDisconnected");
+	}
+
+	private void
+	close(IMuException error)
+	{
+		ArrayDeque<CompletableFuture<Map>> pending;
+		synchronized (this)
+		{
+			if (_channel == null)
+				return;
+			Trace.write(2, "closing connection");
+			try
+			{
+				_channel.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+			if (_key != null)
+				_key.cancel();
+			_channel = null;
+			_key = null;
+			// Anything still waiting to be scanned is discarded
+			_generation++;
+			_writes.clear();
+			pending = new ArrayDeque<CompletableFuture<Map>>(_pending);
+			_pending.clear();
+		}
+		for (CompletableFuture<Map> future : pending)
+			future.completeExceptionally(error);
+	}
+
+	private void
+	wantWrite()
+	{
+		synchronized (this)
+		{
+			if (_key == null || ! _key.isValid() || ! _channel.isConnected())
+				return;
+			if (! _writes.isEmpty())
+				_key.interestOps(_key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private synchronized void
+	write(SelectionKey key) throws IOException
+	{
+		if (_channel == null)
+			return;
+		while (! _writes.isEmpty())
+		{
+			ByteBuffer buffer = _writes.peekFirst();
+			_channel.write(buffer);
+			if (buffer.hasRemaining())
+				return;
+			_writes.removeFirst();
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/* Reads whatever is available and passes it to the worker. Reading is
+	** paused while the worker has too much waiting.
+	*/
+	private void
+	read(SelectionKey key) throws IOException
+	{
+		while (true)
+		{
+			SocketChannel channel;
+			int generation;
+			synchronized (this)
+			{
+				channel = _channel;
+				generation = _generation;
+			}
+			if (channel == null)
+				return;
+			_read.clear();
+			int done = channel.read(_read);
+			if (done < 0)
+			{
+				Trace.write(2, "connection closed by server");
+				key.interestOps(0);
+				enqueue(new Chunk(generation, null, new IMuException("StreamEOF", "response")));
+				return;
+			}
+			if (done == 0)
+				return;
+			byte[] data = Arrays.copyOf(_read.array(), done);
+			if (! enqueue(new Chunk(generation, data, null)))
+			{
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				return;
+			}
+		}
+	}
+
+	/* Called by the worker once it has caught up */
+	private void
+	resumeRead()
+	{
+		synchronized (this)
+		{
+			if (_key == null || ! _key.isValid())
+				return;
+			_key.interestOps(_key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	/* Queues a chunk for the worker, starting it if it is not running.
+	** Returns false if reading should pause.
+	*/
+	private boolean
+	enqueue(Chunk chunk)
+	{
+		boolean start;
+		boolean more;
+		synchronized (_inbox)
+		{
+			_inbox.addLast(chunk);
+			if (chunk.data != null)
+				_waiting += chunk.data.length;
+			start = ! _draining;
+			_draining = true;
+			more = _waiting < MAX_WAITING;
+			if (! more)
+				_paused = true;
+		}
+		if (start)
+			AsyncLoop.getWorkers().execute(this::drain);
+		return more;
+	}
+
+	/* Runs on a worker thread, scanning and decoding the chunks read from
+	** the connection in order. Only one worker drains a session at a time.
+	*/
+	private void
+	drain()
+	{
+		while (true)
+		{
+			Chunk chunk;
+			synchronized (_inbox)
+			{
+				chunk = _inbox.pollFirst();
+				if (chunk == null)
+				{
+					_draining = false;
+					return;
+				}
+			}
+			try
+			{
+				process(chunk);
+			}
+			catch (RuntimeException e)
+			{
+				Trace.write(1, "async response failed: %s", e.toString());
+				close(new IMuException("StreamGet", e));
+			}
+
+			boolean resume = false;
+			synchronized (_inbox)
+			{
+				if (chunk.data != null)
+					_waiting -= chunk.data.length;
+				if (_paused && _waiting <= MAX_WAITING / 2)
+				{
+					_paused = false;
+					resume = true;
+				}
+			}
+			if (resume)
+			{
+				AsyncLoop loop;
+				synchronized (this)
+				{
+					loop = _loop;
+				}
+				loop.execute(this::resumeRead);
+			}
+		}
+	}
+
+	private void
+	process(Chunk chunk)
+	{
+		if (chunk.generation != _scanGeneration)
+		{
+			// The first bytes of a new connection
+			discardFrame();
+			_scanGeneration = chunk.generation;
+		}
+		if (chunk.generation != generation())
+			return;
+		if (chunk.error != null)
+		{
+			discardFrame();
+			close(chunk.error);
+		}
+		else
+			scan(chunk.data, 0, chunk.data.length);
+	}
+
+	/* Finds the end of each response without decoding it. Bytes are copied
+	** into the frame buffer, apart from large binary values which are
+	** written to temporary files, until the closing bracket of the
+	** top-level value has been seen.
+	*/
+	private void
+	scan(byte[] data, int offset, int length)
+	{
+		int end = offset + length;
+		int start = offset;
+		int i = offset;
+		while (i < end)
+		{
+			int c = data[i] & 0xFF;
+			switch (_state)
+			{
+			case TOP:
+				if (c == '{' || c == '[')
+				{
+					_state = VALUE;
+					_depth = 1;
+					start = i;
+				}
+				else if (! Character.isWhitespace(c))
+				{
+					close(new IMuException("StreamSyntaxToken", Character.toString(c)));
+					return;
+				}
+				else
+					start = i + 1;
+				i++;
+				break;
+
+			case VALUE:
+				if (c == '"')
+					_state = STRING;
+				else if (c == '{' || c == '[')
+					_depth++;
+				else if (c == '}' || c == ']')
+				{
+					_depth--;
+					if (_depth == 0)
+					{
+						if (! append(data, start, i + 1 - start))
+							return;
+						_state = TOP;
+						start = i + 1;
+						if (! deliver())
+							return;
+					}
+				}
+				else if (c == '*')
+				{
+					_state = SIZE;
+					_remaining = 0;
+				}
+				i++;
+				break;
+
+			case STRING:
+				if (c == '\\')
+					_state = ESCAPE;
+				else if (c == '"')
+					_state = VALUE;
+				i++;
+				break;
+
+			case ESCAPE:
+				_state = STRING;
+				i++;
+				break;
+
+			case SIZE:
+			case LINE:
+				if (_state == SIZE && c >= '0' && c <= '9')
+					_remaining = _remaining * 10 + (c - '0');
+				else if (c == '\n')
+				{
+					_state = _remaining > 0 ? BINARY : VALUE;
+					if (_remaining > SPOOL_SIZE)
+					{
+						if (! append(data, start, i + 1 - start) || ! startSpool())
+							return;
+						start = i + 1;
+					}
+				}
+				else
+					_state = LINE;
+				i++;
+				break;
+
+			case BINARY:
+				int skip = (int) Math.min(_remaining, (long) (end - i));
+				if (_spool != null)
+				{
+					if (! spool(data, i, skip))
+						return;
+					start = i + skip;
+				}
+				i += skip;
+				_remaining -= skip;
+				if (_remaining == 0)
+				{
+					_state = VALUE;
+					if (_spool != null && ! endSpool())
+						return;
+				}
+				break;
+			}
+		}
+		if (_state != TOP)
+			append(data, start, end - start);
+	}
+
+	/* Returns false if the connection was closed because the frame is too
+	** large to hold
+	*/
+	private boolean
+	append(byte[] data, int offset, int length)
+	{
+		long need = (long) _length + length + 1;
+		if (need > MAX_FRAME)
+		{
+			discardFrame();
+			close(new IMuException("SessionResponseSize", MAX_FRAME));
+			return false;
+		}
+		if (need > _frame.length)
+		{
+			long size = Math.max((long) _frame.length * 2, need);
+			_frame = Arrays.copyOf(_frame, (int) Math.min(size, MAX_FRAME));
+		}
+		System.arraycopy(data, offset, _frame, _length, length);
+		_length += length;
+		return true;
+	}
+
+	/* Methods for writing a binary value to a temporary file. Each returns
+	** false if the connection was closed because the file could not be
+	** written.
+	*/
+	private boolean
+	startSpool()
+	{
+		try
+		{
+			_spool = new TempFile();
+			_spoolOutput = _spool.getOutputStream();
+			return true;
+		}
+		catch (IOException e)
+		{
+			return failSpool(e);
+		}
+	}
+
+	private boolean
+	spool(byte[] data, int offset, int length)
+	{
+		try
+		{
+			_spoolOutput.write(data, offset, length);
+			return true;
+		}
+		catch (IOException e)
+		{
+			return failSpool(e);
+		}
+	}
+
+	private boolean
+	endSpool()
+	{
+		try
+		{
+			_spoolOutput.close();
+		}
+		catch (IOException e)
+		{
+			return failSpool(e);
+		}
+		_parts.add(new Part(_length, _spool));
+		_spool = null;
+		_spoolOutput = null;
+		return true;
+	}
+
+	private boolean
+	failSpool(IOException e)
+	{
+		Trace.write(2, "could not save binary value: %s", e.getMessage());
+		discardFrame();
+		close(new IMuException("StreamGet", e));
+		return false;
+	}
+
+	/* Throws away a partly received frame and any temporary files it has */
+	private void
+	discardFrame()
+	{
+		_state = TOP;
+		_length = 0;
+		if (_spool != null)
+		{
+			_parts.add(new Part(_length, _spool));
+			try
+			{
+				_spoolOutput.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+			_spool = null;
+			_spoolOutput = null;
+		}
+		for (Part part : _parts)
+			part.discard();
+		_parts.clear();
+	}
+
+	/* Returns false if the connection was closed as a result of the
+	** response.
+	*/
+	private boolean
+	deliver()
+	{
+		/* The decoder reads one character past the end of a value
+		*/
+		_frame[_length++] = '\n';
+		_frameInput.set(_frame, _length, _parts);
+		_length = 0;
+
+		CompletableFuture<Map> future;
+		synchronized (this)
+		{
+			future = _pending.pollFirst();
+		}
+		if (future == null)
+		{
+			Trace.write(2, "unexpected response from server");
+			_frameInput.clear();
+			_parts.clear();
+			return true;
+		}
+
+		Object raw;
+		try
+		{
+			raw = _decoder.get();
+		}
+		catch (IMuException e)
+		{
+			future.completeExceptionally(e);
+			return true;
+		}
+		finally
+		{
+			_frameInput.clear();
+			_parts.clear();
+			if (_frame.length > 1048576)
+				_frame = new byte[65536];
+		}
+
+		if (! (raw instanceof Map))
+		{
+			String type = raw == null ? "null" : raw.getClass().getName();
+			Trace.write(2, "bad type of response from server: %s", type);
+			future.completeExceptionally(new IMuException("SessionResponse", type));
+			return true;
+		}
+		Map response = (Map) raw;
+
+		boolean disconnect;
+		synchronized (this)
+		{
+			if (response.containsKey("context"))
+				_context = response.getString("context");
+			if (response.containsKey("reconnect"))
+				_port = response.getInt("reconnect");
+			disconnect = _close != null && _close.booleanValue();
+		}
+		if (disconnect)
+			disconnect();
+
+		String status = response.getString("status");
+		if (status.equals("error"))
+		{
+			Trace.write(2, "server error");
+
+			String id = "SessionServerError";
+			if (response.containsKey("error"))
+				id = response.getString("error");
+			else if (response.containsKey("id"))
+				id = response.getString("id");
+
+			IMuException e = new IMuException(id);
+
+			if (response.containsKey("args"))
+				e.setArgs(response.getArray("args", Object[].class));
+
+			future.completeExceptionally(e);
+			return ! disconnect;
+		}
+
+		future.complete(response);
+		return ! disconnect;
+	}
+
+	/* Bytes read from a connection, or the error which ended it */
+	private static class Chunk
+	{
+		Chunk(int generation, byte[] data, IMuException error)
+		{
+			this.generation = generation;
+			this.data = data;
+			this.error = error;
+		}
+
+		final int generation;
+		final byte[] data;
+		final IMuException error;
+	}
+
+	/* A binary value saved to a temporary file, which belongs at position
+	** in the frame
+	*/
+	private static class Part
+	{
+		Part(int position, TempFile file)
+		{
+			this.position = position;
+			this.file = file;
+		}
+
+		void
+		discard()
+		{
+			try
+			{
+				file.getInputStream().close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+		}
+
+		final int position;
+		final TempFile file;
+	}
+
+	/* Feeds the current frame to the decoder, reading each spooled binary
+	** value from its file at its place in the frame
+	*/
+	private static class FrameInput extends InputStream
+	{
+		void
+		set(byte[] data, int length, ArrayList<Part> parts)
+		{
+			_data = data;
+			_length = length;
+			_offset = 0;
+			_parts.clear();
+			_parts.addAll(parts);
+			_next = 0;
+			_file = null;
+		}
+
+		/* Deletes any spooled files which the decoder did not read */
+		void
+		clear()
+		{
+			if (_file != null)
+			{
+				try
+				{
+					_file.close();
+				}
+				catch (IOException e)
+				{
+					// ignore
+				}
+				_file = null;
+			}
+			while (_next < _parts.size())
+				_parts.get(_next++).discard();
+			_parts.clear();
+			_data = null;
+		}
+
+		@Override
+		public int
+		read() throws IOException
+		{
+			byte[] one = new byte[1];
+			int done = read(one, 0, 1);
+			if (done <= 0)
+				return -1;
+			return one[0] & 0xFF;
+		}
+
+		@Override
+		public int
+		read(byte[] b, int off, int len) throws IOException
+		{
+			while (true)
+			{
+				if (_file != null)
+				{
+					int done = _file.read(b, off, len);
+					if (done > 0)
+						return done;
+					_file.close();
+					_file = null;
+				}
+				int limit = _length;
+				if (_next < _parts.size())
+				{
+					Part part = _parts.get(_next);
+					if (_offset == part.position)
+					{
+						_next++;
+						_file = part.file.getInputStream();
+						continue;
+					}
+					limit = part.position;
+				}
+				if (_offset >= limit)
+					return -1;
+				int done = Math.min(len, limit - _offset);
+				System.arraycopy(_data, _offset, b, off, done);
+				_offset += done;
+				return done;
+			}
+		}
+
+		private final ArrayList<Part> _parts = new ArrayList<Part>();
+		private byte[] _data;
+		private int _length;
+		private int _offset;
+		private int _next;
+		private InputStream _file;
+	}
+}
@@ -0,0 +1,107 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.InputStream;
+
+/*!
+** Receives the binary values, such as multimedia resources, returned by the
+** server.
+**
+** Normally each binary value in a response is copied into memory or a
+** temporary file and returned as an `InputStream`. When a `BinarySink` is
+** set on a `Session` [$<link>(:session:binarySink)] or `Handler`
+** [$<link>(:handler:binarySink)] each value is instead handed to
+** **receive( )** as it is read from the connection, so it can be written
+** straight to its final destination. Whatever **receive( )** returns takes
+** the place of the value in the response.
+**
+** The sink is called by the thread reading the response. It is not used
+** for results read by a `ResultDecoder` [$<link>(:resultdecoder)].
+**
+** @usage
+**   com.kesoftware.imu.BinarySink
+** @end
+**
+** @since 2.8
+*/
+public interface BinarySink
+{
+	/*!
+	** Called for each binary value in the order it appears in the response.
+	**
+	** If this method throws an exception no further values are passed to the
+	** sink. The rest of the response is read and discarded and the exception
+	** is then thrown by the request, wrapped in an `IMuException` if
+	** necessary.
+	**
+	** @param path
+	**   The keys leading to the value from the top of the response, with
+	**   array elements given by their index. For example, the **resource**
+	**   column of the third row of a fetch has the path
+	**   ``result``, ``rows``, ``2``, ``resource``.
+	**
+	** @param row
+	**   The object most closely enclosing the value, normally the record
+	**   being fetched. Only the entries read before the value are present.
+	**   This may be ``null`` if the value is not inside an object.
+	**
+	** @param size
+	**   The number of bytes in the value.
+	**
+	** @param data
+	**   The bytes of the value. It ends after ``size`` bytes and any bytes
+	**   not read by the sink are skipped. It must not be used after this
+	**   method returns.
+	**
+	** @returns
+	**   The object to put in the response in place of the value, such as
+	**   the name of the file it was written to.
+	*/
+	Object
+	receive(String[] path, Map row, long size, InputStream data) throws Exception;
+}
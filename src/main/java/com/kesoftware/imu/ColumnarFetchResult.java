@@ -0,0 +1,634 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/*!
+** Provides results from a call to the `Module` **fetch( )**
+** [$<link>(:module:fetch)] method which stores each column in a single
+** array rather than building a `Map` for each record.
+**
+** The columns are declared before the first fetch, each as holding
+** `long`, `double` or `String` values. Values are converted as they are
+** read from the server into a `long[]` or `double[]` for numeric columns.
+** String columns are stored as an `int[]` of codes into a dictionary of
+** the distinct values so a value repeated in many records is kept once.
+**
+** The same object can be passed to several calls to **fetch( )**. Each
+** call appends the records it returns to those already held, so a whole
+** module can be scanned a page at a time into one result.
+**
+** @usage
+**   com.kesoftware.imu.ColumnarFetchResult
+** @end
+**
+** @since 2.8
+*/
+public class ColumnarFetchResult
+{
+	/* Constructor */
+	public
+	ColumnarFetchResult()
+	{
+		_columns = new ArrayList<Column>();
+		_index = new HashMap<String,Column>();
+		_count = 0;
+		_hits = 0;
+	}
+
+	/* Properties */
+	/*!
+	** @property columns
+	**   The names of the columns declared, in the order they were added.
+	*/
+	public String[]
+	getColumns()
+	{
+		String[] names = new String[_columns.size()];
+		for (int i = 0; i < names.length; i++)
+			names[i] = _columns.get(i)._name;
+		return names;
+	}
+
+	/*!
+	** @property count
+	**   The number of records held, from all of the fetches made into this
+	**   result.
+	*/
+	public int
+	getCount()
+	{
+		return _count;
+	}
+
+	/*!
+	** @property hits
+	**   The best estimate of the size of the result set after the most
+	**   recent fetch, as for `ModuleFetchResult`
+	**   [$<link>(:modulefetchresult:hits)].
+	*/
+	public long
+	getHits()
+	{
+		return _hits;
+	}
+
+	/* Methods */
+	/*!
+	** Declares a column whose values are stored as `double`\s.
+	**
+	** @param name
+	**   The name of the column to fetch.
+	**
+	** @returns
+	**   This object, so declarations can be chained.
+	*/
+	public ColumnarFetchResult
+	addDouble(String name)
+	{
+		return add(new DoubleColumn(name));
+	}
+
+	/*!
+	** Declares a column whose values are stored as `long`\s.
+	**
+	** @param name
+	**   The name of the column to fetch.
+	**
+	** @returns
+	**   This object, so declarations can be chained.
+	*/
+	public ColumnarFetchResult
+	addLong(String name)
+	{
+		return add(new LongColumn(name));
+	}
+
+	/*!
+	** Declares a column whose values are stored as codes into a dictionary
+	** of `String`\s.
+	**
+	** @param name
+	**   The name of the column to fetch.
+	**
+	** @returns
+	**   This object, so declarations can be chained.
+	*/
+	public ColumnarFetchResult
+	addString(String name)
+	{
+		return add(new StringColumn(name));
+	}
+
+	/*!
+	** Discards the records held, keeping the columns declared, so the
+	** object can be reused.
+	*/
+	public void
+	clear()
+	{
+		for (Column column : _columns)
+			column.clear();
+		_count = 0;
+		_hits = 0;
+	}
+
+	/*!
+	** Gets the values of a `double` column. Null values are returned as
+	** ``0``.
+	**
+	** @param name
+	**   The name of the column.
+	**
+	** @returns
+	**   An array of **count** [$<link>(:columnarfetchresult:count)] values,
+	**   or ``null`` if there is no `double` column called ``name``.
+	*/
+	public double[]
+	getDoubles(String name)
+	{
+		Column column = _index.get(name);
+		if (! (column instanceof DoubleColumn))
+			return null;
+		return Arrays.copyOf(((DoubleColumn) column)._values, _count);
+	}
+
+	/*!
+	** Gets the values of a `long` column. Null values are returned as ``0``.
+	**
+	** @param name
+	**   The name of the column.
+	**
+	** @returns
+	**   An array of **count** [$<link>(:columnarfetchresult:count)] values,
+	**   or ``null`` if there is no `long` column called ``name``.
+	*/
+	public long[]
+	getLongs(String name)
+	{
+		Column column = _index.get(name);
+		if (! (column instanceof LongColumn))
+			return null;
+		return Arrays.copyOf(((LongColumn) column)._values, _count);
+	}
+
+	/*!
+	** Gets the codes of a `String` column. Each code is the index of the
+	** record's value in the column's dictionary or ``-1`` if the value was
+	** null.
+	**
+	** @param name
+	**   The name of the column.
+	**
+	** @returns
+	**   An array of **count** [$<link>(:columnarfetchresult:count)] codes,
+	**   or ``null`` if there is no `String` column called ``name``.
+	*/
+	public int[]
+	getCodes(String name)
+	{
+		Column column = _index.get(name);
+		if (! (column instanceof StringColumn))
+			return null;
+		return Arrays.copyOf(((StringColumn) column)._codes, _count);
+	}
+
+	/*!
+	** Gets the dictionary of a `String` column.
+	**
+	** @param name
+	**   The name of the column.
+	**
+	** @returns
+	**   The distinct values of the column in the order first seen, or
+	**   ``null`` if there is no `String` column called ``name``.
+	*/
+	public String[]
+	getDictionary(String name)
+	{
+		Column column = _index.get(name);
+		if (! (column instanceof StringColumn))
+			return null;
+		return ((StringColumn) column)._strings.toArray(new String[0]);
+	}
+
+	/*!
+	** Gets a single value from any column as an object.
+	**
+	** @param name
+	**   The name of the column.
+	**
+	** @param row
+	**   The index of the record, from ``0`` to **count** - 1.
+	**
+	** @returns
+	**   The value as a `Long`, `Double` or `String`, or ``null`` if the value
+	**   was null or there is no column called ``name``.
+	**
+	** @throws IndexOutOfBoundsException
+	**   If ``row`` is out of range.
+	*/
+	public Object
+	get(String name, int row)
+	{
+		if (row < 0 || row >= _count)
+			throw new IndexOutOfBoundsException(row);
+		Column column = _index.get(name);
+		if (column == null || column._nulls.get(row))
+			return null;
+		return column.get(row);
+	}
+
+	/*!
+	** Tests whether a value was null.
+	**
+	** @param name
+	**   The name of the column.
+	**
+	** @param row
+	**   The index of the record, from ``0`` to **count** - 1.
+	**
+	** @returns
+	**   ``true`` if the value was null or missing, or there is no column
+	**   called ``name``.
+	*/
+	public boolean
+	isNull(String name, int row)
+	{
+		Column column = _index.get(name);
+		return column == null || row >= _count || column._nulls.get(row);
+	}
+
+	/* Reads the result of a Module fetch(), appending the records. If the
+	** result cannot be read none of its records are kept.
+	*/
+	ColumnarFetchResult
+	readFetch(StreamReader reader) throws Exception
+	{
+		int count = _count;
+		try
+		{
+			readResult(reader);
+		}
+		catch (Exception e)
+		{
+			_count = count;
+			throw e;
+		}
+		return this;
+	}
+
+	private ArrayList<Column> _columns;
+	private HashMap<String,Column> _index;
+	private int _count;
+	private long _hits;
+
+	private void
+	readResult(StreamReader reader) throws Exception
+	{
+		if (reader.next() != StreamEvent.START_OBJECT)
+			throw new IMuException("ColumnarFetchResult", reader.getEvent());
+		while (reader.next() == StreamEvent.KEY)
+		{
+			String name = reader.getString();
+			if (name.equals("hits"))
+			{
+				if (reader.next() == StreamEvent.NUMBER)
+					_hits = reader.getLong();
+				else
+					reader.skipValue();
+			}
+			else if (name.equals("rows"))
+			{
+				if (reader.next() != StreamEvent.START_ARRAY)
+				{
+					reader.skipValue();
+					continue;
+				}
+				while (reader.next() != StreamEvent.END_ARRAY)
+				{
+					if (reader.getEvent() == StreamEvent.START_OBJECT)
+						readObject(reader);
+					else
+						reader.skipValue();
+				}
+			}
+			else
+				reader.skipValue();
+		}
+	}
+
+	private ColumnarFetchResult
+	add(Column column)
+	{
+		if (_count > 0)
+			throw new IllegalStateException("columns must be declared before fetching");
+		Column old = _index.put(column._name, column);
+		if (old != null)
+			_columns.remove(old);
+		_columns.add(column);
+		return this;
+	}
+
+	/* Reads one record, which has just been started */
+	private void
+	readObject(StreamReader reader) throws Exception
+	{
+		int row = _count;
+		for (Column column : _columns)
+		{
+			column.reserve(row);
+			column._nulls.clear(row);
+			column._set = false;
+		}
+		while (reader.next() == StreamEvent.KEY)
+		{
+			Column column = _index.get(reader.getString());
+			if (column == null)
+			{
+				reader.skipValue();
+				continue;
+			}
+			reader.next();
+			column._set = true;
+			if (reader.getEvent() == StreamEvent.NULL)
+				column._nulls.set(row);
+			else
+				column.read(reader, row);
+		}
+		for (Column column : _columns)
+			if (! column._set)
+				column._nulls.set(row);
+		_count++;
+	}
+
+	private static IMuException
+	mismatch(StreamReader reader, Column column)
+	{
+		return new IMuException("ColumnarValue", column._name, reader.getEvent());
+	}
+
+	/* A single column's values, held in an array grown as records are read */
+	private abstract static class Column
+	{
+		Column(String name)
+		{
+			_name = name;
+			_nulls = new BitSet();
+			_set = false;
+		}
+
+		abstract void
+		clear();
+
+		abstract Object
+		get(int row);
+
+		/* Reads the current (non-null) event into row */
+		abstract void
+		read(StreamReader reader, int row) throws Exception;
+
+		/* Makes room for row, clearing any value left by a record which
+		** could not be read
+		*/
+		abstract void
+		reserve(int row);
+
+		final String _name;
+		final BitSet _nulls;
+		boolean _set;
+
+		static int
+		grow(int length, int row)
+		{
+			return length > row ? length : Math.max(16, length * 2);
+		}
+	}
+
+	private static class LongColumn extends Column
+	{
+		LongColumn(String name)
+		{
+			super(name);
+			_values = new long[0];
+		}
+
+		@Override
+		void
+		clear()
+		{
+			_values = new long[0];
+			_nulls.clear();
+		}
+
+		@Override
+		Object
+		get(int row)
+		{
+			return _values[row];
+		}
+
+		@Override
+		void
+		read(StreamReader reader, int row) throws Exception
+		{
+			switch (reader.getEvent())
+			{
+			case NUMBER:
+				_values[row] = reader.getLong();
+				break;
+			case STRING:
+				_values[row] = Long.parseLong(reader.getString());
+				break;
+			case BOOLEAN:
+				_values[row] = reader.getBoolean() ? 1 : 0;
+				break;
+			default:
+				throw mismatch(reader, this);
+			}
+		}
+
+		@Override
+		void
+		reserve(int row)
+		{
+			if (row >= _values.length)
+				_values = Arrays.copyOf(_values, grow(_values.length, row));
+			_values[row] = 0;
+		}
+
+		long[] _values;
+	}
+
+	private static class DoubleColumn extends Column
+	{
+		DoubleColumn(String name)
+		{
+			super(name);
+			_values = new double[0];
+		}
+
+		@Override
+		void
+		clear()
+		{
+			_values = new double[0];
+			_nulls.clear();
+		}
+
+		@Override
+		Object
+		get(int row)
+		{
+			return _values[row];
+		}
+
+		@Override
+		void
+		read(StreamReader reader, int row) throws Exception
+		{
+			switch (reader.getEvent())
+			{
+			case NUMBER:
+				_values[row] = reader.getDouble();
+				break;
+			case STRING:
+				_values[row] = Double.parseDouble(reader.getString());
+				break;
+			case BOOLEAN:
+				_values[row] = reader.getBoolean() ? 1 : 0;
+				break;
+			default:
+				throw mismatch(reader, this);
+			}
+		}
+
+		@Override
+		void
+		reserve(int row)
+		{
+			if (row >= _values.length)
+				_values = Arrays.copyOf(_values, grow(_values.length, row));
+			_values[row] = 0;
+		}
+
+		double[] _values;
+	}
+
+	private static class StringColumn extends Column
+	{
+		StringColumn(String name)
+		{
+			super(name);
+			clear();
+		}
+
+		@Override
+		void
+		clear()
+		{
+			_codes = new int[0];
+			_strings = new ArrayList<String>();
+			_dictionary = new HashMap<String,Integer>();
+			_nulls.clear();
+		}
+
+		@Override
+		Object
+		get(int row)
+		{
+			return _strings.get(_codes[row]);
+		}
+
+		@Override
+		void
+		read(StreamReader reader, int row) throws Exception
+		{
+			String value;
+			switch (reader.getEvent())
+			{
+			case STRING:
+				value = reader.getString();
+				break;
+			case NUMBER:
+				value = reader.isInteger() ? Long.toString(reader.getLong()) :
+					Double.toString(reader.getDouble());
+				break;
+			case BOOLEAN:
+				value = Boolean.toString(reader.getBoolean());
+				break;
+			default:
+				throw mismatch(reader, this);
+			}
+			Integer code = _dictionary.get(value);
+			if (code == null)
+			{
+				code = _strings.size();
+				_strings.add(value);
+				_dictionary.put(value, code);
+			}
+			_codes[row] = code;
+		}
+
+		@Override
+		void
+		reserve(int row)
+		{
+			if (row >= _codes.length)
+				_codes = Arrays.copyOf(_codes, grow(_codes.length, row));
+			_codes[row] = -1;
+		}
+
+		int[] _codes;
+		ArrayList<String> _strings;
+		HashMap<String,Integer> _dictionary;
+	}
+}
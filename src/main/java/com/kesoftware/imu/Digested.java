@@ -0,0 +1,96 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.HexFormat;
+
+/*!
+** Implemented by the streams holding binary values returned by the server
+** when the `Session` has been asked to compute a digest of each value
+** [$<link>(:session:digest)].
+**
+** The digest is computed as the bytes are read from the connection so no
+** second pass over the data is needed to check it.
+**
+** @usage
+**   com.kesoftware.imu.Digested
+** @end
+**
+** @since 2.8
+*/
+public interface Digested
+{
+	/*!
+	** @property digestAlgorithm
+	**   The name of the algorithm used to compute the digest, such as
+	**   ``MD5`` or ``SHA-256``, or ``null`` if no digest was computed.
+	*/
+	String
+	getDigestAlgorithm();
+
+	/*!
+	** @property digest
+	**   The digest of the whole value, or ``null`` if no digest was computed.
+	*/
+	byte[]
+	getDigest();
+
+	/*!
+	** @property digestHex
+	**   The digest as a string of lowercase hexadecimal digits, in the same
+	**   form as the checksums returned by the server, or ``null`` if no
+	**   digest was computed.
+	*/
+	default String
+	getDigestHex()
+	{
+		byte[] digest = getDigest();
+		if (digest == null)
+			return null;
+		return HexFormat.of().formatHex(digest);
+	}
+}
@@ -0,0 +1,406 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/* Writes the text of a request as UTF-8 directly into a reusable byte
+** buffer, which is passed to the underlying stream whenever it fills or is
+** flushed.
+**
+** Strings are encoded a character at a time straight into the buffer so no
+** intermediate strings or byte arrays are created, however large the
+** request. The number of bytes written is counted so that the size of each
+** request can be reported.
+*/
+class Encoder
+{
+	/* How writeChars() escapes quotes, backslashes and control characters */
+	public static final int ESCAPE_NONE = 0;
+	// A backslash before quotes and backslashes and control characters
+	// written as JSON escapes
+	public static final int ESCAPE_JSON = 1;
+	// Quotes doubled, as in CSV
+	public static final int ESCAPE_CSV = 2;
+
+	/* Constructor */
+	public
+	Encoder(OutputStream output, int size)
+	{
+		_output = output;
+		_buffer = new byte[Math.max(size, MIN_SIZE)];
+		_position = 0;
+		_count = 0;
+	}
+
+	/* Properties */
+	/* The number of bytes written since the count was last reset */
+	public long
+	getCount()
+	{
+		return _count + _position;
+	}
+
+	public void
+	resetCount()
+	{
+		_count = -_position;
+	}
+
+	/* Methods */
+	public void
+	write(int b) throws IOException
+	{
+		if (_position >= _buffer.length)
+			drain();
+		_buffer[_position++] = (byte) b;
+	}
+
+	public void
+	write(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (length > _buffer.length - _position)
+		{
+			drain();
+			if (length >= _buffer.length)
+			{
+				// Too big to be worth copying
+				_output.write(bytes, offset, length);
+				_count += length;
+				return;
+			}
+		}
+		System.arraycopy(bytes, offset, _buffer, _position, length);
+		_position += length;
+	}
+
+	/* Writes text which is known to be plain ASCII, such as numbers and
+	** keywords.
+	*/
+	public void
+	writeAscii(String text) throws IOException
+	{
+		int length = text.length();
+		if (length > _buffer.length - _position)
+			drain();
+		if (length > _buffer.length)
+		{
+			for (int i = 0; i < length; i++)
+				write(text.charAt(i));
+			return;
+		}
+		for (int i = 0; i < length; i++)
+			_buffer[_position++] = (byte) text.charAt(i);
+	}
+
+	public void
+	writeLong(long value) throws IOException
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			writeAscii(Long.toString(value));
+			return;
+		}
+		if (_buffer.length - _position < 20)
+			drain();
+		if (value < 0)
+		{
+			_buffer[_position++] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long rest = value / 10; rest != 0; rest /= 10)
+			digits++;
+		int end = _position + digits;
+		for (int i = end - 1; i >= _position; i--)
+		{
+			_buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		_position = end;
+	}
+
+	/* Writes a string in double quotes, escaping any quotes or backslashes
+	** it contains.
+	*/
+	public void
+	writeString(String text) throws IOException
+	{
+		write('"');
+		int length = text.length();
+		for (int i = 0; i < length; i++)
+		{
+			// Room for the longest encoding (four bytes)
+			if (_buffer.length - _position < 4)
+				drain();
+
+			char c = text.charAt(i);
+			if (c < 0x80)
+			{
+				if (c == '"' || c == '\\')
+					_buffer[_position++] = '\\';
+				_buffer[_position++] = (byte) c;
+			}
+			else if (c < 0x800)
+			{
+				_buffer[_position++] = (byte) (0xC0 | (c >> 6));
+				_buffer[_position++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length &&
+				Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				int code = Character.toCodePoint(c, text.charAt(++i));
+				_buffer[_position++] = (byte) (0xF0 | (code >> 18));
+				_buffer[_position++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+				_buffer[_position++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+				_buffer[_position++] = (byte) (0x80 | (code & 0x3F));
+			}
+			else if (Character.isSurrogate(c))
+			{
+				// Unpaired surrogate, replaced as String.getBytes() does
+				_buffer[_position++] = '?';
+			}
+			else
+			{
+				_buffer[_position++] = (byte) (0xE0 | (c >> 12));
+				_buffer[_position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				_buffer[_position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		write('"');
+	}
+
+	/* Writes the characters of a string, escaped as given by escape but
+	** without any surrounding quotes.
+	*/
+	public void
+	writeChars(String text, int escape) throws IOException
+	{
+		boolean[] special = SPECIAL[escape];
+		int length = text.length();
+		for (int i = 0; i < length; i++)
+		{
+			// Room for the longest encoding (a six byte JSON escape)
+			if (_buffer.length - _position < 6)
+				drain();
+
+			char c = text.charAt(i);
+			if (c < 0x80)
+			{
+				if (special[c])
+					writeEscaped(c, escape);
+				else
+					_buffer[_position++] = (byte) c;
+			}
+			else if (c < 0x800)
+			{
+				_buffer[_position++] = (byte) (0xC0 | (c >> 6));
+				_buffer[_position++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length &&
+				Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				int code = Character.toCodePoint(c, text.charAt(++i));
+				_buffer[_position++] = (byte) (0xF0 | (code >> 18));
+				_buffer[_position++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+				_buffer[_position++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+				_buffer[_position++] = (byte) (0x80 | (code & 0x3F));
+			}
+			else if (Character.isSurrogate(c))
+			{
+				// Unpaired surrogate, replaced as String.getBytes() does
+				_buffer[_position++] = '?';
+			}
+			else
+			{
+				_buffer[_position++] = (byte) (0xE0 | (c >> 12));
+				_buffer[_position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				_buffer[_position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/* Writes the remaining bytes of buffer, leaving its position at its
+	** limit
+	*/
+	public void
+	write(ByteBuffer buffer) throws IOException
+	{
+		if (buffer.hasArray())
+		{
+			write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		while (buffer.hasRemaining())
+		{
+			if (_position >= _buffer.length)
+				drain();
+			int count = Math.min(buffer.remaining(), _buffer.length - _position);
+			buffer.get(_buffer, _position, count);
+			_position += count;
+		}
+	}
+
+	public void
+	flush() throws IOException
+	{
+		drain();
+		_output.flush();
+	}
+
+	/* Sends up to size bytes from the current position of file directly to
+	** channel, which must be the channel underlying the output stream. Any
+	** buffered bytes are flushed first so the output stays in order. Returns
+	** the number of bytes sent, which is only less than size if the file is
+	** too short.
+	*/
+	public long
+	transfer(FileChannel file, long size, WritableByteChannel channel) throws IOException
+	{
+		flush();
+		long position = file.position();
+		long done = 0;
+		while (done < size)
+		{
+			long sent = file.transferTo(position + done, size - done, channel);
+			if (sent <= 0)
+				break;
+			done += sent;
+		}
+		file.position(position + done);
+		_count += done;
+		return done;
+	}
+
+	/* Room for the longest number (twenty bytes) so that numbers and
+	** escapes can be written straight into the buffer after a drain
+	*/
+	private static final int MIN_SIZE = 20;
+
+	private final OutputStream _output;
+	private final byte[] _buffer;
+	private int _position;
+	private long _count;
+
+	/* Passes the buffered bytes to the underlying stream without flushing
+	** it.
+	*/
+	private void
+	drain() throws IOException
+	{
+		if (_position > 0)
+		{
+			_output.write(_buffer, 0, _position);
+			_count += _position;
+			_position = 0;
+		}
+	}
+
+	/* Writes an ASCII quote, backslash or control character, escaped as
+	** given by escape. There must be room in the buffer for six bytes.
+	*/
+	private void
+	writeEscaped(char c, int escape)
+	{
+		if (escape == ESCAPE_CSV)
+		{
+			if (c == '"')
+				_buffer[_position++] = '"';
+		}
+		else if (c >= 0x20)
+			_buffer[_position++] = '\\';
+		else
+		{
+			_buffer[_position++] = '\\';
+			switch (c)
+			{
+			case '\b':
+				c = 'b';
+				break;
+			case '\f':
+				c = 'f';
+				break;
+			case '\n':
+				c = 'n';
+				break;
+			case '\r':
+				c = 'r';
+				break;
+			case '\t':
+				c = 't';
+				break;
+			default:
+				_buffer[_position++] = 'u';
+				_buffer[_position++] = '0';
+				_buffer[_position++] = '0';
+				_buffer[_position++] = (byte) HEX[c >> 4];
+				c = HEX[c & 0xF];
+				break;
+			}
+		}
+		_buffer[_position++] = (byte) c;
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/* The ASCII characters escaped by each kind of escaping */
+	private static final boolean[][] SPECIAL = new boolean[3][128];
+	static
+	{
+		for (int c = 0; c < 0x20; c++)
+			SPECIAL[ESCAPE_JSON][c] = true;
+		SPECIAL[ESCAPE_JSON]['"'] = true;
+		SPECIAL[ESCAPE_JSON]['\\'] = true;
+		SPECIAL[ESCAPE_CSV]['"'] = true;
+	}
+}
@@ -0,0 +1,524 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/*!
+** Reads the records of a `Module` [$<link>(:module:module)]'s result set
+** a page at a time while requests for the following pages are already on
+** their way to the server.
+**
+** A loop which calls **fetch( )** [$<link>(:module:fetch)], processes the
+** records and then fetches again leaves the server idle while the records
+** are processed and the client idle while the next page is fetched. A
+** `FetchCursor` instead sends the requests for the next **lookAhead**
+** [$<link>(:fetchcursor:lookAhead)] pages using the `Handler`'s
+** **submit( )** [$<link>(:handler:submit)] method before handing back
+** each page, so the server works on them while the caller is busy.
+**
+** The first page is fetched from the starting position given and each
+** later page from the record after the end of the one before, just as a
+** loop fetching from ``current`` with an offset of ``1`` would. Iteration
+** ends with the first page which is not full.
+**
+** The size of the pages can also be adjusted as the cursor goes. If a
+** **targetSize** [$<link>(:fetchcursor:targetSize)] or **targetTime**
+** [$<link>(:fetchcursor:targetTime)] is set, the cursor keeps an estimate
+** of the bytes in each record and the time spent waiting for each record,
+** smoothed over recent pages. The pages requested after that are sized to
+** come as close to the targets as possible, within **minPageSize**
+** [$<link>(:fetchcursor:minPageSize)] and **maxPageSize**
+** [$<link>(:fetchcursor:maxPageSize)]. This lets the same loop fetch a few
+** records at a time from a module with large records and many at a time
+** from one with small records.
+**
+** A cursor should be closed once it is finished with, particularly if it
+** is abandoned before the end of the result set, so that the responses to
+** the requests sent ahead are read from the connection. The module's
+** current record is then at the end of the last page requested, which may
+** be after the last page returned.
+**
+** A `FetchCursor` should only be used by one thread at a time.
+**
+** @usage
+**   com.kesoftware.imu.FetchCursor
+** @end
+**
+** @since 2.8
+*/
+public class FetchCursor implements AutoCloseable
+{
+	/* Constructors */
+	/*!
+	** Creates a `FetchCursor` which starts at the position described by a
+	** combination of ``flag`` and ``offset``.
+	**
+	** @param module
+	**   The `Module` whose result set is to be read.
+	**
+	** @param flag
+	**   The position to start fetching records from.
+	**
+	** @param offset
+	**   The position relative to ``flag`` to start fetching from.
+	**
+	** @param pageSize
+	**   The number of records to fetch in each request.
+	**
+	** @param columns
+	**   The columns to fetch for each record, as a `String` or an array of
+	**   `String`\s, or ``null`` for the server's default.
+	*/
+	public
+	FetchCursor(Module module, String flag, long offset, int pageSize, Object columns)
+	{
+		_module = module;
+		_flag = flag;
+		_offset = offset;
+		_pageSize = Math.max(1, pageSize);
+		_columns = columns;
+		_lookAhead = 1;
+		_minPageSize = 1;
+		_maxPageSize = 10000;
+		_targetSize = 0;
+		_targetTime = 0;
+		_pending = new ArrayDeque<Page>();
+		_started = false;
+		_finished = false;
+		_hits = 0;
+		_pages = 0;
+		_rows = 0;
+		_bytesPerRow = 0;
+		_timePerRow = 0;
+		_responseSize = 0;
+		_waitTime = 0;
+	}
+
+	public
+	FetchCursor(Module module, ModuleFetchPosition pos, int pageSize, Object columns)
+	{
+		this(module, pos._flag, pos._offset, pageSize, columns);
+	}
+
+	/* Properties */
+	/*!
+	** @property bytesPerRow
+	**   The current estimate of the number of bytes the server sends for each
+	**   record.
+	*/
+	public double
+	getBytesPerRow()
+	{
+		return _bytesPerRow;
+	}
+
+	/*!
+	** @property hits
+	**   The best estimate of the size of the result set, as returned with
+	**   the most recent page.
+	*/
+	public long
+	getHits()
+	{
+		return _hits;
+	}
+
+	/*!
+	** @property lookAhead
+	**   The number of pages requested ahead of the one being processed. A
+	**   value of ``0`` fetches each page only when it is asked for, as a
+	**   plain loop would. The default is ``1``.
+	*/
+	public int
+	getLookAhead()
+	{
+		return _lookAhead;
+	}
+
+	public void
+	setLookAhead(int pages)
+	{
+		_lookAhead = Math.max(0, pages);
+	}
+
+	/*!
+	** @property maxPageSize
+	**   The largest number of records the page size can be increased to.
+	**   The default is ``10000``.
+	*/
+	public int
+	getMaxPageSize()
+	{
+		return _maxPageSize;
+	}
+
+	public void
+	setMaxPageSize(int size)
+	{
+		_maxPageSize = Math.max(1, size);
+	}
+
+	/*!
+	** @property minPageSize
+	**   The smallest number of records the page size can be reduced to.
+	**   The default is ``1``.
+	*/
+	public int
+	getMinPageSize()
+	{
+		return _minPageSize;
+	}
+
+	public void
+	setMinPageSize(int size)
+	{
+		_minPageSize = Math.max(1, size);
+	}
+
+	/*!
+	** @property pageSize
+	**   The number of records to be fetched by the next request. This starts
+	**   as the page size given when the cursor was created and changes only
+	**   if a target is set.
+	*/
+	public int
+	getPageSize()
+	{
+		return _pageSize;
+	}
+
+	/*!
+	** @property pages
+	**   The number of pages returned so far.
+	*/
+	public int
+	getPages()
+	{
+		return _pages;
+	}
+
+	/*!
+	** @property responseSize
+	**   The number of bytes in the response for the most recent page.
+	*/
+	public long
+	getResponseSize()
+	{
+		return _responseSize;
+	}
+
+	/*!
+	** @property rows
+	**   The number of records returned so far.
+	*/
+	public long
+	getRows()
+	{
+		return _rows;
+	}
+
+	/*!
+	** @property targetSize
+	**   The number of bytes each response should contain, or ``0`` (the
+	**   default) for no limit on the size.
+	*/
+	public long
+	getTargetSize()
+	{
+		return _targetSize;
+	}
+
+	public void
+	setTargetSize(long bytes)
+	{
+		_targetSize = Math.max(0, bytes);
+	}
+
+	/*!
+	** @property targetTime
+	**   The number of milliseconds the caller should wait for each page, or
+	**   ``0`` (the default) for no limit on the time. The time counted is
+	**   from when the request was sent, or from when **next( )**
+	**   [$<link>(:fetchcursor:next)] was called if that was later, until the
+	**   page has been read. Pages requested ahead which are ready before
+	**   they are needed count as taking very little time.
+	*/
+	public long
+	getTargetTime()
+	{
+		return _targetTime;
+	}
+
+	public void
+	setTargetTime(long millis)
+	{
+		_targetTime = Math.max(0, millis);
+	}
+
+	/*!
+	** @property timePerRow
+	**   The current estimate of the number of milliseconds spent waiting for
+	**   each record.
+	*/
+	public double
+	getTimePerRow()
+	{
+		return _timePerRow / 1000000;
+	}
+
+	/*!
+	** @property waitTime
+	**   The number of milliseconds spent waiting for the most recent page.
+	*/
+	public double
+	getWaitTime()
+	{
+		return _waitTime / 1000000.0;
+	}
+
+	/* Methods */
+	/*!
+	** Returns the next page of records.
+	**
+	** @returns
+	**   An array of `Map`\s [$<link>(:map:map)], one for each record, or
+	**   ``null`` if there are no more records.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred. No more pages are returned after
+	**   an error.
+	*/
+	public Map[]
+	next() throws IMuException
+	{
+		if (_finished)
+			return null;
+
+		Page page;
+		ModuleFetchResult result;
+		try
+		{
+			// Ask for the pages after the first along with it
+			send(_started ? 1 : _lookAhead + 1);
+			page = _pending.removeFirst();
+			long wait = System.nanoTime();
+			result = receive(page);
+			measure(page, Math.max(wait, page._sent), result);
+		}
+		catch (IMuException e)
+		{
+			close();
+			throw e;
+		}
+		_hits = result.getHits();
+
+		Map[] rows = result.getRows();
+		if (rows == null || rows.length < page._count)
+			close();
+		else
+			send(_lookAhead);
+		if (rows == null || rows.length == 0)
+			return null;
+		return rows;
+	}
+
+	/*!
+	** Stops the cursor, reading and discarding the responses to any
+	** requests which were sent ahead.
+	*/
+	@Override
+	public void
+	close()
+	{
+		_finished = true;
+		while (! _pending.isEmpty())
+		{
+			try
+			{
+				receive(_pending.removeFirst());
+			}
+			catch (IMuException e)
+			{
+				Trace.write(2, "fetch cursor: discarded page failed: %s", e);
+			}
+		}
+	}
+
+	private final Module _module;
+	private final String _flag;
+	private final long _offset;
+	private int _pageSize;
+	private final Object _columns;
+	private int _lookAhead;
+	private int _minPageSize;
+	private int _maxPageSize;
+	private long _targetSize;
+	private long _targetTime;
+	private final ArrayDeque<Page> _pending;
+	private boolean _started;
+	private boolean _finished;
+	private long _hits;
+
+	// Measurements, with times in nanoseconds
+	private int _pages;
+	private long _rows;
+	private double _bytesPerRow;
+	private double _timePerRow;
+	private long _responseSize;
+	private long _waitTime;
+
+	/* A request which has been sent */
+	private static class Page
+	{
+		Page(Future<Object> future, int count)
+		{
+			_future = future;
+			_count = count;
+			_sent = System.nanoTime();
+		}
+
+		final Future<Object> _future;
+		final int _count;
+		final long _sent;
+	}
+
+	/* Sends requests until count pages are pending */
+	private void
+	send(int count) throws IMuException
+	{
+		while (_pending.size() < count)
+		{
+			Map args = new Map();
+			if (_started)
+			{
+				args.put("flag", "current");
+				args.put("offset", 1);
+			}
+			else
+			{
+				args.put("flag", _flag);
+				args.put("offset", _offset);
+			}
+			args.put("count", _pageSize);
+			if (_columns != null)
+				args.put("columns", _columns);
+			_pending.addLast(new Page(_module.submit("fetch", args), _pageSize));
+			_started = true;
+		}
+	}
+
+	/* Updates the estimates from a page which was waited for from start,
+	** and chooses the size of the pages requested after it
+	*/
+	private void
+	measure(Page page, long start, ModuleFetchResult result)
+	{
+		Map[] rows = result.getRows();
+		int count = rows == null ? 0 : rows.length;
+		if (count == 0)
+			return;
+		_pages++;
+		_rows += count;
+
+		_responseSize = -1;
+		_waitTime = System.nanoTime() - start;
+		if (page._future instanceof SessionFuture<?> future)
+		{
+			_responseSize = future.getResponseSize();
+			_waitTime = Math.max(0, future.getCompleted() - start);
+		}
+
+		// Weight the latest page equally with those before it
+		double time = (double) _waitTime / count;
+		_timePerRow = _pages == 1 ? time : (_timePerRow + time) / 2;
+		if (_responseSize >= 0)
+		{
+			double bytes = (double) _responseSize / count;
+			_bytesPerRow = _bytesPerRow == 0 ? bytes : (_bytesPerRow + bytes) / 2;
+		}
+
+		if (_targetSize <= 0 && _targetTime <= 0)
+			return;
+		double size = _maxPageSize;
+		if (_targetSize > 0 && _bytesPerRow > 0)
+			size = Math.min(size, _targetSize / _bytesPerRow);
+		if (_targetTime > 0 && _timePerRow > 0)
+			size = Math.min(size, _targetTime * 1000000.0 / _timePerRow);
+		// Grow gradually as the estimates from small pages are less reliable
+		size = Math.min(size, _pageSize * 4.0);
+		int next = (int) Math.max(_minPageSize, Math.min(_maxPageSize, size));
+		if (next != _pageSize)
+		{
+			Trace.write(2, "fetch cursor: page size %d -> %d (%.0f bytes, %.3f ms per record)",
+				_pageSize, next, _bytesPerRow, _timePerRow / 1000000);
+			_pageSize = next;
+		}
+	}
+
+	private ModuleFetchResult
+	receive(Page page) throws IMuException
+	{
+		try
+		{
+			return _module.makeFetchResult(page._future.get());
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IMuException cause)
+				throw cause;
+			throw new IMuException("FetchCursorPage", e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IMuException("FetchCursorInterrupted", e);
+		}
+	}
+}
@@ -46,6 +46,8 @@
 */
 package com.kesoftware.imu;
 
+import java.util.concurrent.Future;
+
 /*!
 ** Provides a general low-level interface to creating server-side objects.
 **
@@ -70,6 +72,7 @@ public class Handler
 	{
 		_session = session;
 
+		_binarySink = null;
 		_create = null;
 		_destroy = null;
 		_id = null;
@@ -88,6 +91,27 @@ public class Handler
 	}
 
 	/* Properties */
+	/*!
+	** @property binarySink
+	**   A `BinarySink` [$<link>(:binarysink)] to be given the binary values,
+	**   such as multimedia resources, in the responses to this handler's
+	**   requests. If not set the `Session`'s sink
+	**   [$<link>(:session:binarySink)] is used.
+	**
+	** @since 2.8
+	*/
+	public BinarySink
+	getBinarySink()
+	{
+		return _binarySink;
+	}
+
+	public void
+	setBinarySink(BinarySink sink)
+	{
+		_binarySink = sink;
+	}
+
 	/*!
 	** @property create
 	**   An object to be passed to the server when the server-side object is 
@@ -236,6 +260,137 @@ public class Handler
 		return call(method, null);
 	}
 
+	/* As call() but the elements of the array at path in the response are
+	** passed to listener as they are read, rather than being collected into
+	** the result. The path starts from the top of the response so normally
+	** begins with "result".
+	*/
+	Object
+	call(String method, Object parameters, String[] path, RowListener listener)
+		throws IMuException
+	{
+		return call(method, parameters, path, listener, false);
+	}
+
+	/* As above but if lazy is set the elements are read as LazyMaps. If
+	** listener is null they are left in the result.
+	*/
+	Object
+	call(String method, Object parameters, String[] path, RowListener listener,
+		boolean lazy) throws IMuException
+	{
+		SessionFuture<Map> future = new SessionFuture<Map>(_session);
+		future.setRows(path, listener);
+		future.setLazyRows(lazy);
+		return call(method, parameters, future);
+	}
+
+	/*!
+	** Calls a method on the server-side object, reading the result with
+	** ``decoder`` rather than building it as `Map` objects.
+	**
+	** @param method
+	**   The name of the method to be called.
+	**
+	** @param parameters
+	**   Any parameters to be passed to the method.
+	**
+	** @param decoder
+	**   A `ResultDecoder` [$<link>(:resultdecoder)] to read the result.
+	**
+	** @returns
+	**   The value returned by ``decoder``.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred or ``decoder`` threw an exception.
+	**
+	** @since 2.8
+	*/
+	@SuppressWarnings("unchecked")
+	public <T> T
+	call(String method, Object parameters, ResultDecoder<T> decoder)
+		throws IMuException
+	{
+		SessionFuture<Map> future = new SessionFuture<Map>(_session);
+		future.setDecoder(decoder);
+		return (T) call(method, parameters, future);
+	}
+
+	/*!
+	** Calls a method on the server-side object without waiting for the
+	** result.
+	**
+	** The request is sent immediately using the `Session`'s **submit( )**
+	** [$<link>(:session:submit)] method, allowing several calls (on this or
+	** other handlers sharing the same session) to be in flight at once.
+	**
+	** If the server-side object has not been created yet, the first call
+	** creates it and later calls wait for its identifier before being sent.
+	**
+	** @param method
+	**   The name of the method to be called.
+	**
+	** @param parameters
+	**   Any parameters to be passed to the method.
+	**
+	** @returns
+	**   A `Future` which yields the result returned by the server-side
+	**   method.
+	**
+	** @throws IMuException
+	**   If the request could not be sent.
+	**
+	** @since 2.8
+	*/
+	public Future<Object>
+	submit(String method, Object parameters) throws IMuException
+	{
+		Map request = new Map();
+		request.put("method", method);
+		if (parameters != null)
+			request.put("params", parameters);
+		prepare(request);
+
+		SessionFuture<Object> future = new SessionFuture<Object>(_session)
+		{
+			@Override
+			protected Object
+			convert(Map response)
+			{
+				if (response.containsKey("id"))
+					_id = response.getString("id");
+				return response.get("result");
+			}
+		};
+		future.setBinarySink(_binarySink);
+		_session.send(request, future);
+		if (_id == null)
+			_creating = future;
+		return future;
+	}
+
+	/*!
+	** Calls a method on the server-side object without waiting for the
+	** result.
+	**
+	** @param method
+	**   The name of the method to be called.
+	**
+	** @returns
+	**   A `Future` which yields the result returned by the server-side
+	**   method.
+	**
+	** @throws IMuException
+	**   If the request could not be sent.
+	**
+	** @since 2.8
+	*/
+	public Future<Object>
+	submit(String method) throws IMuException
+	{
+		return submit(method, null);
+	}
+
 	/*!
 	** Submits a low-level request to the IMu server. 
 	** This method is chiefly used by the **call( )** method above.
@@ -252,20 +407,12 @@ public class Handler
 	public Map
 	request(Map request) throws IMuException
 	{
-		if (_id != null)
-			request.put("id", _id);
-		else if (_name != null)
-		{
-			request.put("name", _name);
-			if (_create != null)
-				request.put("create", _create);
-		}
-		if (_destroy != null)
-			request.put("destroy", _destroy.booleanValue());
-		if (_language != null)
-			request.put("language", _language);
+		prepare(request);
 
-		Map response = _session.request(request);
+		SessionFuture<Map> future = new SessionFuture<Map>(_session);
+		future.setBinarySink(_binarySink);
+		_session.send(request, future);
+		Map response = future.await();
 
 		if (response.containsKey("id"))
 			_id = response.getString("id");
@@ -275,9 +422,66 @@ public class Handler
 
 	protected Session _session;
 
+	protected BinarySink _binarySink;
 	protected Object _create;
 	protected Boolean _destroy;
 	protected String _id;
 	protected String _language;
 	protected String _name;
+
+	private SessionFuture<Object> _creating;
+
+	private Object
+	call(String method, Object parameters, SessionFuture<Map> future)
+		throws IMuException
+	{
+		Map request = new Map();
+		request.put("method", method);
+		if (parameters != null)
+			request.put("params", parameters);
+		prepare(request);
+
+		future.setBinarySink(_binarySink);
+		_session.send(request, future);
+		Map response = future.await();
+
+		if (response.containsKey("id"))
+			_id = response.getString("id");
+
+		return response.get("result");
+	}
+
+	/* Adds the handler's identification to a request. If a submitted call is
+	** still creating the server-side object, wait for it so that a second
+	** object is not created.
+	*/
+	private void
+	prepare(Map request) throws IMuException
+	{
+		if (_id == null && _creating != null)
+		{
+			try
+			{
+				_creating.await();
+			}
+			catch (IMuException e)
+			{
+				// the next request will try to create the object again
+			}
+		}
+		_creating = null;
+
+		if (_id != null)
+			request.put("id", _id);
+		else if (_name != null)
+		{
+			request.put("name", _name);
+			if (_create != null)
+				request.put("create", _create);
+		}
+		if (_destroy != null)
+			request.put("destroy", _destroy.booleanValue());
+		if (_language != null)
+			request.put("language", _language);
+	}
 }
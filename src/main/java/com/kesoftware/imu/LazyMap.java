@@ -0,0 +1,365 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/* A row whose values are kept as the raw bytes read from the server and
+** only decoded when they are first used.
+**
+** Looking up a single value with get(), and so with any of the typed
+** getters such as getString(), decodes just that value. The size of the
+** map and whether it contains a key are known without decoding anything.
+** Anything else, such as iterating over the map or changing it, decodes all
+** of the remaining values first, after which the map behaves exactly like
+** any other Map. The raw bytes are released once every value has been
+** decoded.
+**
+** As looking up a value can change the map, a LazyMap should not be read
+** by more than one thread at a time. Since a value is only decoded when it
+** is used, any failure to decode it, such as an I/O error saving a binary
+** value, is thrown from the Map method which used it as an
+** IllegalStateException wrapping the IMuException.
+*/
+@SuppressWarnings("serial")
+class LazyMap extends Map
+{
+	/* Constructor */
+	public
+	LazyMap(Stream decoder, byte[] data, String[] names, int[] starts, int[] ends, int count)
+	{
+		_decoder = decoder;
+		_data = data;
+		_names = names;
+		_starts = starts;
+		_ends = ends;
+		_count = count;
+		_pending = count;
+
+		/* Only the last value of a repeated key is kept, as it would be by
+		** put(), so that the size is right and get() finds the same value
+		*/
+		for (int i = 0; i < count - 1; i++)
+		{
+			String name = names[i];
+			for (int j = i + 1; j < count; j++)
+			{
+				String other = names[j];
+				if (other == name || (other.hashCode() == name.hashCode() && other.equals(name)))
+				{
+					starts[i] = -1;
+					_pending--;
+					break;
+				}
+			}
+		}
+	}
+
+	/* Methods */
+	@Override
+	public Object
+	get(Object key)
+	{
+		if (_pending > 0)
+		{
+			int i = find(key);
+			if (i >= 0)
+				decode(i);
+		}
+		return super.get(key);
+	}
+
+	@Override
+	public Object
+	getOrDefault(Object key, Object value)
+	{
+		if (containsKey(key))
+			return get(key);
+		return value;
+	}
+
+	@Override
+	public boolean
+	containsKey(Object key)
+	{
+		if (_pending > 0 && find(key) >= 0)
+			return true;
+		return super.containsKey(key);
+	}
+
+	@Override
+	public int
+	size()
+	{
+		return super.size() + _pending;
+	}
+
+	@Override
+	public boolean
+	isEmpty()
+	{
+		return size() == 0;
+	}
+
+	@Override
+	public boolean
+	containsValue(Object value)
+	{
+		decodeAll();
+		return super.containsValue(value);
+	}
+
+	@Override
+	public Set<String>
+	keySet()
+	{
+		decodeAll();
+		return super.keySet();
+	}
+
+	@Override
+	public Collection<Object>
+	values()
+	{
+		decodeAll();
+		return super.values();
+	}
+
+	@Override
+	public Set<java.util.Map.Entry<String,Object>>
+	entrySet()
+	{
+		decodeAll();
+		return super.entrySet();
+	}
+
+	@Override
+	public Object
+	put(String key, Object value)
+	{
+		decodeAll();
+		return super.put(key, value);
+	}
+
+	@Override
+	public void
+	putAll(java.util.Map<? extends String,? extends Object> map)
+	{
+		decodeAll();
+		super.putAll(map);
+	}
+
+	@Override
+	public Object
+	putIfAbsent(String key, Object value)
+	{
+		decodeAll();
+		return super.putIfAbsent(key, value);
+	}
+
+	@Override
+	public Object
+	remove(Object key)
+	{
+		decodeAll();
+		return super.remove(key);
+	}
+
+	@Override
+	public boolean
+	remove(Object key, Object value)
+	{
+		decodeAll();
+		return super.remove(key, value);
+	}
+
+	@Override
+	public Object
+	replace(String key, Object value)
+	{
+		decodeAll();
+		return super.replace(key, value);
+	}
+
+	@Override
+	public boolean
+	replace(String key, Object oldValue, Object newValue)
+	{
+		decodeAll();
+		return super.replace(key, oldValue, newValue);
+	}
+
+	@Override
+	public void
+	replaceAll(BiFunction<? super String,? super Object,? extends Object> function)
+	{
+		decodeAll();
+		super.replaceAll(function);
+	}
+
+	@Override
+	public Object
+	computeIfAbsent(String key, Function<? super String,? extends Object> function)
+	{
+		decodeAll();
+		return super.computeIfAbsent(key, function);
+	}
+
+	@Override
+	public Object
+	computeIfPresent(String key,
+		BiFunction<? super String,? super Object,? extends Object> function)
+	{
+		decodeAll();
+		return super.computeIfPresent(key, function);
+	}
+
+	@Override
+	public Object
+	compute(String key, BiFunction<? super String,? super Object,? extends Object> function)
+	{
+		decodeAll();
+		return super.compute(key, function);
+	}
+
+	@Override
+	public Object
+	merge(String key, Object value,
+		BiFunction<? super Object,? super Object,? extends Object> function)
+	{
+		decodeAll();
+		return super.merge(key, value, function);
+	}
+
+	@Override
+	public void
+	forEach(BiConsumer<? super String,? super Object> action)
+	{
+		decodeAll();
+		super.forEach(action);
+	}
+
+	@Override
+	public void
+	clear()
+	{
+		decodeAll();
+		super.clear();
+	}
+
+	@Override
+	public Object
+	clone()
+	{
+		decodeAll();
+		return super.clone();
+	}
+
+	private final Stream _decoder;
+	private byte[] _data;
+	private final String[] _names;
+	private final int[] _starts;
+	private final int[] _ends;
+	private final int _count;
+	private int _pending;
+
+	/* Serialise as an ordinary Map */
+	private Object
+	writeReplace()
+	{
+		Map map = new Map();
+		map.putAll(this);
+		return map;
+	}
+
+	/* Returns the index of key if its value has not been decoded yet, or -1 */
+	private int
+	find(Object key)
+	{
+		for (int i = 0; i < _count; i++)
+			if (_names[i] == key && _starts[i] >= 0)
+				return i;
+		for (int i = 0; i < _count; i++)
+			if (_starts[i] >= 0 && _names[i].equals(key))
+				return i;
+		return -1;
+	}
+
+	private void
+	decode(int i)
+	{
+		Object value;
+		try
+		{
+			value = _decoder.decode(_data, _starts[i], _ends[i] - _starts[i]);
+		}
+		catch (IMuException e)
+		{
+			/* The bytes were checked when the row was read, so this is
+			** normally a failure to save a binary value to a temporary file.
+			** Map methods cannot throw checked exceptions.
+			*/
+			throw new IllegalStateException(e);
+		}
+		super.put(_names[i], value);
+		_starts[i] = -1;
+		if (--_pending == 0)
+			_data = null;
+	}
+
+	private void
+	decodeAll()
+	{
+		for (int i = 0; _pending > 0 && i < _count; i++)
+			if (_starts[i] >= 0)
+				decode(i);
+	}
+}
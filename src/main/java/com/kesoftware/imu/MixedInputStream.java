@@ -53,12 +53,49 @@ import java.io.InputStream;
 class MixedInputStream extends FilterInputStream
 {
 	private Character bufferedSurrogate = null;
+	private long _count = 0;
 	
 	public
 	MixedInputStream(InputStream in)
 	{
 		super(in);
 	}
+
+	/* The number of bytes read so far */
+	public long
+	getCount()
+	{
+		return _count;
+	}
+
+	@Override
+	public int
+	read() throws IOException
+	{
+		int b = super.read();
+		if (b >= 0)
+			_count++;
+		return b;
+	}
+
+	@Override
+	public int
+	read(byte[] b, int off, int len) throws IOException
+	{
+		int done = super.read(b, off, len);
+		if (done > 0)
+			_count += done;
+		return done;
+	}
+
+	@Override
+	public long
+	skip(long n) throws IOException
+	{
+		long done = super.skip(n);
+		_count += done;
+		return done;
+	}
 	
     public int readChar() throws IOException, IMuException {
         // Return buffered second half of surrogate pair, if any
@@ -47,6 +47,7 @@
 package com.kesoftware.imu;
 
 import java.util.ArrayList;
+import java.util.stream.StreamSupport;
 
 /*!
 ** Provides access to an EMu modlue.
@@ -95,6 +96,42 @@ public class Module extends Handler
 	}
 
 	/* Properties */
+	/*!
+	** @property lazyRows
+	**   A flag controlling whether the records returned by **fetch( )**
+	**   [$<link>(:module:fetch)] are decoded lazily.
+	**
+	**   When set, each record is kept as the bytes read from the server
+	**   together with an index of where each column's value starts. A
+	**   column's value is only decoded when it is first looked up with
+	**   **get( )** or one of `Map`'s typed getters [$<link>(:map:map)], so
+	**   records fetched with many columns but only partly used cost much
+	**   less to read. Iterating over or changing a record decodes all of it.
+	**
+	**   A record should not be read by more than one thread at a time. Lazy
+	**   decoding needs the ``BYTE`` parser [$<link>(:session:parser)] and has
+	**   no effect otherwise.
+	**
+	**   Because values are decoded when they are used rather than during
+	**   **fetch( )**, a value which cannot be decoded, for example because a
+	**   binary value could not be saved to a temporary file, is reported by
+	**   the `Map` method which looked it up. It is thrown as an unchecked
+	**   `IllegalStateException` whose cause is the `IMuException`.
+	**
+	** @since 2.8
+	*/
+	public boolean
+	getLazyRows()
+	{
+		return _lazyRows;
+	}
+
+	public void
+	setLazyRows(boolean lazy)
+	{
+		_lazyRows = lazy;
+	}
+
 	/*
 	** @property table
 	**   The name of the table associated with the `Module` object
@@ -199,7 +236,7 @@ public class Module extends Handler
 	public int
 	addFetchSets(Map sets) throws IMuException
 	{
-		Long count = (Long) call("addFetchSets", sets);
+		Long count = (Long) setUp("addFetchSets", sets);
 		return count.intValue();
 	}
 	
@@ -304,7 +341,7 @@ public class Module extends Handler
 	public int
 	addSearchAliases(Map aliases) throws IMuException
 	{
-		Long count = (Long) call("addSearchAliases", aliases);
+		Long count = (Long) setUp("addSearchAliases", aliases);
 		return count.intValue();
 	}
 	
@@ -400,7 +437,7 @@ public class Module extends Handler
 	public Object
 	addSortSets(Map sets) throws IMuException
 	{
-		Long count = (Long) call("addSortSets", sets);
+		Long count = (Long) setUp("addSortSets", sets);
 		return count.intValue();
 	}
 
@@ -585,6 +622,250 @@ public class Module extends Handler
 		return doFetch(pos._flag, pos._offset, count, null);
 	}
 
+	/*!
+	** Fetches ``count`` records from the position described by a combination
+	** of ``flag`` and ``offset``, passing each record to ``handler`` as soon
+	** as it has been read.
+	**
+	** The records are not collected into the result so only one record
+	** needs to be held in memory at a time, however many are fetched.
+	**
+	** @param flag
+	**   The position to start fetching records from.
+	**   Must be one of:
+	**     ``start``
+	**     ``current``
+	**     ``end``
+	**
+	** @param offset
+	**   The position relative to ``flag`` to start fetching from.
+	**
+	** @param count
+	**   The number of records to fetch.
+	**   A ``count`` of less than ``0`` causes all the remaining records in the
+	**   result set to be returned.
+	**
+	** @param columns
+	**   A `String` containing the names of the columns to be returned for each
+	**   record or the name of a column set which has been registered previously
+	**   using **addFetchSet( )** [$<link>(:module:addFetchSet)].
+	**
+	** @param handler
+	**   The `RowHandler` [$<link>(:rowhandler)] to pass each record to.
+	**
+	** @returns
+	**   A `ModuleFetchResult` object. The **count** property holds the number
+	**   of records passed to ``handler`` and **rows** is empty.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred or ``handler`` threw an exception.
+	**
+	** @since 2.8
+	*/
+	public ModuleFetchResult
+	fetch(String flag, long offset, int count, String columns, RowHandler handler)
+		throws IMuException
+	{
+		return doFetch(flag, offset, count, columns, handler);
+	}
+
+	/*!
+	** Fetches ``count`` records from the position described by a combination
+	** of ``flag`` and ``offset``, passing each record to ``handler`` as soon
+	** as it has been read.
+	**
+	** @param flag
+	**   The position to start fetching records from.
+	**
+	** @param offset
+	**   The position relative to ``flag`` to start fetching from.
+	**
+	** @param count
+	**   The number of records to fetch.
+	**
+	** @param columns
+	**   An array of `String`\s containing the names of the columns to be
+	**   returned for each record.
+	**
+	** @param handler
+	**   The `RowHandler` [$<link>(:rowhandler)] to pass each record to.
+	**
+	** @returns
+	**   A `ModuleFetchResult` object with an empty **rows** property.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred or ``handler`` threw an exception.
+	**
+	** @since 2.8
+	*/
+	public ModuleFetchResult
+	fetch(String flag, long offset, int count, String[] columns, RowHandler handler)
+		throws IMuException
+	{
+		return doFetch(flag, offset, count, columns, handler);
+	}
+
+	public ModuleFetchResult
+	fetch(ModuleFetchPosition pos, int count, String columns, RowHandler handler)
+		throws IMuException
+	{
+		return doFetch(pos._flag, pos._offset, count, columns, handler);
+	}
+
+	public ModuleFetchResult
+	fetch(ModuleFetchPosition pos, int count, String[] columns, RowHandler handler)
+		throws IMuException
+	{
+		return doFetch(pos._flag, pos._offset, count, columns, handler);
+	}
+
+	/*!
+	** Fetches ``count`` records from the position described by a combination
+	** of ``flag`` and ``offset``, decoding each one directly into an instance
+	** of the record class ``type``.
+	**
+	** Each component of ``type`` is filled in from the column with the same
+	** name. The columns fetched are the names of the components. A component
+	** which is itself a record, or an array of records, fetches an
+	** attachment column with the nested record's components, for example
+	** ``image.(irn, MulTitle)``.
+	**
+	** Components may be primitive numbers or booleans (or their boxed
+	** types), `String`\s, `InputStream`\s for binary values, `Map`\s or
+	** `Object`\s for values read in full, other records, or arrays of any of
+	** these for table columns. Values are converted in the same way as by
+	** `Map`'s typed getters [$<link>(:map:map)]. The decoding for each record
+	** class is worked out once and reused, and no `Map` is built for each
+	** record.
+	**
+	** @param flag
+	**   The position to start fetching records from.
+	**
+	** @param offset
+	**   The position relative to ``flag`` to start fetching from.
+	**
+	** @param count
+	**   The number of records to fetch.
+	**
+	** @param type
+	**   The record class to decode each record into.
+	**
+	** @returns
+	**   A `RecordFetchResult` [$<link>(:recordfetchresult)] object.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred, ``type`` is not a record class or
+	**   has a component of an unsupported type, or a value could not be
+	**   converted.
+	**
+	** @since 2.8
+	*/
+	public <R> RecordFetchResult<R>
+	fetch(String flag, long offset, int count, Class<R> type)
+		throws IMuException
+	{
+		return doFetch(flag, offset, count, null, type);
+	}
+
+	/*!
+	** As above but fetching the columns given rather than those named by the
+	** components of ``type``. This allows modifiers and other column
+	** specifications to be used. Columns without a component of the same
+	** name are ignored.
+	**
+	** @param flag
+	**   The position to start fetching records from.
+	**
+	** @param offset
+	**   The position relative to ``flag`` to start fetching from.
+	**
+	** @param count
+	**   The number of records to fetch.
+	**
+	** @param columns
+	**   An array of `String`\s containing the names of the columns to be
+	**   returned for each record.
+	**
+	** @param type
+	**   The record class to decode each record into.
+	**
+	** @returns
+	**   A `RecordFetchResult` [$<link>(:recordfetchresult)] object.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred, ``type`` is not a record class or
+	**   has a component of an unsupported type, or a value could not be
+	**   converted.
+	**
+	** @since 2.8
+	*/
+	public <R> RecordFetchResult<R>
+	fetch(String flag, long offset, int count, String[] columns, Class<R> type)
+		throws IMuException
+	{
+		return doFetch(flag, offset, count, columns, type);
+	}
+
+	public <R> RecordFetchResult<R>
+	fetch(ModuleFetchPosition pos, int count, Class<R> type)
+		throws IMuException
+	{
+		return doFetch(pos._flag, pos._offset, count, null, type);
+	}
+
+	public <R> RecordFetchResult<R>
+	fetch(ModuleFetchPosition pos, int count, String[] columns, Class<R> type)
+		throws IMuException
+	{
+		return doFetch(pos._flag, pos._offset, count, columns, type);
+	}
+
+	/*!
+	** Fetches ``count`` records from the position described by a combination
+	** of ``flag`` and ``offset`` into the columns declared in ``result``.
+	**
+	** Each column's values are converted as they are read and stored in a
+	** single primitive array or string dictionary, without building a `Map`
+	** for each record. The records are appended to any already held by
+	** ``result`` so a series of fetches can gather a large result set into
+	** one object.
+	**
+	** @param flag
+	**   The position to start fetching records from.
+	**
+	** @param offset
+	**   The position relative to ``flag`` to start fetching from.
+	**
+	** @param count
+	**   The number of records to fetch.
+	**
+	** @param result
+	**   A `ColumnarFetchResult` [$<link>(:columnarfetchresult)] object with
+	**   the columns to fetch declared.
+	**
+	** @returns
+	**   ``result``, with its **hits** property updated.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred or a value could not be converted to
+	**   the type of its column.
+	**
+	** @since 2.8
+	*/
+	public ColumnarFetchResult
+	fetch(String flag, long offset, int count, ColumnarFetchResult result)
+		throws IMuException
+	{
+		return doColumnarFetch(flag, offset, count, result);
+	}
+
+	public ColumnarFetchResult
+	fetch(ModuleFetchPosition pos, int count, ColumnarFetchResult result)
+		throws IMuException
+	{
+		return doColumnarFetch(pos._flag, pos._offset, count, result);
+	}
+
 	/*!
 	** Serches for a record with the key value ``key``.
 	**
@@ -601,7 +882,7 @@ public class Module extends Handler
 	public long
 	findKey(long key) throws IMuException
 	{
-		return (Long) call("findKey", key);
+		return (Long) search("findKey", key);
 	}
 
 	/*!
@@ -619,7 +900,7 @@ public class Module extends Handler
 	public long
 	findKeys(long[] keys) throws IMuException
 	{
-		return (Long) call("findKeys", keys);
+		return (Long) search("findKeys", keys);
 	}
 
 	/*!
@@ -637,7 +918,7 @@ public class Module extends Handler
 	public long
 	findKeys(ArrayList<Long> keys) throws IMuException
 	{
-		return (Long) call("findKeys", keys.toArray());
+		return (Long) search("findKeys", keys.toArray());
 	}
 
 	/*!
@@ -655,7 +936,7 @@ public class Module extends Handler
 	public long
 	findTerms(Terms terms) throws IMuException
 	{
-		return (Long) call("findTerms", terms.toArray());
+		return (Long) search("findTerms", terms.toArray());
 	}
 
 	/*!
@@ -673,7 +954,7 @@ public class Module extends Handler
 	public long
 	findWhere(String where) throws IMuException
 	{
-		return (Long) call("findWhere", where);
+		return (Long) search("findWhere", where);
 	}
 
 	public Map
@@ -742,7 +1023,7 @@ public class Module extends Handler
 	{
 		Map args = new Map();
 		args.put("file", file);
-		return (Long) call("restoreFromFile", args);
+		return (Long) search("restoreFromFile", args);
 	}
 
 	/*!
@@ -767,7 +1048,7 @@ public class Module extends Handler
 	{
 		Map args = new Map();
 		args.put("file", file);
-		return (Long) call("restoreFromTemp", args);
+		return (Long) search("restoreFromTemp", args);
 	}
 	
 	/*!
@@ -1029,6 +1310,54 @@ public class Module extends Handler
 		return doSort(keys.toArray(), null);
 	}
 
+	/*!
+	** Returns a stream of the records in the current result set, from the
+	** first to the last.
+	**
+	** The records are fetched a page at a time as the stream is read, by a
+	** `ModuleSpliterator` [$<link>(:modulespliterator)]. If the stream is
+	** made parallel, ranges of the records are fetched at the same time on
+	** separate sessions, each repeating this module's search. The stream
+	** should be closed if it is not read to the end so that these sessions
+	** are disconnected.
+	**
+	** The records are fetched by offset so the current record is changed.
+	**
+	** @param columns
+	**   A `String` containing the list of columns to fetch, or ``null`` for
+	**   the server's default.
+	**
+	** @returns
+	**   A `java.util.stream.Stream` of `Map` objects
+	**   [$<link>(:map:map)], one for each record.
+	**
+	** @since 2.8
+	*/
+	public java.util.stream.Stream<Map>
+	stream(String columns)
+	{
+		return doStream(columns);
+	}
+
+	/*!
+	** Returns a stream of the records in the current result set.
+	** Passed as an array.
+	**
+	** @param columns
+	**   An array of `String`\s containing the columns to fetch.
+	**
+	** @returns
+	**   A `java.util.stream.Stream` of `Map` objects
+	**   [$<link>(:map:map)], one for each record.
+	**
+	** @since 2.8
+	*/
+	public java.util.stream.Stream<Map>
+	stream(String[] columns)
+	{
+		return doStream(columns);
+	}
+
 	public ModuleFetchResult
 	update(String flag, long offset, int count, Map values, String columns)
 		throws IMuException
@@ -1086,6 +1415,93 @@ public class Module extends Handler
 	}
 
 	protected String _table;
+	protected boolean _lazyRows;
+
+	/* The calls which set up the server-side object and the calls which made
+	** its current result set, each as the method name and parameters, so
+	** they can be repeated on another connection
+	*/
+	private ArrayList<Object[]> _setUp;
+	private ArrayList<Object[]> _search;
+	private long _hits;
+
+	/* The number of records found by the most recent search, or -1 if no
+	** search has been made
+	*/
+	synchronized long
+	getSearchHits()
+	{
+		return _hits;
+	}
+
+	/* Whether the number of records found by the most recent search is
+	** exact, rather than an estimate as for findTerms() and findWhere()
+	*/
+	synchronized boolean
+	isSearchExact()
+	{
+		if (_search.isEmpty())
+			return false;
+		String method = (String) _search.get(0)[0];
+		return ! method.equals("findTerms") && ! method.equals("findWhere");
+	}
+
+	/* Repeats the set up and most recent search made by this module on
+	** another module, returning the number of records it found, or -1 if
+	** no search has been made
+	*/
+	synchronized long
+	replay(Module module) throws IMuException
+	{
+		for (Object[] call : _setUp)
+			module.setUp((String) call[0], call[1]);
+		if (_search.isEmpty())
+			return -1;
+		Object[] first = _search.get(0);
+		long hits = (Long) module.search((String) first[0], first[1]);
+		for (int i = 1; i < _search.size(); i++)
+			module.refine((String) _search.get(i)[0], _search.get(i)[1]);
+		return hits;
+	}
+
+	/* Calls a method which sets up the server-side object */
+	private Object
+	setUp(String method, Object params) throws IMuException
+	{
+		Object result = call(method, params);
+		synchronized (this)
+		{
+			_setUp.add(new Object[] { method, params });
+		}
+		return result;
+	}
+
+	/* Calls a method which replaces the result set */
+	private Object
+	search(String method, Object params) throws IMuException
+	{
+		Object result = call(method, params);
+		synchronized (this)
+		{
+			_search.clear();
+			_search.add(new Object[] { method, params });
+			_hits = (Long) result;
+		}
+		return result;
+	}
+
+	/* Calls a method which changes the order or contents of the result set */
+	private Object
+	refine(String method, Object params) throws IMuException
+	{
+		Object result = call(method, params);
+		synchronized (this)
+		{
+			if (! _search.isEmpty())
+				_search.add(new Object[] { method, params });
+		}
+		return result;
+	}
 	
 	protected int
 	doAddFetchSet(String name, Object columns) throws IMuException
@@ -1093,7 +1509,7 @@ public class Module extends Handler
 		Map args = new Map();
 		args.put("name", name);
 		args.put("columns", columns);
-		Long count = (Long) call("addFetchSet", args);
+		Long count = (Long) setUp("addFetchSet", args);
 		return count.intValue();
 	}
 	
@@ -1103,7 +1519,7 @@ public class Module extends Handler
 		Map args = new Map();
 		args.put("name", name);
 		args.put("columns", columns);
-		Long count = (Long) call("addSearchAlias", args);
+		Long count = (Long) setUp("addSearchAlias", args);
 		return count.intValue();
 	}
 	
@@ -1113,7 +1529,7 @@ public class Module extends Handler
 		Map args = new Map();
 		args.put("name", name);
 		args.put("columns", keys);
-		Long count = (Long) call("addSortSet", args);
+		Long count = (Long) setUp("addSortSet", args);
 		return count.intValue();
 	}
 	
@@ -1127,9 +1543,58 @@ public class Module extends Handler
 		args.put("count", count);
 		if (columns != null)
 			args.put("columns", columns);
+		if (_lazyRows)
+			return makeFetchResult(call("fetch", args, FETCH_ROWS, null, true));
 		return makeFetchResult(call("fetch", args));
 	}
 
+	protected ModuleFetchResult
+	doFetch(String flag, long offset, int count, Object columns,
+		RowHandler handler) throws IMuException
+	{
+		Map args = new Map();
+		args.put("flag", flag);
+		args.put("offset", offset);
+		args.put("count", count);
+		if (columns != null)
+			args.put("columns", columns);
+
+		int[] handled = { 0 };
+		Object data = call("fetch", args, FETCH_ROWS, (group, row) ->
+		{
+			handled[0]++;
+			handler.handle((Map) row);
+		}, _lazyRows);
+		ModuleFetchResult result = makeFetchResult(data);
+		result._count = handled[0];
+		return result;
+	}
+
+	protected <R> RecordFetchResult<R>
+	doFetch(String flag, long offset, int count, Object columns, Class<R> type)
+		throws IMuException
+	{
+		RecordDecoder<R> decoder = RecordDecoder.forType(type);
+		Map args = new Map();
+		args.put("flag", flag);
+		args.put("offset", offset);
+		args.put("count", count);
+		args.put("columns", columns != null ? columns : decoder.getColumns());
+		return call("fetch", args, decoder::readFetch);
+	}
+
+	protected ColumnarFetchResult
+	doColumnarFetch(String flag, long offset, int count, ColumnarFetchResult result)
+		throws IMuException
+	{
+		Map args = new Map();
+		args.put("flag", flag);
+		args.put("offset", offset);
+		args.put("count", count);
+		args.put("columns", result.getColumns());
+		return call("fetch", args, result::readFetch);
+	}
+
 	protected Map
 	doInsert(Map values, Object columns) throws IMuException
 	{
@@ -1158,7 +1623,15 @@ public class Module extends Handler
 		args.put("columns", columns);
 		if (flags != null)
 			args.put("flags", flags);
-		return makeSortResult(call("sort", args));
+		return makeSortResult(refine("sort", args));
+	}
+
+	protected java.util.stream.Stream<Map>
+	doStream(Object columns)
+	{
+		ModuleSpliterator spliterator = new ModuleSpliterator(this, columns);
+		return StreamSupport.stream(spliterator, false)
+			.onClose(spliterator::close);
 	}
 	
 	protected ModuleFetchResult
@@ -1181,11 +1654,31 @@ public class Module extends Handler
 		_name = "Module";
 		_create = table;
 		
+		_lazyRows = false;
 		_table = table;
+		_setUp = new ArrayList<Object[]>();
+		_search = new ArrayList<Object[]>();
+		_hits = -1;
 	}
 
 	protected ModuleFetchResult
 	makeFetchResult(Object raw)
+	{
+		return newFetchResult(raw);
+	}
+	
+	protected ModuleSortResult
+	makeSortResult(Object raw)
+	{
+		return newSortResult(raw);
+	}
+
+	/* The location of the records in a fetch response */
+	static final String[] FETCH_ROWS = { "result", "rows" };
+
+	/* Shared with AsyncModule */
+	static ModuleFetchResult
+	newFetchResult(Object raw)
 	{
 		Map data = (Map) raw;
 		
@@ -1196,8 +1689,8 @@ public class Module extends Handler
 		return result;
 	}
 	
-	protected ModuleSortResult
-	makeSortResult(Object raw)
+	static ModuleSortResult
+	newSortResult(Object raw)
 	{
 		if (raw == null)
 			return null;
@@ -1212,7 +1705,7 @@ public class Module extends Handler
 			term._value = map.getString("value");
 			term._count = map.getLong("count");
 			if (map.containsKey("list"))
-				term._nested = makeSortResult(map.get("list"));
+				term._nested = newSortResult(map.get("list"));
 			else
 				term._nested = null;
 			
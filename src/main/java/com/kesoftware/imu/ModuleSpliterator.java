@@ -0,0 +1,353 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.ArrayList;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/*!
+** A `Spliterator` over the records of a `Module` [$<link>(:module:module)]'s
+** result set, fetching them a page at a time.
+**
+** This is normally used through the stream returned by the `Module`'s
+** **stream( )** [$<link>(:module:stream)] method. The records are fetched
+** by offset from the start of the result set, so the module's current
+** record is changed.
+**
+** If the module has made a search, the spliterator can be split into
+** ranges of offsets, as a parallel stream does. Each range split off
+** fetches its records using a new session, created by **createSession( )**
+** [$<link>(:modulespliterator:createSession)], on which the module's search
+** is repeated as for a `ParallelExporter` [$<link>(:parallelexporter)].
+** The ranges are therefore fetched by separate server processes at the
+** same time. A range's session is disconnected when it has been read and
+** any left are disconnected by **close( )**
+** [$<link>(:modulespliterator:close)].
+**
+** The spliterator reports its exact size (``SIZED`` and ``SUBSIZED``) only
+** if the module's search gives an exact number of records, as
+** **findKey( )**, **findKeys( )** and the **restoreFrom...( )** methods do.
+** The numbers returned by **findTerms( )** and **findWhere( )** are
+** estimates, so the size is only estimated from them and the last range
+** continues until the server has no more records.
+**
+** Errors while fetching records are thrown as an `IllegalStateException`
+** whose cause is the `IMuException`.
+**
+** @usage
+**   com.kesoftware.imu.ModuleSpliterator
+** @end
+**
+** @since 2.8
+*/
+public class ModuleSpliterator implements Spliterator<Map>, AutoCloseable
+{
+	/* Constructor */
+	/*!
+	** Creates a `ModuleSpliterator` over the whole of the result set of
+	** ``module``.
+	**
+	** @param module
+	**   The `Module` whose records are to be read.
+	**
+	** @param columns
+	**   The columns to fetch for each record, as a `String` or an array of
+	**   `String`\s, or ``null`` for the server's default.
+	*/
+	public
+	ModuleSpliterator(Module module, Object columns)
+	{
+		_module = module;
+		_columns = columns;
+		_pageSize = 250;
+		_hits = module.getSearchHits();
+		_exact = _hits >= 0 && module.isSearchExact();
+		_sessions = new ArrayList<Session>();
+		_root = this;
+
+		_fetcher = module;
+		_position = 0;
+		_end = _exact ? _hits : -1;
+		_rows = null;
+		_index = 0;
+		_done = false;
+	}
+
+	/* Properties */
+	/*!
+	** @property pageSize
+	**   The number of records fetched by each request. The default is
+	**   ``250``.
+	*/
+	public int
+	getPageSize()
+	{
+		return _pageSize;
+	}
+
+	public void
+	setPageSize(int size)
+	{
+		_pageSize = Math.max(1, size);
+	}
+
+	/* Methods */
+	@Override
+	public int
+	characteristics()
+	{
+		int flags = ORDERED | NONNULL;
+		if (_exact)
+			flags |= SIZED | SUBSIZED;
+		return flags;
+	}
+
+	@Override
+	public long
+	estimateSize()
+	{
+		long buffered = _rows == null ? 0 : _rows.length - _index;
+		if (_done)
+			return buffered;
+		if (_end >= 0)
+			return _end - _position + buffered;
+		if (_hits < 0)
+			return Long.MAX_VALUE;
+		return Math.max(0, _hits - _position) + buffered;
+	}
+
+	@Override
+	public boolean
+	tryAdvance(Consumer<? super Map> action)
+	{
+		if (_rows == null || _index >= _rows.length)
+		{
+			if (! fetch())
+				return false;
+		}
+		action.accept(_rows[_index++]);
+		return true;
+	}
+
+	@Override
+	public Spliterator<Map>
+	trySplit()
+	{
+		// Only a range which has not been started is split, and only if the
+		// search can be repeated on another session
+		if (_hits < 0 || _done || (_rows != null && _index < _rows.length))
+			return null;
+		long end = _end >= 0 ? _end : _hits;
+		long pages = (end - _position) / _pageSize;
+		if (pages < MIN_SPLIT_PAGES * 2)
+			return null;
+
+		long middle = _position + (pages / 2) * _pageSize;
+		ModuleSpliterator prefix = new ModuleSpliterator(this, _position, middle);
+		_position = middle;
+		return prefix;
+	}
+
+	/*!
+	** Disconnects any sessions created for ranges which have not been read
+	** to the end.
+	*/
+	@Override
+	public void
+	close()
+	{
+		ArrayList<Session> sessions;
+		synchronized (_sessions)
+		{
+			sessions = new ArrayList<Session>(_sessions);
+			_sessions.clear();
+		}
+		for (Session session : sessions)
+			session.disconnect();
+	}
+
+	/*!
+	** Creates a new session to fetch a range of records with.
+	**
+	** By default this connects to the same host and port, with the same
+	** settings, as the module's session. The **binarySink**
+	** [$<link>(:session:binarySink)] is not copied, since the sessions may
+	** be read at the same time by different threads. It can be overridden
+	** to log in, set a sink or configure each session differently. It is
+	** called from the thread which will first use the session.
+	**
+	** @returns
+	**   A new `Session` [$<link>(:session:session)].
+	**
+	** @throws Exception
+	**   If the session could not be created.
+	*/
+	protected Session
+	createSession() throws Exception
+	{
+		return _module.getSession().copy();
+	}
+
+	/* The fewest pages each range is split into */
+	private static final int MIN_SPLIT_PAGES = 4;
+
+	private final Module _module;
+	private final Object _columns;
+	private int _pageSize;
+	private final long _hits;
+	private final boolean _exact;
+	// Shared by all the ranges split from the same spliterator
+	private final ArrayList<Session> _sessions;
+	private final ModuleSpliterator _root;
+
+	// The module used to fetch this range, null until a session is created
+	private Module _fetcher;
+	private long _position;
+	private long _end;
+	private Map[] _rows;
+	private int _index;
+	private boolean _done;
+
+	/* Creates a range split off from another */
+	private
+	ModuleSpliterator(ModuleSpliterator other, long start, long end)
+	{
+		_module = other._module;
+		_columns = other._columns;
+		_pageSize = other._pageSize;
+		_hits = other._hits;
+		_exact = other._exact;
+		_sessions = other._sessions;
+		_root = other._root;
+
+		_fetcher = null;
+		_position = start;
+		_end = end;
+		_rows = null;
+		_index = 0;
+		_done = false;
+	}
+
+	/* Fetches the next page, returning false if there are no more records */
+	private boolean
+	fetch()
+	{
+		if (_done)
+			return false;
+		int count = _pageSize;
+		if (_end >= 0)
+			count = (int) Math.min(count, _end - _position);
+		if (count <= 0)
+			return finish();
+
+		Map[] rows;
+		try
+		{
+			if (_fetcher == null)
+				_fetcher = connect();
+			rows = _fetcher.doFetch("start", _position, count, _columns).getRows();
+		}
+		catch (IMuException e)
+		{
+			finish();
+			throw new IllegalStateException(e);
+		}
+		if (rows == null)
+			rows = new Map[0];
+		_rows = rows;
+		_index = 0;
+		_position += rows.length;
+		if (rows.length < count)
+			finish();
+		return rows.length > 0;
+	}
+
+	/* Creates a session for this range and repeats the search on it */
+	private Module
+	connect() throws IMuException
+	{
+		Session session;
+		try
+		{
+			session = _root.createSession();
+		}
+		catch (Exception e)
+		{
+			throw new IMuException("ModuleSpliteratorSession", e);
+		}
+		synchronized (_sessions)
+		{
+			_sessions.add(session);
+		}
+
+		Module module = new Module(_module._table, session);
+		module.setLanguage(_module.getLanguage());
+		module.setLazyRows(_module.getLazyRows());
+		long hits = _module.replay(module);
+		if (hits != _hits)
+			throw new IMuException("ModuleSpliteratorHits", _hits, hits);
+		return module;
+	}
+
+	/* Marks the range as read, disconnecting its session if it has one */
+	private boolean
+	finish()
+	{
+		_done = true;
+		if (_fetcher != null && _fetcher != _module)
+		{
+			Session session = _fetcher.getSession();
+			synchronized (_sessions)
+			{
+				_sessions.remove(session);
+			}
+			session.disconnect();
+		}
+		return false;
+	}
+}
@@ -143,6 +143,49 @@ public class Modules extends Handler
 		return doFetch(pos._flag, pos._offset, count, null);
 	}
 
+	/*!
+	** Fetches ``count`` records from the position described by a combination
+	** of ``flag`` and ``offset``, passing each record to ``handler`` as soon
+	** as it has been read rather than collecting them into the result.
+	**
+	** @param flag
+	**   The position to start fetching records from.
+	**
+	** @param offset
+	**   The position relative to ``flag`` to start fetching from.
+	**
+	** @param count
+	**   The number of records to fetch.
+	**
+	** @param columns
+	**   The names of the columns to be returned for each record.
+	**
+	** @param handler
+	**   The `ModulesRowHandler` [$<link>(:modulesrowhandler)] to pass each
+	**   record to.
+	**
+	** @returns
+	**   A `ModulesFetchResult` object. The **rows** of each module are empty.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred or ``handler`` threw an exception.
+	**
+	** @since 2.8
+	*/
+	public ModulesFetchResult
+	fetch(String flag, long offset, int count, String columns,
+		ModulesRowHandler handler) throws IMuException
+	{
+		return doFetch(flag, offset, count, columns, handler);
+	}
+
+	public ModulesFetchResult
+	fetch(ModulesFetchPosition pos, int count, String columns,
+		ModulesRowHandler handler) throws IMuException
+	{
+		return doFetch(pos._flag, pos._offset, count, columns, handler);
+	}
+
 	public long
 	findAttachments(String table, String column, long key) throws IMuException
 	{
@@ -300,7 +343,30 @@ public class Modules extends Handler
 		if (columns != null)
 			args.put("columns", columns);
 		Map data = (Map) call("fetch", args);
-		
+		return makeFetchResult(data);
+	}
+
+	protected ModulesFetchResult
+	doFetch(String flag, long offset, int count, String columns,
+		ModulesRowHandler handler) throws IMuException
+	{
+		Map args = new Map();
+		args.put("flag", flag);
+		args.put("offset", offset);
+		args.put("count", count);
+		if (columns != null)
+			args.put("columns", columns);
+		Map data = (Map) call("fetch", args, FETCH_ROWS, (group, row) ->
+			handler.handle(group, (Map) row));
+		return makeFetchResult(data);
+	}
+
+	/* The location of the records in a fetch response */
+	private static final String[] FETCH_ROWS = { "result", "modules", "*", "rows" };
+
+	private ModulesFetchResult
+	makeFetchResult(Map data)
+	{
 		ModulesFetchResult result = new ModulesFetchResult();
 		result._count = data.getInt("count");
 		
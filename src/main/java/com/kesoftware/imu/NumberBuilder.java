@@ -0,0 +1,197 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+/* Accumulates the value of a number token as its characters are read.
+**
+** Integers are built directly in a long and most decimal values are
+** computed exactly from their digits without creating any objects. The
+** text of the number is also kept, in a reused buffer, so that values
+** which cannot be computed exactly (very long mantissas, large exponents or
+** unusual characters) fall back to the standard parsing methods.
+*/
+final class NumberBuilder
+{
+	/* Methods */
+	public void
+	start()
+	{
+		_text.setLength(0);
+		_mantissa = 0;
+		_digits = 0;
+		_scale = 0;
+		_exponent = 0;
+		_exponentDigits = 0;
+		_negative = false;
+		_negativeExponent = false;
+		_fraction = false;
+		_inExponent = false;
+		_real = false;
+		_inexact = false;
+	}
+
+	public void
+	append(char c)
+	{
+		_text.append(c);
+		if (c >= '0' && c <= '9')
+		{
+			int d = c - '0';
+			if (_inExponent)
+			{
+				if (_exponent < 100000)
+					_exponent = _exponent * 10 + d;
+				_exponentDigits++;
+			}
+			else if (_mantissa <= (Long.MAX_VALUE - d) / 10)
+			{
+				_mantissa = _mantissa * 10 + d;
+				_digits++;
+				if (_fraction)
+					_scale++;
+			}
+			else
+				_inexact = true;
+		}
+		else if (c == '-' || c == '+')
+		{
+			/* Signs are only allowed at the start of the mantissa or the
+			** exponent. Anything else is left for the standard parsing
+			** methods to reject.
+			*/
+			int length = _text.length();
+			if (length == 1)
+				_negative = c == '-';
+			else if (_inExponent && length == _exponentStart + 1)
+				_negativeExponent = c == '-';
+			else
+				_inexact = true;
+		}
+		else if (c == '.' && ! _fraction && ! _inExponent)
+		{
+			_fraction = true;
+			_real = true;
+		}
+		else if ((c == 'e' || c == 'E') && ! _inExponent)
+		{
+			_inExponent = true;
+			_exponentStart = _text.length();
+			_real = true;
+		}
+		else
+			_inexact = true;
+	}
+
+	/* Properties */
+	/* Whether the number has a fractional part or exponent */
+	public boolean
+	isReal()
+	{
+		return _real;
+	}
+
+	public long
+	longValue()
+	{
+		if (_inexact || _digits == 0)
+			return Long.parseLong(_text.toString());
+		return _negative ? -_mantissa : _mantissa;
+	}
+
+	public double
+	doubleValue()
+	{
+		// An exponent with no digits, such as "1.5e", is an error
+		if (_inexact || _digits == 0 || _mantissa > MAX_EXACT ||
+			(_inExponent && _exponentDigits == 0))
+			return Double.parseDouble(_text.toString());
+
+		int power = (_negativeExponent ? -_exponent : _exponent) - _scale;
+		double value;
+		if (power == 0)
+			value = _mantissa;
+		else if (power > 0 && power < POWERS.length)
+			value = _mantissa * POWERS[power];
+		else if (power < 0 && -power < POWERS.length)
+			value = _mantissa / POWERS[-power];
+		else
+			return Double.parseDouble(_text.toString());
+		return _negative ? -value : value;
+	}
+
+	@Override
+	public String
+	toString()
+	{
+		return _text.toString();
+	}
+
+	/* Integers up to 2^53 and powers of ten up to 10^22 are represented
+	** exactly as doubles, so a single multiplication or division of the two
+	** is correctly rounded.
+	*/
+	private static final long MAX_EXACT = 1L << 53;
+	private static final double[] POWERS =
+	{
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final StringBuilder _text = new StringBuilder();
+	private long _mantissa;
+	private int _digits;
+	private int _scale;
+	private int _exponent;
+	private int _exponentDigits;
+	private int _exponentStart;
+	private boolean _negative;
+	private boolean _negativeExponent;
+	private boolean _fraction;
+	private boolean _inExponent;
+	private boolean _real;
+	private boolean _inexact;
+}
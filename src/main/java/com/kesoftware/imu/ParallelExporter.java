@@ -0,0 +1,424 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.TreeMap;
+
+/*!
+** Fetches every record found by a `Module` [$<link>(:module:module)] search
+** using several sessions at once.
+**
+** A single session is served by one server process, which limits how
+** quickly a large result set can be read. A `ParallelExporter` opens a
+** number of new sessions, repeats the module's most recent search (and any
+** fetch sets, search aliases, sort sets and sorts used with it) on each of
+** them and then has each session fetch a different share of the pages of
+** the result. When the server runs several processes the pages are
+** fetched concurrently.
+**
+** The pages are split by offset, so each session must see the records in
+** the same order. This is the case when the data does not change during
+** the export. If it might, the search should be sorted. The number of
+** records found by each session is checked and the export fails if they
+** differ.
+**
+** All the records are passed to a `RowHandler` [$<link>(:rowhandler)] by
+** the thread calling **export( )** [$<link>(:parallelexporter:export)],
+** either in the order of the result set or, if the **ordered**
+** [$<link>(:parallelexporter:ordered)] property is ``false``, as soon as
+** each page arrives. Only a few pages per session are held in memory at
+** any time.
+**
+** The new sessions connect to the same host and port as the module's
+** session. If the server requires a login, **createSession( )**
+** [$<link>(:parallelexporter:createSession)] should be overridden to log
+** each one in.
+**
+** @usage
+**   com.kesoftware.imu.ParallelExporter
+** @end
+**
+** @since 2.8
+*/
+public class ParallelExporter
+{
+	/* Constructor */
+	/*!
+	** Creates a `ParallelExporter` for the records found by ``module``.
+	**
+	** @param module
+	**   The `Module` whose most recent search is to be exported.
+	**
+	** @param sessions
+	**   The number of sessions to fetch the records with.
+	*/
+	public
+	ParallelExporter(Module module, int sessions)
+	{
+		_module = module;
+		_sessions = Math.max(1, sessions);
+		_columns = null;
+		_ordered = true;
+		_pageSize = 250;
+		_lock = new Object();
+	}
+
+	/* Properties */
+	/*!
+	** @property columns
+	**   The columns to fetch for each record, as a `String` or an array of
+	**   `String`\s in any of the forms accepted by **fetch( )**
+	**   [$<link>(:module:fetch)].
+	*/
+	public Object
+	getColumns()
+	{
+		return _columns;
+	}
+
+	public void
+	setColumns(String columns)
+	{
+		_columns = columns;
+	}
+
+	public void
+	setColumns(String[] columns)
+	{
+		_columns = columns;
+	}
+
+	/*!
+	** @property ordered
+	**   A flag controlling whether records are passed to the handler in the
+	**   order of the result set. If ``false`` each page is passed on as soon
+	**   as it has been fetched. The default is ``true``.
+	*/
+	public boolean
+	getOrdered()
+	{
+		return _ordered;
+	}
+
+	public void
+	setOrdered(boolean ordered)
+	{
+		_ordered = ordered;
+	}
+
+	/*!
+	** @property pageSize
+	**   The number of records fetched by each request. The default is
+	**   ``250``.
+	*/
+	public int
+	getPageSize()
+	{
+		return _pageSize;
+	}
+
+	public void
+	setPageSize(int size)
+	{
+		_pageSize = Math.max(1, size);
+	}
+
+	/*!
+	** @property sessions
+	**   The number of sessions used to fetch the records.
+	*/
+	public int
+	getSessions()
+	{
+		return _sessions;
+	}
+
+	/* Methods */
+	/*!
+	** Fetches all of the records found by the module's most recent search
+	** and passes them to ``handler``.
+	**
+	** @param handler
+	**   The `RowHandler` [$<link>(:rowhandler)] to pass each record to.
+	**
+	** @returns
+	**   The number of records passed to the handler.
+	**
+	** @throws IMuException
+	**   If the module has not made a search, the sessions found different
+	**   numbers of records, a session could not be created, a server-side
+	**   error occurred or the handler threw an exception. The other sessions
+	**   are stopped and no more records are passed to the handler.
+	*/
+	public synchronized long
+	export(RowHandler handler) throws IMuException
+	{
+		synchronized (_lock)
+		{
+			_pages = new TreeMap<Integer,Map[]>();
+			_next = 0;
+			_hits = -1;
+			_running = _sessions;
+			_stopped = false;
+			_failure = null;
+		}
+
+		Thread[] threads = new Thread[_sessions];
+		for (int i = 0; i < threads.length; i++)
+		{
+			int index = i;
+			threads[i] = new Thread(() -> work(index), "imu-export-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+
+		long count = 0;
+		try
+		{
+			Map[] rows;
+			while ((rows = nextPage()) != null)
+			{
+				for (Map row : rows)
+				{
+					handler.handle(row);
+					count++;
+				}
+			}
+		}
+		catch (IMuException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new IMuException("ParallelExporterHandler", e);
+		}
+		finally
+		{
+			stop(null);
+			for (Thread thread : threads)
+			{
+				try
+				{
+					thread.join();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		Trace.write(2, "parallel export: %d records from %d sessions", count, _sessions);
+		return count;
+	}
+
+	/*!
+	** Creates a new session to fetch records with.
+	**
+	** By default this connects to the same host and port, with the same
+	** settings, as the module's session. The **binarySink**
+	** [$<link>(:session:binarySink)] is not copied, since the sessions are
+	** read at the same time by different threads. It can be overridden to
+	** log in, set a sink or configure each session differently. It is
+	** called from the thread which will use the session.
+	**
+	** @returns
+	**   A new `Session` [$<link>(:session:session)].
+	**
+	** @throws Exception
+	**   If the session could not be created.
+	*/
+	protected Session
+	createSession() throws Exception
+	{
+		return _module.getSession().copy();
+	}
+
+	private final Module _module;
+	private final int _sessions;
+	private Object _columns;
+	private boolean _ordered;
+	private int _pageSize;
+
+	// State shared with the fetching threads, guarded by _lock
+	private final Object _lock;
+	private TreeMap<Integer,Map[]> _pages;
+	private int _next;
+	private long _hits;
+	private int _running;
+	private boolean _stopped;
+	private IMuException _failure;
+
+	/* Fetches every _sessions'th page, starting with page index */
+	private void
+	work(int index)
+	{
+		Session session = null;
+		try
+		{
+			session = createSession();
+			Module module = new Module(_module._table, session);
+			module.setLanguage(_module.getLanguage());
+			module.setLazyRows(_module.getLazyRows());
+
+			long hits = _module.replay(module);
+			if (hits < 0)
+				throw new IMuException("ParallelExporterSearch");
+			synchronized (_lock)
+			{
+				if (_hits < 0)
+					_hits = hits;
+				else if (_hits != hits)
+					throw new IMuException("ParallelExporterHits", _hits, hits);
+			}
+
+			for (int page = index; (long) page * _pageSize < hits; page += _sessions)
+			{
+				synchronized (_lock)
+				{
+					while (! _stopped && isAhead(page))
+						_lock.wait();
+					if (_stopped)
+						return;
+				}
+				long offset = (long) page * _pageSize;
+				Map[] rows = module.doFetch("start", offset, _pageSize, _columns).getRows();
+				synchronized (_lock)
+				{
+					_pages.put(page, rows);
+					_lock.notifyAll();
+				}
+			}
+		}
+		catch (IMuException e)
+		{
+			stop(e);
+		}
+		catch (Exception e)
+		{
+			stop(new IMuException("ParallelExporterSession", e));
+		}
+		finally
+		{
+			synchronized (_lock)
+			{
+				_running--;
+				_lock.notifyAll();
+			}
+			if (session != null)
+				session.disconnect();
+		}
+	}
+
+	/* Whether a page is too far ahead of those handled to fetch yet */
+	private boolean
+	isAhead(int page)
+	{
+		int window = _sessions * 2;
+		if (_ordered)
+			return page >= _next + window;
+		return _pages.size() >= window;
+	}
+
+	/* Waits for the next page to pass to the handler, returning null once
+	** there are no more
+	*/
+	private Map[]
+	nextPage() throws IMuException
+	{
+		try
+		{
+			return waitForPage();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IMuException("ParallelExporterInterrupted", e);
+		}
+	}
+
+	private Map[]
+	waitForPage() throws IMuException, InterruptedException
+	{
+		synchronized (_lock)
+		{
+			while (true)
+			{
+				if (_failure != null)
+					throw _failure;
+				Map[] rows = null;
+				if (_ordered)
+					rows = _pages.remove(_next);
+				else if (! _pages.isEmpty())
+					rows = _pages.pollFirstEntry().getValue();
+				if (rows != null)
+				{
+					_next++;
+					_lock.notifyAll();
+					return rows;
+				}
+				if (_running == 0)
+					return null;
+				_lock.wait();
+			}
+		}
+	}
+
+	/* Stops the fetching threads, recording the first failure */
+	private void
+	stop(IMuException failure)
+	{
+		synchronized (_lock)
+		{
+			if (failure != null && _failure == null && ! _stopped)
+				_failure = failure;
+			_stopped = true;
+			_lock.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,450 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Reads objects from a StreamReader straight into instances of a Java
+** record class.
+**
+** The record's components are examined once, when the decoder is first
+** needed, and a reader chosen for each according to its type. Each object
+** is then decoded by matching its keys to the components by name and
+** passing the values read to the record's canonical constructor, without
+** building a Map first. Keys with no matching component are skipped and
+** components with no matching key are left null (or zero or false for
+** primitive types).
+**
+** Values are converted in the same way as by Map's typed getters, so for
+** example a number sent as a string can be read into a long component.
+** Components may be:
+**
+**   - primitive numbers and booleans, and their boxed types
+**   - String
+**   - InputStream, for binary values
+**   - Map or Object, for values which are read in full
+**   - other records, for attachments
+**   - arrays of any of these, for tables
+*/
+final class RecordDecoder<R>
+{
+	/* Returns the decoder for type, creating it the first time */
+	@SuppressWarnings("unchecked")
+	public static <R> RecordDecoder<R>
+	forType(Class<R> type) throws IMuException
+	{
+		RecordDecoder<?> decoder = _decoders.get(type);
+		if (decoder == null)
+		{
+			decoder = new RecordDecoder<R>(type);
+			RecordDecoder<?> other = _decoders.putIfAbsent(type, decoder);
+			if (other != null)
+				decoder = other;
+		}
+		return (RecordDecoder<R>) decoder;
+	}
+
+	/* Constructor */
+	private
+	RecordDecoder(Class<R> type) throws IMuException
+	{
+		if (! type.isRecord())
+			throw new IMuException("RecordType", type.getName());
+
+		RecordComponent[] components = type.getRecordComponents();
+		_names = new String[components.length];
+		_readers = new ValueReader[components.length];
+		_defaults = new Object[components.length];
+		_index = new HashMap<String,Integer>();
+
+		Class<?>[] types = new Class<?>[components.length];
+		for (int i = 0; i < components.length; i++)
+		{
+			_names[i] = components[i].getName();
+			types[i] = components[i].getType();
+			_index.put(_names[i], i);
+			_defaults[i] = defaultValue(types[i]);
+		}
+		try
+		{
+			_constructor = type.getDeclaredConstructor(types);
+			_constructor.setAccessible(true);
+		}
+		catch (Exception e)
+		{
+			throw new IMuException("RecordConstructor", e);
+		}
+		for (int i = 0; i < components.length; i++)
+			_readers[i] = reader(types[i], _names[i]);
+		_types = types;
+		_columns = null;
+	}
+
+	/* Properties */
+	/* The columns to fetch to fill in every component, with attachments
+	** given as "name.(columns)"
+	*/
+	public synchronized String[]
+	getColumns() throws IMuException
+	{
+		if (_columns == null)
+			_columns = columns(new ArrayList<Class<?>>());
+		return _columns.clone();
+	}
+
+	/* Methods */
+	/* Reads an object, which has just been started, as a record */
+	public R
+	readObject(StreamReader reader) throws Exception
+	{
+		Object[] args = new Object[_readers.length];
+		while (reader.next() == StreamEvent.KEY)
+		{
+			Integer i = _index.get(reader.getString());
+			if (i == null)
+			{
+				reader.skipValue();
+				continue;
+			}
+			reader.next();
+			args[i] = _readers[i].read(reader);
+		}
+		for (int i = 0; i < args.length; i++)
+			if (args[i] == null)
+				args[i] = _defaults[i];
+		return _constructor.newInstance(args);
+	}
+
+	/* Reads the result of a Module fetch() */
+	public RecordFetchResult<R>
+	readFetch(StreamReader reader) throws Exception
+	{
+		RecordFetchResult<R> result = new RecordFetchResult<R>();
+		result._rows = new ArrayList<R>();
+		if (reader.next() != StreamEvent.START_OBJECT)
+			throw new IMuException("RecordFetchResult", reader.getEvent());
+		while (reader.next() == StreamEvent.KEY)
+		{
+			String name = reader.getString();
+			if (name.equals("hits"))
+			{
+				reader.next();
+				result._hits = (Long) LONG.read(reader);
+			}
+			else if (name.equals("rows"))
+			{
+				if (reader.next() != StreamEvent.START_ARRAY)
+				{
+					reader.skipValue();
+					continue;
+				}
+				while (reader.next() != StreamEvent.END_ARRAY)
+				{
+					if (reader.getEvent() == StreamEvent.START_OBJECT)
+						result._rows.add(readObject(reader));
+					else
+						reader.skipValue();
+				}
+			}
+			else
+				reader.skipValue();
+		}
+		return result;
+	}
+
+	/* Reads a value, whose first event is the current one */
+	private interface ValueReader
+	{
+		Object
+		read(StreamReader reader) throws Exception;
+	}
+
+	private static final ConcurrentHashMap<Class<?>,RecordDecoder<?>> _decoders =
+		new ConcurrentHashMap<Class<?>,RecordDecoder<?>>();
+
+	private final String[] _names;
+	private final Class<?>[] _types;
+	private final ValueReader[] _readers;
+	private final Object[] _defaults;
+	private final HashMap<String,Integer> _index;
+	private final Constructor<R> _constructor;
+	private String[] _columns;
+
+	/* Builds the column list, with outer holding the records which contain
+	** this one so that a record which contains itself can be reported
+	*/
+	private String[]
+	columns(ArrayList<Class<?>> outer) throws IMuException
+	{
+		Class<?> type = _constructor.getDeclaringClass();
+		if (outer.contains(type))
+			throw new IMuException("RecordColumns", type.getName());
+		outer.add(type);
+
+		String[] columns = new String[_names.length];
+		for (int i = 0; i < columns.length; i++)
+		{
+			Class<?> record = _types[i];
+			while (record.isArray())
+				record = record.getComponentType();
+			if (record.isRecord())
+			{
+				String[] nested = forType(record).columns(outer);
+				columns[i] = _names[i] + ".(" + String.join(", ", nested) + ")";
+			}
+			else
+				columns[i] = _names[i];
+		}
+
+		outer.remove(outer.size() - 1);
+		return columns;
+	}
+
+	private static final ValueReader LONG = reader ->
+		switch (reader.getEvent())
+		{
+			case NUMBER -> reader.getLong();
+			case STRING -> Long.valueOf(reader.getString());
+			case BOOLEAN -> reader.getBoolean() ? 1L : 0L;
+			case NULL -> null;
+			default -> throw mismatch(reader, "long");
+		};
+
+	private static final ValueReader INT = reader ->
+		switch (reader.getEvent())
+		{
+			case NUMBER -> (int) reader.getLong();
+			case STRING -> Integer.valueOf(reader.getString());
+			case BOOLEAN -> reader.getBoolean() ? 1 : 0;
+			case NULL -> null;
+			default -> throw mismatch(reader, "int");
+		};
+
+	private static final ValueReader DOUBLE = reader ->
+		switch (reader.getEvent())
+		{
+			case NUMBER -> reader.getDouble();
+			case STRING -> Double.valueOf(reader.getString());
+			case BOOLEAN -> reader.getBoolean() ? 1.0 : 0.0;
+			case NULL -> null;
+			default -> throw mismatch(reader, "double");
+		};
+
+	private static final ValueReader BOOLEAN = reader ->
+		switch (reader.getEvent())
+		{
+			case BOOLEAN -> reader.getBoolean();
+			case NUMBER -> reader.getDouble() != 0;
+			case STRING -> Boolean.valueOf(reader.getString());
+			case NULL -> null;
+			default -> throw mismatch(reader, "boolean");
+		};
+
+	private static final ValueReader STRING = reader ->
+		switch (reader.getEvent())
+		{
+			case STRING -> reader.getString();
+			case NUMBER -> reader.isInteger() ? Long.toString(reader.getLong()) :
+				Double.toString(reader.getDouble());
+			case BOOLEAN -> Boolean.toString(reader.getBoolean());
+			case NULL -> null;
+			default -> throw mismatch(reader, "String");
+		};
+
+	private static final ValueReader BINARY = reader ->
+		switch (reader.getEvent())
+		{
+			case BINARY -> reader.getBinary();
+			case NULL -> null;
+			default -> throw mismatch(reader, "InputStream");
+		};
+
+	private static final ValueReader VALUE = StreamReader::readValue;
+
+	private static IMuException
+	mismatch(StreamReader reader, String type)
+	{
+		return new IMuException("RecordValue", reader.getEvent(), type);
+	}
+
+	private static Object
+	defaultValue(Class<?> type)
+	{
+		if (! type.isPrimitive())
+			return null;
+		if (type == boolean.class)
+			return false;
+		if (type == long.class)
+			return 0L;
+		if (type == int.class)
+			return 0;
+		if (type == double.class)
+			return 0.0;
+		return Array.get(Array.newInstance(type, 1), 0);
+	}
+
+	private static ValueReader
+	reader(Class<?> type, String name) throws IMuException
+	{
+		if (type == long.class || type == Long.class)
+			return LONG;
+		if (type == int.class || type == Integer.class)
+			return INT;
+		if (type == double.class || type == Double.class)
+			return DOUBLE;
+		if (type == boolean.class || type == Boolean.class)
+			return BOOLEAN;
+		if (type == String.class)
+			return STRING;
+		if (type == InputStream.class)
+			return BINARY;
+		if (type == Map.class || type == Object.class)
+			return VALUE;
+		if (type.isRecord())
+			return record(type);
+		if (type.isArray())
+			return array(type.getComponentType(), name);
+		throw new IMuException("RecordComponentType", name, type.getName());
+	}
+
+	private static ValueReader
+	record(Class<?> type)
+	{
+		// Looked up when first used, as the record may contain itself
+		return reader ->
+		{
+			if (reader.getEvent() == StreamEvent.NULL)
+				return null;
+			if (reader.getEvent() != StreamEvent.START_OBJECT)
+				throw mismatch(reader, type.getName());
+			return forType(type).readObject(reader);
+		};
+	}
+
+	private static ValueReader
+	array(Class<?> type, String name) throws IMuException
+	{
+		ValueReader element = reader(type, name);
+		if (type == long.class)
+			return reader ->
+			{
+				if (! startArray(reader))
+					return null;
+				long[] array = new long[8];
+				int count = 0;
+				while (reader.next() != StreamEvent.END_ARRAY)
+				{
+					if (count == array.length)
+						array = Arrays.copyOf(array, count * 2);
+					Object value = element.read(reader);
+					array[count++] = value == null ? 0 : (Long) value;
+				}
+				return Arrays.copyOf(array, count);
+			};
+		if (type == int.class)
+			return reader ->
+			{
+				if (! startArray(reader))
+					return null;
+				int[] array = new int[8];
+				int count = 0;
+				while (reader.next() != StreamEvent.END_ARRAY)
+				{
+					if (count == array.length)
+						array = Arrays.copyOf(array, count * 2);
+					Object value = element.read(reader);
+					array[count++] = value == null ? 0 : (Integer) value;
+				}
+				return Arrays.copyOf(array, count);
+			};
+		if (type == double.class)
+			return reader ->
+			{
+				if (! startArray(reader))
+					return null;
+				double[] array = new double[8];
+				int count = 0;
+				while (reader.next() != StreamEvent.END_ARRAY)
+				{
+					if (count == array.length)
+						array = Arrays.copyOf(array, count * 2);
+					Object value = element.read(reader);
+					array[count++] = value == null ? 0 : (Double) value;
+				}
+				return Arrays.copyOf(array, count);
+			};
+		if (type.isPrimitive())
+			throw new IMuException("RecordComponentType", name, type.getName() + "[]");
+		return reader ->
+		{
+			if (! startArray(reader))
+				return null;
+			ArrayList<Object> list = new ArrayList<Object>();
+			while (reader.next() != StreamEvent.END_ARRAY)
+				list.add(element.read(reader));
+			return list.toArray((Object[]) Array.newInstance(type, list.size()));
+		};
+	}
+
+	/* Checks that the current event starts an array, or is null */
+	private static boolean
+	startArray(StreamReader reader) throws IMuException
+	{
+		if (reader.getEvent() == StreamEvent.NULL)
+			return false;
+		if (reader.getEvent() != StreamEvent.START_ARRAY)
+			throw mismatch(reader, "array");
+		return true;
+	}
+}
@@ -0,0 +1,635 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/*!
+** Writes every record in a `Module` [$<link>(:module:module)]'s result set
+** to a file as newline-delimited JSON or as CSV.
+**
+** The records are fetched a page at a time by a separate thread, which
+** hands each one on as soon as it has been read from the connection (as
+** with a `RowHandler` [$<link>(:rowhandler)]). The thread calling
+** **export( )** [$<link>(:recordexporter:export)] writes them as UTF-8 text
+** straight into the output buffer, optionally compressing it with gzip.
+**
+** The two threads are joined by a queue holding at most **queueSize**
+** [$<link>(:recordexporter:queueSize)] records. If the output is slower
+** than the server, the queue fills and the fetching thread stops reading
+** the connection until there is room again, so the server is held back
+** rather than records building up in memory.
+**
+** Values are written as follows:
+** - Strings, numbers, booleans and ``null`` as the JSON values.
+** - Nested records and tables as JSON objects and arrays. In CSV these are
+**   written as JSON text in a single field.
+** - Binary values, such as multimedia resources, as Base64 strings.
+**
+** Numbers that JSON cannot represent (infinities and NaN) are written as
+** ``null``. In CSV ``null`` values are written as empty fields.
+**
+** The records are fetched by offset from the start of the result set, so
+** the module's current record is changed.
+**
+** @usage
+**   com.kesoftware.imu.RecordExporter
+** @end
+**
+** @since 2.8
+*/
+public class RecordExporter
+{
+	/* Constructor */
+	/*!
+	** Creates a `RecordExporter` for the records in ``module``'s current
+	** result set.
+	**
+	** @param module
+	**   The `Module` whose records are to be exported.
+	**
+	** @param format
+	**   The `ExportFormat` [$<link>(:exportformat)] to write the records in.
+	*/
+	public
+	RecordExporter(Module module, ExportFormat format)
+	{
+		_module = module;
+		_format = format;
+		_columns = null;
+		_gzip = false;
+		_header = null;
+		_pageSize = 250;
+		_queueSize = 1000;
+	}
+
+	/* Properties */
+	/*!
+	** @property columns
+	**   The columns to fetch for each record, as a `String` or an array of
+	**   `String`\s in any of the forms accepted by **fetch( )**
+	**   [$<link>(:module:fetch)].
+	*/
+	public Object
+	getColumns()
+	{
+		return _columns;
+	}
+
+	public void
+	setColumns(String columns)
+	{
+		_columns = columns;
+	}
+
+	public void
+	setColumns(String[] columns)
+	{
+		_columns = columns;
+	}
+
+	/*!
+	** @property format
+	**   The `ExportFormat` [$<link>(:exportformat)] the records are written
+	**   in.
+	*/
+	public ExportFormat
+	getFormat()
+	{
+		return _format;
+	}
+
+	/*!
+	** @property gzip
+	**   A flag controlling whether the output is compressed with gzip. The
+	**   default is ``false``.
+	*/
+	public boolean
+	getGzip()
+	{
+		return _gzip;
+	}
+
+	public void
+	setGzip(boolean gzip)
+	{
+		_gzip = gzip;
+	}
+
+	/*!
+	** @property header
+	**   The names of the columns written to CSV output, in order. Each
+	**   record's value for each name is written, or an empty field if it has
+	**   none. If not set, the columns of the first record are used, in the
+	**   order returned by the server. This has no effect on NDJSON output.
+	*/
+	public String[]
+	getHeader()
+	{
+		return _header;
+	}
+
+	public void
+	setHeader(String[] header)
+	{
+		_header = header;
+	}
+
+	/*!
+	** @property pageSize
+	**   The number of records fetched by each request. The default is
+	**   ``250``.
+	*/
+	public int
+	getPageSize()
+	{
+		return _pageSize;
+	}
+
+	public void
+	setPageSize(int size)
+	{
+		_pageSize = Math.max(1, size);
+	}
+
+	/*!
+	** @property queueSize
+	**   The most records which can have been fetched but not yet written.
+	**   The default is ``1000``.
+	*/
+	public int
+	getQueueSize()
+	{
+		return _queueSize;
+	}
+
+	public void
+	setQueueSize(int size)
+	{
+		_queueSize = Math.max(1, size);
+	}
+
+	/* Methods */
+	/*!
+	** Writes all of the records in the module's result set to ``output``.
+	**
+	** ``output`` is flushed but not closed. If **gzip**
+	** [$<link>(:recordexporter:gzip)] is set the compressed data is
+	** finished so that further data written to ``output`` is not part of
+	** it.
+	**
+	** @param output
+	**   The `OutputStream` to write to. It does not need to be buffered.
+	**
+	** @returns
+	**   The number of records written.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred or ``output`` could not be written
+	**   to. No more records are fetched and what has been written so far is
+	**   left in ``output``.
+	*/
+	public synchronized long
+	export(OutputStream output) throws IMuException
+	{
+		_queue = new ArrayBlockingQueue<Map>(_queueSize);
+		_stopped = false;
+		_failure = null;
+
+		Thread reader = new Thread(this::read, "imu-export-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		long count = 0;
+		try
+		{
+			GZIPOutputStream gzip = null;
+			if (_gzip)
+			{
+				gzip = new GZIPOutputStream(output, BUFFER_SIZE);
+				output = gzip;
+			}
+			Encoder encoder = new Encoder(output, BUFFER_SIZE);
+
+			String[] header = _header;
+			if (_format == ExportFormat.CSV && header != null)
+				writeHeader(encoder, header);
+			Map row;
+			while ((row = take()) != END)
+			{
+				if (_format == ExportFormat.NDJSON)
+				{
+					writeJSON(encoder, row);
+					encoder.write('\n');
+				}
+				else
+				{
+					if (header == null)
+					{
+						header = getNames(row);
+						writeHeader(encoder, header);
+					}
+					writeCSV(encoder, row, header);
+				}
+				count++;
+			}
+			if (_failure != null)
+				throw _failure;
+
+			encoder.flush();
+			if (gzip != null)
+				gzip.finish();
+		}
+		catch (IOException e)
+		{
+			throw new IMuException("RecordExporterWrite", e);
+		}
+		finally
+		{
+			stop();
+			try
+			{
+				reader.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		Trace.write(2, "record export: %d records as %s", count, _format);
+		return count;
+	}
+
+	/*!
+	** Writes all of the records in the module's result set to ``file``,
+	** replacing anything already in it.
+	**
+	** @param file
+	**   The `File` to write to.
+	**
+	** @returns
+	**   The number of records written.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred or ``file`` could not be written.
+	*/
+	public long
+	export(File file) throws IMuException
+	{
+		try (OutputStream output = new FileOutputStream(file))
+		{
+			return export(output);
+		}
+		catch (IOException e)
+		{
+			throw new IMuException("RecordExporterWrite", e);
+		}
+	}
+
+	private static final int BUFFER_SIZE = 65536;
+
+	// Put on the queue after the last record
+	private static final Map END = new Map();
+
+	private final Module _module;
+	private final ExportFormat _format;
+	private Object _columns;
+	private boolean _gzip;
+	private String[] _header;
+	private int _pageSize;
+	private int _queueSize;
+
+	// State shared with the fetching thread
+	private ArrayBlockingQueue<Map> _queue;
+	private volatile boolean _stopped;
+	private volatile IMuException _failure;
+
+	/* Fetches the records a page at a time, putting each on the queue */
+	private void
+	read()
+	{
+		try
+		{
+			long offset = 0;
+			while (true)
+			{
+				ModuleFetchResult result = _module.doFetch("start", offset,
+					_pageSize, _columns, this::put);
+				offset += result.getCount();
+				if (result.getCount() < _pageSize)
+					break;
+			}
+		}
+		catch (IMuException e)
+		{
+			if (! _stopped)
+				_failure = e;
+		}
+		catch (Exception e)
+		{
+			if (! _stopped)
+				_failure = new IMuException("RecordExporterFetch", e);
+		}
+		finally
+		{
+			// Once stopped nothing more is taken from the queue
+			if (! _stopped)
+			{
+				try
+				{
+					_queue.put(END);
+				}
+				catch (InterruptedException e)
+				{
+					stop();
+				}
+			}
+		}
+	}
+
+	/* Passes a record to the writing thread, waiting while the queue is
+	** full. Once stopped the fetch is abandoned.
+	*/
+	private void
+	put(Map row) throws Exception
+	{
+		if (_stopped)
+			throw new IMuException("RecordExporterStopped");
+		_queue.put(row);
+	}
+
+	/* Waits for the next record to write */
+	private Map
+	take() throws IMuException
+	{
+		try
+		{
+			return _queue.take();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IMuException("RecordExporterInterrupted", e);
+		}
+	}
+
+	/* Stops the fetching thread, emptying the queue in case it is waiting
+	** to add a record
+	*/
+	private void
+	stop()
+	{
+		_stopped = true;
+		_queue.clear();
+	}
+
+	/* The names of the columns in a record, in the order they were read */
+	static String[]
+	getNames(Map row)
+	{
+		ArrayList<String> names = new ArrayList<String>();
+		row.forEach((name, value) -> names.add(name));
+		return names.toArray(new String[names.size()]);
+	}
+
+	static void
+	writeHeader(Encoder encoder, String[] header) throws IOException
+	{
+		for (int i = 0; i < header.length; i++)
+		{
+			if (i > 0)
+				encoder.write(',');
+			writeField(encoder, header[i]);
+		}
+		encoder.write('\r');
+		encoder.write('\n');
+	}
+
+	static void
+	writeCSV(Encoder encoder, Map row, String[] header) throws IOException
+	{
+		for (int i = 0; i < header.length; i++)
+		{
+			if (i > 0)
+				encoder.write(',');
+			Object value = row.get(header[i]);
+			if (value == null)
+				continue;
+			if (value instanceof String s)
+				writeField(encoder, s);
+			else if (value instanceof java.util.Map || value instanceof Object[])
+			{
+				// Written as JSON text, which needs quoting
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				Encoder json = new Encoder(bytes, 1024);
+				writeJSON(json, value);
+				json.flush();
+				writeField(encoder, bytes.toString(StandardCharsets.UTF_8));
+			}
+			else if (value instanceof InputStream input)
+				writeBase64(encoder, input);
+			else if (value instanceof Double || value instanceof Float)
+			{
+				// Numbers JSON cannot represent are null, so an empty field
+				if (Double.isFinite(((Number) value).doubleValue()))
+					encoder.writeAscii(value.toString());
+			}
+			else
+				writeJSON(encoder, value);
+		}
+		encoder.write('\r');
+		encoder.write('\n');
+	}
+
+	/* Writes a CSV field, quoting it only if it contains a comma, quote or
+	** line break
+	*/
+	private static void
+	writeField(Encoder encoder, String text) throws IOException
+	{
+		boolean quote = false;
+		for (int i = 0; i < text.length() && ! quote; i++)
+		{
+			char c = text.charAt(i);
+			quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+		if (! quote)
+		{
+			encoder.writeChars(text, Encoder.ESCAPE_NONE);
+			return;
+		}
+		encoder.write('"');
+		encoder.writeChars(text, Encoder.ESCAPE_CSV);
+		encoder.write('"');
+	}
+
+	static void
+	writeJSON(Encoder encoder, Object value) throws IOException
+	{
+		if (value == null)
+			encoder.writeAscii("null");
+		else if (value instanceof String s)
+			writeJSONString(encoder, s);
+		else if (value instanceof Long || value instanceof Integer ||
+			value instanceof Short || value instanceof Byte)
+			encoder.writeLong(((Number) value).longValue());
+		else if (value instanceof Double || value instanceof Float)
+		{
+			double d = ((Number) value).doubleValue();
+			if (Double.isFinite(d))
+				encoder.writeAscii(value.toString());
+			else
+				encoder.writeAscii("null");
+		}
+		else if (value instanceof Number n)
+			encoder.writeAscii(n.toString());
+		else if (value instanceof Boolean b)
+			encoder.writeAscii(b ? "true" : "false");
+		else if (value instanceof java.util.Map<?,?> map)
+			writeJSONObject(encoder, map);
+		else if (value instanceof Object[] array)
+		{
+			encoder.write('[');
+			for (int i = 0; i < array.length; i++)
+			{
+				if (i > 0)
+					encoder.write(',');
+				writeJSON(encoder, array[i]);
+			}
+			encoder.write(']');
+		}
+		else if (value instanceof InputStream input)
+		{
+			encoder.write('"');
+			writeBase64(encoder, input);
+			encoder.write('"');
+		}
+		else
+			writeJSONString(encoder, value.toString());
+	}
+
+	/* Writes the members of an object in the order they were read, without
+	** copying a record's values into a hash table
+	*/
+	private static void
+	writeJSONObject(Encoder encoder, java.util.Map<?,?> map) throws IOException
+	{
+		encoder.write('{');
+		boolean[] first = { true };
+		try
+		{
+			map.forEach((key, value) ->
+			{
+				try
+				{
+					if (! first[0])
+						encoder.write(',');
+					first[0] = false;
+					writeJSONString(encoder, key.toString());
+					encoder.write(':');
+					writeJSON(encoder, value);
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+		encoder.write('}');
+	}
+
+	private static void
+	writeJSONString(Encoder encoder, String text) throws IOException
+	{
+		encoder.write('"');
+		encoder.writeChars(text, Encoder.ESCAPE_JSON);
+		encoder.write('"');
+	}
+
+	/* Writes the contents of a binary value as Base64, closing it */
+	private static void
+	writeBase64(Encoder encoder, InputStream input) throws IOException
+	{
+		OutputStream output = Base64.getEncoder().wrap(new OutputStream()
+		{
+			@Override
+			public void
+			write(int b) throws IOException
+			{
+				encoder.write(b);
+			}
+
+			@Override
+			public void
+			write(byte[] bytes, int offset, int length) throws IOException
+			{
+				encoder.write(bytes, offset, length);
+			}
+		});
+		try (input)
+		{
+			input.transferTo(output);
+		}
+		// Writes any padding, leaving the encoder open
+		output.close();
+	}
+}
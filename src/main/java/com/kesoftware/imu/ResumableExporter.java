@@ -0,0 +1,488 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+/*!
+** Writes the records found by a `Module` [$<link>(:module:module)] search
+** to a file, recording its progress so that an export which fails part of
+** the way through can be resumed rather than started again.
+**
+** The records are found with **findWhere( )** [$<link>(:module:findWhere)]
+** and sorted by ``irn``. They are written as a `RecordExporter`
+** [$<link>(:recordexporter)] writes them, one page at a time. After each
+** page the output file is flushed to disk and a checkpoint file is
+** replaced with the ``irn`` of the last record written, the number of
+** records, the length of the output and, for CSV, the columns written.
+**
+** If **export( )** [$<link>(:resumableexporter:export)] finds a checkpoint
+** for the same search, format, **gzip** setting and **columns**, it
+** continues from where the checkpoint left off. It cuts the output back to
+** the recorded length, dropping any part of a page written after the last
+** checkpoint. It then searches again for the records with a larger ``irn``
+** and appends them. The export can therefore be resumed by a new process
+** after the server was restarted or the search expired. A `Module` whose
+** server-side object has been lost should not be reused; a new one should
+** be created instead.
+**
+** The checkpoint is removed once every record has been written.
+**
+** The ``irn`` column must be one of the **columns**
+** [$<link>(:resumableexporter:columns)] fetched.
+**
+** @usage
+**   com.kesoftware.imu.ResumableExporter
+** @end
+**
+** @since 2.8
+*/
+public class ResumableExporter
+{
+	/* Constructor */
+	/*!
+	** Creates a `ResumableExporter` for the records matching ``where``.
+	**
+	** @param module
+	**   The `Module` to search.
+	**
+	** @param where
+	**   The where clause, as passed to **findWhere( )**
+	**   [$<link>(:module:findWhere)], selecting the records to export.
+	**
+	** @param format
+	**   The `ExportFormat` [$<link>(:exportformat)] to write the records in.
+	**
+	** @param output
+	**   The file to write the records to.
+	*/
+	public
+	ResumableExporter(Module module, String where, ExportFormat format,
+		File output)
+	{
+		_module = module;
+		_where = where;
+		_format = format;
+		_output = output;
+		_checkpoint = new File(output.getPath() + ".checkpoint");
+		_columns = null;
+		_gzip = false;
+		_header = null;
+		_pageSize = 1000;
+	}
+
+	/* Properties */
+	/*!
+	** @property checkpoint
+	**   The file the checkpoint is kept in. The default is the name of the
+	**   output file with ``.checkpoint`` added. A temporary file with
+	**   ``.tmp`` added is used while it is replaced.
+	*/
+	public File
+	getCheckpoint()
+	{
+		return _checkpoint;
+	}
+
+	public void
+	setCheckpoint(File checkpoint)
+	{
+		_checkpoint = checkpoint;
+	}
+
+	/*!
+	** @property columns
+	**   The columns to fetch for each record, as a `String` or an array of
+	**   `String`\s in any of the forms accepted by **fetch( )**
+	**   [$<link>(:module:fetch)]. They must include ``irn``.
+	*/
+	public Object
+	getColumns()
+	{
+		return _columns;
+	}
+
+	public void
+	setColumns(String columns)
+	{
+		_columns = columns;
+	}
+
+	public void
+	setColumns(String[] columns)
+	{
+		_columns = columns;
+	}
+
+	/*!
+	** @property gzip
+	**   A flag controlling whether the output is compressed with gzip. Each
+	**   page is compressed separately so that the output can be cut back
+	**   to any checkpoint. The default is ``false``.
+	*/
+	public boolean
+	getGzip()
+	{
+		return _gzip;
+	}
+
+	public void
+	setGzip(boolean gzip)
+	{
+		_gzip = gzip;
+	}
+
+	/*!
+	** @property header
+	**   The names of the columns written to CSV output, in order. If not
+	**   set, the columns of the first record are used. When an export is
+	**   resumed the columns recorded in the checkpoint are used.
+	*/
+	public String[]
+	getHeader()
+	{
+		return _header;
+	}
+
+	public void
+	setHeader(String[] header)
+	{
+		_header = header;
+	}
+
+	/*!
+	** @property pageSize
+	**   The number of records fetched by each request, and so written
+	**   between checkpoints. The default is ``1000``.
+	*/
+	public int
+	getPageSize()
+	{
+		return _pageSize;
+	}
+
+	public void
+	setPageSize(int size)
+	{
+		_pageSize = Math.max(1, size);
+	}
+
+	/* Methods */
+	/*!
+	** Writes the records to the output file, resuming from the checkpoint if
+	** there is one.
+	**
+	** @returns
+	**   The number of records in the output file, including any written
+	**   before the export was resumed.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred, a record had no ``irn``, the
+	**   checkpoint is for a different export or does not match the output
+	**   file, or either file could not be written. The checkpoint is left
+	**   as it was after the last complete page.
+	*/
+	public synchronized long
+	export() throws IMuException
+	{
+		Properties checkpoint = readCheckpoint();
+		long irn = -1;
+		long records = 0;
+		long position = 0;
+		String[] header = _header;
+		if (checkpoint != null)
+		{
+			// Anything which changes what is written must be the same
+			if (! _where.equals(checkpoint.getProperty("where")) ||
+				! _format.toString().equals(checkpoint.getProperty("format")) ||
+				! Boolean.toString(_gzip).equals(checkpoint.getProperty("gzip")) ||
+				! describeColumns().equals(checkpoint.getProperty("columns")))
+				throw new IMuException("ResumableExporterCheckpoint", _checkpoint);
+			try
+			{
+				irn = Long.parseLong(checkpoint.getProperty("irn"));
+				records = Long.parseLong(checkpoint.getProperty("records"));
+				position = Long.parseLong(checkpoint.getProperty("position"));
+				header = readHeader(checkpoint);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IMuException("ResumableExporterCheckpoint", e);
+			}
+			Trace.write(2, "resumable export: resuming after irn %d, %d records, %d bytes",
+				irn, records, position);
+		}
+
+		String where = _where;
+		if (irn >= 0)
+			where = "(" + _where + ") and irn > " + irn;
+		_module.findWhere(where);
+		_module.sort("irn");
+
+		try (FileOutputStream file = new FileOutputStream(_output, position > 0))
+		{
+			FileChannel channel = file.getChannel();
+			if (channel.size() < position)
+				throw new IMuException("ResumableExporterOutput", _output, channel.size(), position);
+			channel.truncate(position);
+			channel.position(position);
+
+			long offset = 0;
+			while (true)
+			{
+				Page page = new Page(file, header, position == 0);
+				ModuleFetchResult result = _module.doFetch("start", offset, _pageSize,
+					_columns, page::write);
+				page.finish();
+				offset += result.getCount();
+				if (page._count == 0)
+					break;
+
+				// Only once the page is on disk can the checkpoint move past it
+				channel.force(false);
+				header = page._header;
+				irn = page._irn;
+				records += page._count;
+				position = channel.position();
+				writeCheckpoint(irn, records, position, header);
+
+				if (result.getCount() < _pageSize)
+					break;
+			}
+		}
+		catch (IOException e)
+		{
+			throw new IMuException("ResumableExporterWrite", e);
+		}
+
+		_checkpoint.delete();
+		Trace.write(2, "resumable export: %d records in %s", records, _output);
+		return records;
+	}
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private final Module _module;
+	private final String _where;
+	private final ExportFormat _format;
+	private final File _output;
+	private File _checkpoint;
+	private Object _columns;
+	private boolean _gzip;
+	private String[] _header;
+	private int _pageSize;
+
+	/* Writes the records of one page as they are read. If gzip is set the
+	** page is compressed as a gzip member of its own. The CSV header is
+	** written with the first page.
+	*/
+	private class Page
+	{
+		public
+		Page(OutputStream file, String[] header, boolean first) throws IOException
+		{
+			_stream = file;
+			if (_gzip)
+				_stream = new GZIPOutputStream(new Unclosed(file), BUFFER_SIZE);
+			_encoder = new Encoder(_stream, BUFFER_SIZE);
+			_header = header;
+			_first = first;
+			_count = 0;
+			_irn = -1;
+			if (_format == ExportFormat.CSV && _first && _header != null)
+				RecordExporter.writeHeader(_encoder, _header);
+		}
+
+		public void
+		write(Map row) throws Exception
+		{
+			if (! row.containsKey("irn"))
+				throw new IMuException("ResumableExporterIrn");
+			if (_format == ExportFormat.NDJSON)
+			{
+				RecordExporter.writeJSON(_encoder, row);
+				_encoder.write('\n');
+			}
+			else
+			{
+				if (_header == null)
+				{
+					_header = RecordExporter.getNames(row);
+					if (_first)
+						RecordExporter.writeHeader(_encoder, _header);
+				}
+				RecordExporter.writeCSV(_encoder, row, _header);
+			}
+			_irn = row.getLong("irn");
+			_count++;
+		}
+
+		/* Writes out everything buffered for the page */
+		public void
+		finish() throws IOException
+		{
+			_encoder.flush();
+			if (_stream instanceof GZIPOutputStream)
+				_stream.close();
+		}
+
+		private OutputStream _stream;
+		private final Encoder _encoder;
+		private String[] _header;
+		private final boolean _first;
+		private long _count;
+		private long _irn;
+	}
+
+	/* Keeps the output file open when a page's gzip stream is closed */
+	private static class Unclosed extends FilterOutputStream
+	{
+		public
+		Unclosed(OutputStream output)
+		{
+			super(output);
+		}
+
+		@Override
+		public void
+		write(byte[] bytes, int offset, int length) throws IOException
+		{
+			out.write(bytes, offset, length);
+		}
+
+		@Override
+		public void
+		close() throws IOException
+		{
+			flush();
+		}
+	}
+
+	private Properties
+	readCheckpoint() throws IMuException
+	{
+		if (! _checkpoint.exists())
+			return null;
+		Properties checkpoint = new Properties();
+		try (InputStream input = new FileInputStream(_checkpoint))
+		{
+			checkpoint.load(input);
+		}
+		catch (IOException e)
+		{
+			throw new IMuException("ResumableExporterCheckpoint", e);
+		}
+		return checkpoint;
+	}
+
+	/* The CSV header written before the checkpoint, or null if none was */
+	private static String[]
+	readHeader(Properties checkpoint)
+	{
+		String count = checkpoint.getProperty("header");
+		if (count == null)
+			return null;
+		String[] header = new String[Integer.parseInt(count)];
+		for (int i = 0; i < header.length; i++)
+			header[i] = checkpoint.getProperty("header." + i);
+		return header;
+	}
+
+	/* The columns as they are recorded in the checkpoint */
+	private String
+	describeColumns()
+	{
+		if (_columns == null)
+			return "";
+		if (_columns instanceof String[] columns)
+			return String.join(",", columns);
+		return _columns.toString();
+	}
+
+	/* Replaces the checkpoint, writing it to a temporary file first so that
+	** a failure part of the way through leaves the previous one in place
+	*/
+	private void
+	writeCheckpoint(long irn, long records, long position, String[] header)
+		throws IOException
+	{
+		Properties checkpoint = new Properties();
+		checkpoint.setProperty("where", _where);
+		checkpoint.setProperty("format", _format.toString());
+		checkpoint.setProperty("gzip", Boolean.toString(_gzip));
+		checkpoint.setProperty("columns", describeColumns());
+		checkpoint.setProperty("irn", Long.toString(irn));
+		checkpoint.setProperty("records", Long.toString(records));
+		checkpoint.setProperty("position", Long.toString(position));
+		if (header != null)
+		{
+			checkpoint.setProperty("header", Integer.toString(header.length));
+			for (int i = 0; i < header.length; i++)
+				checkpoint.setProperty("header." + i, header[i]);
+		}
+
+		File temp = new File(_checkpoint.getPath() + ".tmp");
+		try (FileOutputStream output = new FileOutputStream(temp))
+		{
+			checkpoint.store(output, null);
+			output.getChannel().force(true);
+		}
+		Files.move(temp.toPath(), _checkpoint.toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
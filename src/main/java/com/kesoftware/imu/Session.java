@@ -47,6 +47,12 @@
 package com.kesoftware.imu;
 
 import java.net.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
 
 /*!
 ** Manages a connection to an IMu server.
@@ -98,6 +104,68 @@ public class Session
 	{
 		_defaultPort = port;
 	}
+
+	/*!
+	** @property defaultParser
+	**
+	** The parser used to read responses from the server if no
+	** object-specific parser has been supplied. Defaults to
+	** ``StreamParser.BYTE``.
+	*/
+	public static StreamParser
+	getDefaultParser()
+	{
+		return _defaultParser;
+	}
+
+	public static void
+	setDefaultParser(StreamParser parser)
+	{
+		_defaultParser = parser;
+	}
+
+	/*!
+	** @property defaultCompact
+	**
+	** A flag controlling whether requests are sent in compact form, without
+	** the indentation and line breaks normally written between elements, if
+	** no object-specific setting has been supplied. Defaults to ``false``.
+	**
+	** @since 2.8
+	*/
+	public static boolean
+	getDefaultCompact()
+	{
+		return _defaultCompact;
+	}
+
+	public static void
+	setDefaultCompact(boolean compact)
+	{
+		_defaultCompact = compact;
+	}
+
+	/*!
+	** @property defaultMemoryThreshold
+	**
+	** The size, in bytes, of the largest binary value which is kept in
+	** memory rather than being saved to a temporary file, if no
+	** object-specific threshold has been supplied. Defaults to ``0``, so
+	** binary values are always saved to temporary files.
+	**
+	** @since 2.8
+	*/
+	public static int
+	getDefaultMemoryThreshold()
+	{
+		return Stream.getDefaultMemoryThreshold();
+	}
+
+	public static void
+	setDefaultMemoryThreshold(int threshold)
+	{
+		Stream.setDefaultMemoryThreshold(threshold);
+	}
 	
 	/* Constructors */
 	/*!
@@ -112,7 +180,7 @@ public class Session
 	public
 	Session(String host, int port)
 	{
-		initialise();
+		configure();
 		_host = host;
 		_port = port;
 	}
@@ -129,7 +197,7 @@ public class Session
 	public
 	Session(String host)
 	{
-		initialise();
+		configure();
 		_host = host;
 	}
 
@@ -145,7 +213,7 @@ public class Session
 	public
 	Session(int port)
 	{
-		initialise();
+		configure();
 		_port = port;
 	}
 	
@@ -161,10 +229,33 @@ public class Session
 	public
 	Session()
 	{
-		initialise();
+		configure();
 	}
 
 	/* Properties */
+	/*!
+	** @property binarySink
+	**
+	** A `BinarySink` [$<link>(:binarysink)] to be given the binary values,
+	** such as multimedia resources, in responses read from the server,
+	** instead of them being copied to memory or temporary files. A
+	** `Handler`'s own sink [$<link>(:handler:binarySink)], if set, is used
+	** for its requests in preference to this one.
+	**
+	** @since 2.8
+	*/
+	public BinarySink
+	getBinarySink()
+	{
+		return _binarySink;
+	}
+
+	public void
+	setBinarySink(BinarySink sink)
+	{
+		_binarySink = sink;
+	}
+
 	/*!
 	** @property close
 	**
@@ -187,6 +278,28 @@ public class Session
 		_close = new Boolean(close);
 	}
 
+	/*!
+	** @property compact
+	**
+	** A flag controlling whether requests are sent in compact form, without
+	** the indentation and line breaks normally written between elements.
+	** Compact requests are smaller, which matters for requests carrying large
+	** lists of keys or values.
+	**
+	** @since 2.8
+	*/
+	public boolean
+	getCompact()
+	{
+		return _compact;
+	}
+
+	public void
+	setCompact(boolean compact)
+	{
+		_compact = compact;
+	}
+
 	/*!
 	** @property context
 	**
@@ -202,6 +315,82 @@ public class Session
 	setContext(String context)
 	{
 		_context = context;
+		_loggedIn = true;
+	}
+
+	/*!
+	** @property digest
+	**
+	** The name of a `MessageDigest` algorithm, such as ``MD5`` or
+	** ``SHA-256``, used to compute a digest of each binary value received
+	** from the server. The digest is computed as the bytes are read and is
+	** available from the returned stream through the `Digested`
+	** [$<link>(:digested)] interface. If ``null`` (the default) no digests are
+	** computed. Values passed to a `BinarySink` [$<link>(:binarysink)] are
+	** not digested.
+	**
+	** The server's checksums are MD5 digests, so only ``MD5`` can be used
+	** while the ``verifyChecksums`` [$<link>(:session:verifyChecksums)]
+	** property is set.
+	**
+	** @throws IMuException
+	**   The algorithm is not supported, or is not ``MD5`` while checksums are
+	**   being verified.
+	**
+	** @since 2.8
+	*/
+	public String
+	getDigest()
+	{
+		return _digest;
+	}
+
+	public void
+	setDigest(String algorithm) throws IMuException
+	{
+		if (algorithm != null)
+		{
+			try
+			{
+				MessageDigest.getInstance(algorithm);
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				throw new IMuException("SessionDigest", algorithm);
+			}
+			if (_verifyChecksums && ! isChecksumDigest(algorithm))
+				throw new IMuException("SessionChecksumDigest", algorithm);
+		}
+		_digest = algorithm;
+	}
+
+	/*!
+	** @property directTransfers
+	**
+	** A flag controlling whether the connection is made through a
+	** `SocketChannel` so that multimedia can be transferred directly between
+	** the socket and temporary files without being copied through the heap.
+	** Defaults to ``false``.
+	**
+	** As with any interruptible channel, interrupting a thread which is
+	** reading from or writing to the connection closes it when this flag is
+	** set. The request fails with an `IMuException`, as do any other
+	** requests waiting for a response, and the next request opens a new
+	** connection. Setting this property after the connection has been
+	** established has no effect.
+	**
+	** @since 2.8
+	*/
+	public boolean
+	getDirectTransfers()
+	{
+		return _directTransfers;
+	}
+
+	public void
+	setDirectTransfers(boolean direct)
+	{
+		_directTransfers = direct;
 	}
 
 	/*!
@@ -223,6 +412,86 @@ public class Session
 		_host = host;
 	}
 
+	/*!
+	** @property fileBytes
+	**
+	** The total number of bytes of binary data received by this session
+	** which were saved to temporary files.
+	**
+	** @since 2.8
+	*/
+	public synchronized long
+	getFileBytes()
+	{
+		if (_stream == null)
+			return _fileBytes;
+		return _fileBytes + _stream.getFileBytes();
+	}
+
+	/*!
+	** @property memoryBytes
+	**
+	** The total number of bytes of binary data received by this session
+	** which were kept in memory.
+	**
+	** @since 2.8
+	*/
+	public synchronized long
+	getMemoryBytes()
+	{
+		if (_stream == null)
+			return _memoryBytes;
+		return _memoryBytes + _stream.getMemoryBytes();
+	}
+
+	/*!
+	** @property memoryThreshold
+	**
+	** The size, in bytes, of the largest binary value which is kept in
+	** memory rather than being saved to a temporary file.
+	** Binary values, such as multimedia returned by a fetch, are returned as
+	** `InputStream`\s either way. Small values such as thumbnails are
+	** cheaper to keep in memory while large ones are better written to disk.
+	**
+	** The default is ``0``, in which case every binary value is saved to a
+	** temporary file and returned as a `FileInputStream` as in earlier
+	** versions. Values kept in memory are returned as some other kind of
+	** `InputStream`, so code which relies on a `FileInputStream` should leave
+	** this property alone.
+	**
+	** @since 2.8
+	*/
+	public int
+	getMemoryThreshold()
+	{
+		return _memoryThreshold;
+	}
+
+	public void
+	setMemoryThreshold(int threshold)
+	{
+		_memoryThreshold = threshold;
+	}
+
+	/*!
+	** @property parser
+	**
+	** The parser used to read responses from the server.
+	** Setting this property after the connection has been established has no
+	** effect.
+	*/
+	public StreamParser
+	getParser()
+	{
+		return _parser;
+	}
+
+	public void
+	setParser(StreamParser parser)
+	{
+		_parser = parser;
+	}
+
 	/*!
 	** @property port
 	**
@@ -242,6 +511,61 @@ public class Session
 		_port = port;
 	}
 
+	/*!
+	** @property requestSize
+	**
+	** The number of bytes sent to the server for the most recent request.
+	**
+	** @since 2.8
+	*/
+	public synchronized long
+	getRequestSize()
+	{
+		return _requestSize;
+	}
+
+	/*!
+	** @property responseSize
+	**
+	** The number of bytes received from the server for the most recently
+	** read response, including any binary values.
+	**
+	** @since 2.8
+	*/
+	public synchronized long
+	getResponseSize()
+	{
+		return _responseSize;
+	}
+
+	/*!
+	** @property sharedKeys
+	**
+	** A flag controlling whether objects in an array which have the same keys
+	** share a single copy of them, with each object holding only its values.
+	** This greatly reduces the memory used by the rows returned from a
+	** fetch. The objects are still `Map`\s and can be used in the same way.
+	** However, one which is changed, iterated over (other than by
+	** **forEach( )**), compared, printed or cloned first copies its values
+	** into its own hash table. Such an object must not be shared between
+	** threads without synchronisation, even if it is only read, and the
+	** order in which its keys are iterated can change. This is off by
+	** default.
+	**
+	** @since 2.8
+	*/
+	public boolean
+	getSharedKeys()
+	{
+		return _sharedKeys;
+	}
+
+	public void
+	setSharedKeys(boolean shared)
+	{
+		_sharedKeys = shared;
+	}
+
 	/*!
 	** @property suspend
 	**
@@ -267,6 +591,40 @@ public class Session
 	{
 		_suspend = new Boolean(suspend);
 	}
+
+	/*!
+	** @property verifyChecksums
+	**
+	** A flag controlling whether the checksums returned by the server with
+	** multimedia resources (requested using the ``checksum:md5`` modifier)
+	** are checked against the bytes received. If a checksum does not match,
+	** the rest of the response is read without keeping any more binary
+	** values and the request throws an `IMuException`.
+	**
+	** If the ``digest`` [$<link>(:session:digest)] property is not set, MD5
+	** digests are computed when this flag is set. If it is set it must be
+	** ``MD5``, since a digest computed with any other algorithm cannot be
+	** compared with the server's checksums.
+	**
+	** @throws IMuException
+	**   The flag is being set while the ``digest`` property is set to an
+	**   algorithm other than ``MD5``.
+	**
+	** @since 2.8
+	*/
+	public boolean
+	getVerifyChecksums()
+	{
+		return _verifyChecksums;
+	}
+
+	public void
+	setVerifyChecksums(boolean verify) throws IMuException
+	{
+		if (verify && _digest != null && ! isChecksumDigest(_digest))
+			throw new IMuException("SessionChecksumDigest", _digest);
+		_verifyChecksums = verify;
+	}
 	
 	/* Methods */
 	/*!
@@ -275,16 +633,31 @@ public class Session
 	** @throws IMuException
 	**   The connection could not be opened.
 	*/
-	public void
+	public synchronized void
 	connect() throws IMuException
 	{
 		if (_socket != null)
-			return;
+		{
+			if (! _socket.isClosed())
+				return;
+			// A channel closed by an interrupt, so start again
+			close();
+		}
 
 		Trace.write(2, "connecting to %s:%d", _host, _port);
 		try
 		{
-			_socket = new Socket(_host, _port);
+			if (_directTransfers)
+			{
+				// Connect via a channel so binaries can be transferred
+				// directly between files and the socket
+				InetSocketAddress address = new InetSocketAddress(_host, _port);
+				if (address.isUnresolved())
+					throw new UnknownHostException(_host);
+				_socket = SocketChannel.open(address).socket();
+			}
+			else
+				_socket = new Socket(_host, _port);
 		}
 		catch (Exception e)
 		{
@@ -296,28 +669,94 @@ public class Session
 		
 		//logging_socket = new LoggingSocket(_socket);
         
-		_stream = new Stream(_socket);
+		_stream = new Stream(_socket, _parser);
 	}
 
 	/*!
 	** Closes the connection to the IMu server.
 	*/
-	public void
+	public synchronized void
 	disconnect()
 	{
 		if (_socket == null)
 			return;
 
 		Trace.write(2, "closing connection");
+		close();
+		initialise();
+	}
+
+	/*!
+	** Checks whether the session currently holds an open connection to the
+	** IMu server.
+	**
+	** This only reflects the state of the local socket. A connection which
+	** has been dropped by the server is not detected until the next request
+	** is made.
+	**
+	** @returns
+	**   ``true`` if the connection is open, ``false`` otherwise.
+	*/
+	public boolean
+	isConnected()
+	{
+		if (_socket == null)
+			return false;
+		if (_socket.isClosed() || ! _socket.isConnected())
+			return false;
+		if (_socket.isInputShutdown() || _socket.isOutputShutdown())
+			return false;
+		return true;
+	}
+
+	/* Checks, without sending a request, whether an idle connection is
+	** still usable. A connection the server has closed reads as end of
+	** file, and one with data waiting although no response is expected is
+	** out of step, so either fails the check. Connections with requests
+	** in flight are assumed to be usable.
+	*/
+	synchronized boolean
+	probe()
+	{
+		if (! isConnected())
+			return false;
+		if (! _pending.isEmpty())
+			return true;
 		try
 		{
-			_socket.close();
+			SocketChannel channel = _socket.getChannel();
+			if (channel != null)
+			{
+				// A non-blocking read returns at once when nothing is waiting
+				channel.configureBlocking(false);
+				try
+				{
+					return channel.read(ByteBuffer.allocate(1)) == 0;
+				}
+				finally
+				{
+					channel.configureBlocking(true);
+				}
+			}
+			_socket.setSoTimeout(1);
+			try
+			{
+				_socket.getInputStream().read();
+				return false;
+			}
+			catch (SocketTimeoutException e)
+			{
+				return true;
+			}
+			finally
+			{
+				_socket.setSoTimeout(0);
+			}
 		}
 		catch (Exception e)
 		{
-			// ignore
+			return false;
 		}
-		initialise();
 	}
 
 	/*!
@@ -346,6 +785,7 @@ public class Session
 	public Map
 	login(String login, String password, boolean spawn) throws Exception
 	{
+		_loggedIn = true;
 		Map request = new Map();
 		request.put("login", login);
 		request.put("password", password);
@@ -422,6 +862,10 @@ public class Session
 	/*!
 	** Submits a low-level request to the IMu server.
 	**
+	** If earlier requests have been submitted using **submit( )**
+	** [$<link>(:session:submit)] their responses are read first, in order,
+	** before the response to this request.
+	**
 	** @param request
 	**   A `Map` object [$<link>(:map:map)] containing the request parameters.
 	**
@@ -433,6 +877,102 @@ public class Session
 	*/
 	public Map
 	request(Map request) throws IMuException
+	{
+		SessionFuture<Map> future = new SessionFuture<Map>(this);
+		send(request, future);
+		return future.await();
+	}
+
+	/*!
+	** Submits a low-level request to the IMu server and reads the result
+	** from the server's response using ``decoder``.
+	**
+	** The rest of the response is checked in the same way as for
+	** **request( )** but the result itself is read directly from the
+	** connection by the decoder, so only the parts of it the decoder needs
+	** are ever built.
+	**
+	** @param request
+	**   The request to submit.
+	**
+	** @param decoder
+	**   A `ResultDecoder` [$<link>(:resultdecoder)] to read the result.
+	**
+	** @returns
+	**   The value returned by ``decoder``.
+	**
+	** @throws IMuException
+	**   If a server-side error occurred or ``decoder`` threw an exception.
+	**
+	** @since 2.8
+	*/
+	public <T> T
+	request(Map request, ResultDecoder<T> decoder) throws IMuException
+	{
+		SessionFuture<T> future = new SessionFuture<T>(this)
+		{
+			@Override
+			@SuppressWarnings("unchecked")
+			protected T
+			convert(Map response)
+			{
+				return (T) response.get("result");
+			}
+		};
+		future.setDecoder(decoder);
+		send(request, future);
+		return future.await();
+	}
+
+	/*!
+	** Submits a low-level request to the IMu server without waiting for the
+	** server's response.
+	**
+	** Several independent requests can be submitted back-to-back on the same
+	** connection so that they are all in flight at once. The server handles
+	** them in the order they were sent and the responses are read in the same
+	** order, as each returned `Future` is waited on. Waiting on a later
+	** response reads (and keeps) any earlier responses first.
+	**
+	** Requests which depend on the results of earlier requests should not be
+	** submitted until those results are known.
+	**
+	** @param request
+	**   A `Map` object [$<link>(:map:map)] containing the request parameters.
+	**
+	** @returns
+	**   A `Future` which yields the `Map` object [$<link>(:map:map)]
+	**   containing the server's response. If a server-side error occurred
+	**   the `Future` throws an `ExecutionException` whose cause is the
+	**   `IMuException`.
+	**
+	** @throws IMuException
+	**   The request could not be sent.
+	**
+	** @since 2.8
+	*/
+	public Future<Map>
+	submit(Map request) throws IMuException
+	{
+		SessionFuture<Map> future = new SessionFuture<Map>(this);
+		send(request, future);
+		return future;
+	}
+
+	/*!
+	** @property pending
+	**
+	** The number of requests which have been sent to the server but whose
+	** responses have not yet been read.
+	*/
+	public synchronized int
+	getPending()
+	{
+		return _pending.size();
+	}
+
+	synchronized void
+	send(Map request, SessionFuture<?> future) throws IMuException
 	{
 		connect();
 
@@ -443,10 +983,250 @@ public class Session
 		if (_suspend != null)
 			request.put("suspend", _suspend);
 
+		_stream.setCompact(_compact);
 		_stream.put(request);
-		Object raw = _stream.get();
-		
-		
+		_requestSize = _stream.getRequestSize();
+		_pending.addLast(future);
+	}
+
+	synchronized void
+	receive(SessionFuture<?> future, long timeout) throws IMuException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		while (! future.isDone())
+		{
+			int wait = 0;
+			if (timeout > 0)
+			{
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					left = 1;
+				wait = (int) Math.min(left, Integer.MAX_VALUE);
+			}
+			receiveNext(wait);
+		}
+	}
+
+	/* Whether the session may be tied to a particular user, because it has
+	** been logged in or attached to another server-side session with
+	** setContext(), since it was connected
+	*/
+	boolean
+	isLoggedIn()
+	{
+		return _loggedIn;
+	}
+
+	/* Sets the session's settings and per-request flags back to their
+	** defaults, leaving the connection as it is
+	*/
+	void
+	reset()
+	{
+		_binarySink = null;
+		_close = null;
+		_compact = _defaultCompact;
+		_digest = null;
+		_directTransfers = false;
+		_memoryThreshold = Stream.getDefaultMemoryThreshold();
+		_parser = _defaultParser;
+		_sharedKeys = false;
+		_suspend = null;
+		_verifyChecksums = false;
+	}
+
+	/* Creates an unconnected session to the same host and port, and with
+	** the same settings, as this one. The binary sink is not copied since
+	** the copies are normally read by other threads at the same time and a
+	** sink need not be safe to call from several threads at once.
+	*/
+	Session
+	copy()
+	{
+		Session session = new Session(_host, _port);
+		session.setParser(_parser);
+		session.setCompact(_compact);
+		session.setDirectTransfers(_directTransfers);
+		// Already checked by setDigest() and setVerifyChecksums()
+		session._digest = _digest;
+		session.setMemoryThreshold(_memoryThreshold);
+		session.setSharedKeys(_sharedKeys);
+		session._verifyChecksums = _verifyChecksums;
+		return session;
+	}
+
+	private static String _defaultHost = "127.0.0.1";
+	private static int _defaultPort = 40000;
+	private static StreamParser _defaultParser = StreamParser.BYTE;
+	private static boolean _defaultCompact = false;
+
+	private BinarySink _binarySink;
+	private Boolean _close;
+	private boolean _compact;
+	private String _context;
+	private String _digest;
+	private boolean _directTransfers;
+	private String _host;
+	private boolean _loggedIn;
+	private int _memoryThreshold;
+	private StreamParser _parser;
+	private int _port;
+	private boolean _sharedKeys;
+	private Socket _socket;
+	//private LoggingSocket logging_socket;
+	private long _requestSize;
+	private long _responseSize;
+	private Stream _stream;
+	private Boolean _suspend;
+	private boolean _verifyChecksums;
+	private ArrayDeque<SessionFuture<?>> _pending = new ArrayDeque<SessionFuture<?>>();
+
+	/* Totals from earlier connections */
+	private long _memoryBytes = 0;
+	private long _fileBytes = 0;
+
+	/* Sets the session's settings to their defaults. Unlike the state reset
+	** by initialise() these are kept when the session is disconnected.
+	*/
+	private void
+	configure()
+	{
+		reset();
+		initialise();
+	}
+
+	private void
+	initialise()
+	{
+		_close = null;
+		_context = null;
+		_loggedIn = false;
+		_host = _defaultHost;
+		_port = _defaultPort;
+		_requestSize = 0;
+		_responseSize = 0;
+		_socket = null;
+		_stream = null;
+		_suspend = null;
+	}
+
+	/* Whether a digest algorithm yields digests which can be compared with
+	** the MD5 checksums returned by the server
+	*/
+	private static boolean
+	isChecksumDigest(String algorithm)
+	{
+		return algorithm.equalsIgnoreCase("MD5");
+	}
+
+	/* Closes the connection, failing any requests still waiting for a
+	** response. The host, port and other settings are left as they are so
+	** the next request connects to the same server.
+	*/
+	private void
+	close()
+	{
+		try
+		{
+			_socket.close();
+		}
+		catch (Exception e)
+		{
+			// ignore
+		}
+		_memoryBytes += _stream.getMemoryBytes();
+		_fileBytes += _stream.getFileBytes();
+		_socket = null;
+		_stream = null;
+		if (! _pending.isEmpty())
+			abandon(new IMuException("SessionDisconnected"));
+	}
+
+	private void
+	abandon(IMuException e)
+	{
+		while (! _pending.isEmpty())
+			_pending.removeFirst().fail(e);
+	}
+
+	private void
+	setTimeout(int timeout)
+	{
+		try
+		{
+			_socket.setSoTimeout(timeout);
+		}
+		catch (SocketException e)
+		{
+			// ignore
+		}
+	}
+
+	private void
+	receiveNext(int timeout) throws IMuException
+	{
+		SessionFuture<?> future = _pending.removeFirst();
+		ResultDecoder<?> decoder = future.getDecoder();
+		StreamReader reader = decoder == null ? null : new StreamReader(_stream);
+		// Still needed for its errors once a close request has disconnected
+		Stream stream = _stream;
+
+		Object raw;
+		long start = _stream.getBytesRead();
+		try
+		{
+			if (timeout > 0)
+				setTimeout(timeout);
+			_stream.setMemoryThreshold(_memoryThreshold);
+			_stream.setRows(future.getRowPath(), future.getRowListener());
+			_stream.setLazyRows(future.getLazyRows());
+			_stream.setSharedKeys(_sharedKeys);
+			BinarySink sink = future.getBinarySink();
+			if (sink == null)
+				sink = _binarySink;
+			_stream.setBinarySink(decoder == null ? sink : null);
+			if (_digest != null)
+				_stream.setDigest(_digest);
+			else
+				_stream.setDigest(_verifyChecksums ? "MD5" : null);
+			_stream.setVerify(_verifyChecksums);
+			try
+			{
+				if (decoder == null)
+					raw = _stream.get();
+				else
+					raw = reader.readResponse(decoder);
+			}
+			finally
+			{
+				if (timeout > 0)
+					setTimeout(0);
+				_responseSize = _stream.getBytesRead() - start;
+				future.setResponseSize(_responseSize);
+			}
+		}
+		catch (IMuException e)
+		{
+			/* The rest of the responses can no longer be read reliably
+			*/
+			if (e.getCause() instanceof SocketTimeoutException)
+			{
+				Trace.write(2, "timed out reading response");
+				e = new IMuException("SessionTimeout", timeout);
+				future.fail(e);
+				close();
+				throw e;
+			}
+			/* Any unread part of this response, and the responses to the
+			** requests sent after it, would otherwise be read as the
+			** replies to later requests
+			*/
+			future.fail(e);
+			abandon(e);
+			close();
+			return;
+		}
+
 		//System.out.println( "=== INPUT ===" );
 		//System.out.println( logging_socket.getInputLog() );
 		//System.out.println( "=== OUTPUT ===" );
@@ -456,9 +1236,14 @@ public class Session
 		
 		if (! (raw instanceof Map))
 		{
-			String type = raw.getClass().getName();
+			String type = raw == null ? "null" : raw.getClass().getName();
 			Trace.write(2, "bad type of response from server: %s", type);
-			throw new IMuException("SessionResponse", type);
+			IMuException e = new IMuException("SessionResponse", type);
+			future.fail(e);
+			// The responses can no longer be matched to their requests
+			abandon(e);
+			close();
+			return;
 		}
 		Map response = (Map) raw;
 
@@ -491,33 +1276,42 @@ public class Session
 
 			Trace.write(2, "throwing exception %s", e.toString());
 
-			throw e;
+			future.fail(e);
+			return;
 		}
 
-		return response;
-	}
-	
-	private static String _defaultHost = "127.0.0.1";
-	private static int _defaultPort = 40000;
-
-	private Boolean _close;
-	private String _context;
-	private String _host;
-	private int _port;
-	private Socket _socket;
-	//private LoggingSocket logging_socket;
-	private Stream _stream;
-	private Boolean _suspend;
+		/* A row handler, binary sink or result decoder failed part way
+		** through, or a checksum did not match
+		*/
+		Exception failure;
+		String id;
+		if (decoder == null)
+		{
+			failure = stream.getRowError();
+			id = "SessionRowHandler";
+			if (failure == null)
+			{
+				failure = stream.getSinkError();
+				id = "SessionBinarySink";
+			}
+		}
+		else
+		{
+			failure = reader.getError();
+			id = "SessionDecoder";
+		}
+		if (failure == null)
+			failure = stream.getChecksumError();
+		if (failure != null)
+		{
+			Trace.write(2, "response handler failed: %s", failure.toString());
+			if (failure instanceof IMuException e)
+				future.fail(e);
+			else
+				future.fail(new IMuException(id, failure));
+			return;
+		}
 
-	private void
-	initialise()
-	{
-		_close = null;
-		_context = null;
-		_host = _defaultHost;
-		_port = _defaultPort;
-		_socket = null;
-		_stream = null;
-		_suspend = null;
+		future.complete(response);
 	}
 }
@@ -0,0 +1,289 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/* The pending result of a request sent on a Session.
+**
+** The response is not read from the connection until a thread waits on this
+** (or a later) result, so no separate reader thread is needed. Responses
+** which arrive before the one being waited for are read and kept by their
+** own futures.
+*/
+class SessionFuture<T> implements Future<T>
+{
+	/* Constructor */
+	SessionFuture(Session session)
+	{
+		_session = session;
+		_done = false;
+		_value = null;
+		_error = null;
+		_rowPath = null;
+		_rowListener = null;
+		_decoder = null;
+		_binarySink = null;
+		_lazyRows = false;
+		_responseSize = 0;
+		_completed = 0;
+	}
+
+	/* Methods */
+	@Override
+	public boolean
+	cancel(boolean interrupt)
+	{
+		// the request has already been sent
+		return false;
+	}
+
+	@Override
+	public boolean
+	isCancelled()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean
+	isDone()
+	{
+		return _done;
+	}
+
+	@Override
+	public T
+	get() throws ExecutionException
+	{
+		try
+		{
+			return await();
+		}
+		catch (IMuException e)
+		{
+			throw new ExecutionException(e);
+		}
+	}
+
+	/* If the timeout expires part way through reading a response the
+	** connection is closed, as it can no longer be kept in step with the
+	** server. Any other outstanding responses on the session then fail.
+	*/
+	@Override
+	public T
+	get(long timeout, TimeUnit unit) throws ExecutionException, TimeoutException
+	{
+		long millis = unit.toMillis(timeout);
+		if (millis <= 0)
+			millis = 1;
+		try
+		{
+			_session.receive(this, millis);
+		}
+		catch (IMuException e)
+		{
+			if (e.getID().equals("SessionTimeout"))
+				throw new TimeoutException(e.getMessage());
+			throw new ExecutionException(e);
+		}
+		if (_error != null)
+			throw new ExecutionException(_error);
+		return _value;
+	}
+
+	/* Asks for the elements of the array at path in the response to be
+	** passed to listener as they are read. Must be called before the request
+	** is sent.
+	*/
+	void
+	setRows(String[] path, RowListener listener)
+	{
+		_rowPath = path;
+		_rowListener = listener;
+	}
+
+	String[]
+	getRowPath()
+	{
+		return _rowPath;
+	}
+
+	RowListener
+	getRowListener()
+	{
+		return _rowListener;
+	}
+
+	/* Asks for the elements of the array at the row path to be read as
+	** LazyMaps. Must be called before the request is sent.
+	*/
+	void
+	setLazyRows(boolean lazy)
+	{
+		_lazyRows = lazy;
+	}
+
+	boolean
+	getLazyRows()
+	{
+		return _lazyRows;
+	}
+
+	/* Asks for the result in the response to be read by decoder rather than
+	** built as a Map. Must be called before the request is sent.
+	*/
+	void
+	setDecoder(ResultDecoder<?> decoder)
+	{
+		_decoder = decoder;
+	}
+
+	ResultDecoder<?>
+	getDecoder()
+	{
+		return _decoder;
+	}
+
+	/* Asks for binary values in the response to be passed to sink rather
+	** than the session's sink. Must be called before the request is sent.
+	*/
+	void
+	setBinarySink(BinarySink sink)
+	{
+		_binarySink = sink;
+	}
+
+	BinarySink
+	getBinarySink()
+	{
+		return _binarySink;
+	}
+
+	T
+	await() throws IMuException
+	{
+		if (! _done)
+			_session.receive(this, 0);
+		if (_error != null)
+			throw _error;
+		return _value;
+	}
+
+	/* The number of bytes in the response, once it has been read */
+	void
+	setResponseSize(long size)
+	{
+		_responseSize = size;
+	}
+
+	long
+	getResponseSize()
+	{
+		return _responseSize;
+	}
+
+	/* The System.nanoTime() at which the response was finished with */
+	long
+	getCompleted()
+	{
+		return _completed;
+	}
+
+	void
+	complete(Map response)
+	{
+		try
+		{
+			_value = convert(response);
+		}
+		catch (IMuException e)
+		{
+			_error = e;
+		}
+		catch (RuntimeException e)
+		{
+			_error = new IMuException("SessionResponse", e);
+		}
+		_completed = System.nanoTime();
+		_done = true;
+	}
+
+	void
+	fail(IMuException error)
+	{
+		_error = error;
+		_completed = System.nanoTime();
+		_done = true;
+	}
+
+	/* Converts the server's response into the result returned by get().
+	** Called as soon as the response is read.
+	*/
+	@SuppressWarnings("unchecked")
+	protected T
+	convert(Map response) throws IMuException
+	{
+		return (T) response;
+	}
+
+	private final Session _session;
+
+	private volatile boolean _done;
+	private T _value;
+	private IMuException _error;
+	private String[] _rowPath;
+	private RowListener _rowListener;
+	private ResultDecoder<?> _decoder;
+	private BinarySink _binarySink;
+	private boolean _lazyRows;
+	private long _responseSize;
+	private volatile long _completed;
+}
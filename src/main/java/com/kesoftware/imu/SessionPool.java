@@ -0,0 +1,657 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/*!
+** Maintains a bounded pool of connected `Session` objects
+** [$<link>(:session:session)] for a single host and port.
+**
+** Sessions are handed out by **borrow( )** [$<link>(:sessionpool:borrow)]
+** and must be handed back by **release( )** [$<link>(:sessionpool:release)]
+** once the caller has finished with them. A session which has failed should
+** be handed back using **invalidate( )** [$<link>(:sessionpool:invalidate)]
+** so that it is closed rather than reused.
+**
+** A pooled session is never shared between logins. A session which has been
+** logged in is closed when it is released rather than being handed to the
+** next borrower, so callers which need to log in gain little from a pool.
+**
+** Idle sessions are evicted once they have been unused for longer than
+** **maxIdleTime** and any session is closed once it is older than
+** **maxLifetime**. Eviction is performed whenever a session is borrowed or
+** released and may also be requested explicitly by calling **evict( )**
+** [$<link>(:sessionpool:evict)].
+**
+** @usage
+**   com.kesoftware.imu.SessionPool
+** @end
+**
+** @since 2.8
+*/
+public class SessionPool
+{
+	/* Constructors */
+	/*!
+	** Creates a `SessionPool` object which connects to the specified
+	** ``host`` and ``port`` and holds at most ``maxSize`` sessions.
+	**
+	** @param host
+	**   The host to connect to.
+	**
+	** @param port
+	**   The port on the host to connect on.
+	**
+	** @param maxSize
+	**   The maximum number of sessions (active and idle) held by the pool.
+	*/
+	public
+	SessionPool(String host, int port, int maxSize)
+	{
+		_host = host;
+		_port = port;
+		_maxSize = maxSize;
+
+		_borrowTimeout = 30000;
+		_maxIdleTime = 600000;
+		_maxLifetime = 3600000;
+		_validate = true;
+		_validator = null;
+
+		_active = new IdentityHashMap<Session, Entry>();
+		_idle = new ArrayDeque<Entry>();
+		_closed = false;
+	}
+
+	/*!
+	** Creates a `SessionPool` object which connects to the specified
+	** ``host`` and ``port`` and holds at most ``8`` sessions.
+	**
+	** @param host
+	**   The host to connect to.
+	**
+	** @param port
+	**   The port on the host to connect on.
+	*/
+	public
+	SessionPool(String host, int port)
+	{
+		this(host, port, 8);
+	}
+
+	/*!
+	** Creates a `SessionPool` object using the `Session`
+	** [$<link>(:session:session)] class's default **host** and **port**
+	** values.
+	*/
+	public
+	SessionPool()
+	{
+		this(Session.getDefaultHost(), Session.getDefaultPort());
+	}
+
+	/* Properties */
+	/*!
+	** @property borrowTimeout
+	**   The maximum number of milliseconds **borrow( )**
+	**   [$<link>(:sessionpool:borrow)] will wait for a session to become
+	**   available. A value of ``0`` or less causes it to wait indefinitely.
+	*/
+	public synchronized long
+	getBorrowTimeout()
+	{
+		return _borrowTimeout;
+	}
+
+	public synchronized void
+	setBorrowTimeout(long timeout)
+	{
+		_borrowTimeout = timeout;
+	}
+
+	/*!
+	** @property host
+	**   The name of the host the pool's sessions connect to.
+	*/
+	public String
+	getHost()
+	{
+		return _host;
+	}
+
+	/*!
+	** @property maxIdleTime
+	**   The number of milliseconds a session may remain unused in the pool
+	**   before it is closed. A value of ``0`` or less disables idle eviction.
+	*/
+	public synchronized long
+	getMaxIdleTime()
+	{
+		return _maxIdleTime;
+	}
+
+	public synchronized void
+	setMaxIdleTime(long time)
+	{
+		_maxIdleTime = time;
+	}
+
+	/*!
+	** @property maxLifetime
+	**   The number of milliseconds after which a session is closed instead of
+	**   being handed out again, regardless of how recently it was used.
+	**   A value of ``0`` or less allows sessions to live indefinitely.
+	*/
+	public synchronized long
+	getMaxLifetime()
+	{
+		return _maxLifetime;
+	}
+
+	public synchronized void
+	setMaxLifetime(long time)
+	{
+		_maxLifetime = time;
+	}
+
+	/*!
+	** @property maxSize
+	**   The maximum number of sessions (active and idle) held by the pool.
+	*/
+	public synchronized int
+	getMaxSize()
+	{
+		return _maxSize;
+	}
+
+	public synchronized void
+	setMaxSize(int size)
+	{
+		_maxSize = size;
+		notifyAll();
+	}
+
+	/*!
+	** @property port
+	**   The number of the port the pool's sessions connect to.
+	*/
+	public int
+	getPort()
+	{
+		return _port;
+	}
+
+	/*!
+	** @property validate
+	**   A flag controlling whether an idle session's connection is checked
+	**   before the session is handed out by **borrow( )**
+	**   [$<link>(:sessionpool:borrow)]. The check finds connections which
+	**   the server has closed, without sending a request, and then calls the
+	**   **validator** [$<link>(:sessionpool:validator)] if one is set.
+	**   Sessions which fail the check are closed and replaced. The default
+	**   is ``true``.
+	*/
+	public synchronized boolean
+	getValidate()
+	{
+		return _validate;
+	}
+
+	public synchronized void
+	setValidate(boolean validate)
+	{
+		_validate = validate;
+	}
+
+	/*!
+	** @property validator
+	**   A `SessionValidator` [$<link>(:sessionvalidator)] to make further
+	**   checks on an idle session before it is handed out, such as a cheap
+	**   request to confirm that the server is responding. If ``null`` (the
+	**   default) only the connection is checked.
+	*/
+	public synchronized SessionValidator
+	getValidator()
+	{
+		return _validator;
+	}
+
+	public synchronized void
+	setValidator(SessionValidator validator)
+	{
+		_validator = validator;
+	}
+
+	/* Statistics */
+	/*!
+	** @property activeCount
+	**   The number of sessions currently borrowed from the pool.
+	*/
+	public synchronized int
+	getActiveCount()
+	{
+		return _active.size();
+	}
+
+	/*!
+	** @property idleCount
+	**   The number of connected sessions waiting in the pool to be borrowed.
+	*/
+	public synchronized int
+	getIdleCount()
+	{
+		return _idle.size();
+	}
+
+	/*!
+	** @property borrowCount
+	**   The total number of sessions successfully borrowed from the pool.
+	*/
+	public synchronized long
+	getBorrowCount()
+	{
+		return _borrowCount;
+	}
+
+	/*!
+	** @property createCount
+	**   The total number of sessions created by the pool.
+	*/
+	public synchronized long
+	getCreateCount()
+	{
+		return _createCount;
+	}
+
+	/*!
+	** @property destroyCount
+	**   The total number of sessions closed by the pool, whether through
+	**   eviction, failed validation or invalidation.
+	*/
+	public synchronized long
+	getDestroyCount()
+	{
+		return _destroyCount;
+	}
+
+	/*!
+	** @property timeoutCount
+	**   The number of calls to **borrow( )** [$<link>(:sessionpool:borrow)]
+	**   which gave up waiting for a session.
+	*/
+	public synchronized long
+	getTimeoutCount()
+	{
+		return _timeoutCount;
+	}
+
+	/*!
+	** @property waitTime
+	**   The total number of milliseconds callers have spent waiting in
+	**   **borrow( )** [$<link>(:sessionpool:borrow)], including the time
+	**   taken to connect new sessions.
+	*/
+	public synchronized long
+	getWaitTime()
+	{
+		return _waitTime / 1000000;
+	}
+
+	/*!
+	** @property maxWaitTime
+	**   The longest time in milliseconds any single call to **borrow( )**
+	**   [$<link>(:sessionpool:borrow)] has spent waiting.
+	*/
+	public synchronized long
+	getMaxWaitTime()
+	{
+		return _maxWaitTime / 1000000;
+	}
+
+	/* Methods */
+	/*!
+	** Takes a connected session from the pool, creating a new one if the pool
+	** has not yet reached **maxSize** or waiting up to **borrowTimeout**
+	** milliseconds for one to be released.
+	**
+	** @returns
+	**   A connected `Session` object [$<link>(:session:session)].
+	**
+	** @throws IMuException
+	**   The pool is closed, no session became available in time or a new
+	**   session could not be connected.
+	*/
+	public Session
+	borrow() throws IMuException
+	{
+		long start = System.nanoTime();
+		Entry entry = null;
+		boolean create = false;
+		while (true)
+		{
+			synchronized (this)
+			{
+				long timeout = _borrowTimeout;
+				long deadline = start + timeout * 1000000;
+				while (true)
+				{
+					if (_closed)
+						throw new IMuException("SessionPoolClosed");
+					evictExpired();
+
+					entry = _idle.pollFirst();
+					if (entry != null)
+						break;
+					if (_total < _maxSize)
+					{
+						_total++;
+						create = true;
+						break;
+					}
+
+					long wait = 0;
+					if (timeout > 0)
+					{
+						wait = (deadline - System.nanoTime()) / 1000000;
+						if (wait <= 0)
+						{
+							_timeoutCount++;
+							Trace.write(2, "pool: timed out waiting for session");
+							throw new IMuException("SessionPoolTimeout", _host, _port, timeout);
+						}
+					}
+					try
+					{
+						wait(wait);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new IMuException("SessionPoolInterrupted");
+					}
+				}
+			}
+			if (create || ! getValidate() || isValid(entry.session))
+				break;
+
+			Trace.write(2, "pool: discarding session which failed validation");
+			synchronized (this)
+			{
+				destroy(entry);
+				notifyAll();
+			}
+		}
+
+		if (create)
+		{
+			Session session = new Session(_host, _port);
+			try
+			{
+				session.connect();
+			}
+			catch (IMuException e)
+			{
+				synchronized (this)
+				{
+					_total--;
+					notifyAll();
+				}
+				throw e;
+			}
+			entry = new Entry(session);
+		}
+
+		synchronized (this)
+		{
+			if (create)
+				_createCount++;
+			entry.used = System.currentTimeMillis();
+			_active.put(entry.session, entry);
+
+			long waited = System.nanoTime() - start;
+			_waitTime += waited;
+			if (waited > _maxWaitTime)
+				_maxWaitTime = waited;
+			_borrowCount++;
+		}
+		return entry.session;
+	}
+
+	/*!
+	** Returns a session previously obtained from **borrow( )**
+	** [$<link>(:sessionpool:borrow)] to the pool so that it can be reused.
+	**
+	** A session which still has requests waiting for responses is closed
+	** rather than returned, since the next borrower would otherwise read
+	** those responses as the answers to its own requests.
+	**
+	** A session which has been logged in, attached to another server-side
+	** session by setting its **context** or redirected to another port is
+	** also closed, so that it is never handed to a different borrower.
+	** Otherwise any settings the borrower changed, such as **binarySink**,
+	** **digest** or **memoryThreshold**, are set back to the `Session`
+	** defaults before it is reused.
+	**
+	** @param session
+	**   The session to return.
+	*/
+	public synchronized void
+	release(Session session)
+	{
+		Entry entry = _active.remove(session);
+		if (entry == null)
+			return;
+
+		entry.used = System.currentTimeMillis();
+		if (_closed || ! session.isConnected() || expired(entry, entry.used))
+			destroy(entry);
+		else if (session.getPending() > 0)
+		{
+			Trace.write(2, "pool: discarding session with unread responses");
+			destroy(entry);
+		}
+		else if (session.isLoggedIn() || session.getPort() != _port ||
+			! session.getHost().equals(_host))
+		{
+			Trace.write(2, "pool: discarding session tied to its borrower");
+			destroy(entry);
+		}
+		else
+		{
+			session.reset();
+			_idle.addFirst(entry);
+		}
+		notifyAll();
+	}
+
+	/*!
+	** Closes a session previously obtained from **borrow( )**
+	** [$<link>(:sessionpool:borrow)] instead of returning it to the pool.
+	** This should be used when a request on the session has failed in a way
+	** that may have left the connection unusable.
+	**
+	** @param session
+	**   The session to discard.
+	*/
+	public synchronized void
+	invalidate(Session session)
+	{
+		Entry entry = _active.remove(session);
+		if (entry == null)
+			return;
+		destroy(entry);
+		notifyAll();
+	}
+
+	/*!
+	** Closes any idle sessions which have exceeded **maxIdleTime** or
+	** **maxLifetime**.
+	**
+	** @returns
+	**   The number of sessions closed.
+	*/
+	public synchronized int
+	evict()
+	{
+		int count = evictExpired();
+		if (count > 0)
+			notifyAll();
+		return count;
+	}
+
+	/*!
+	** Closes all idle sessions and prevents further sessions being borrowed.
+	** Sessions which are currently borrowed are closed as they are released.
+	*/
+	public synchronized void
+	close()
+	{
+		_closed = true;
+		while (! _idle.isEmpty())
+			destroy(_idle.pollFirst());
+		notifyAll();
+	}
+
+	private static class Entry
+	{
+		Entry(Session session)
+		{
+			this.session = session;
+			this.created = System.currentTimeMillis();
+			this.used = this.created;
+		}
+
+		final Session session;
+		final long created;
+		long used;
+	}
+
+	private final String _host;
+	private final int _port;
+
+	private int _maxSize;
+	private long _borrowTimeout;
+	private long _maxIdleTime;
+	private long _maxLifetime;
+	private boolean _validate;
+	private SessionValidator _validator;
+
+	private final IdentityHashMap<Session, Entry> _active;
+	private final ArrayDeque<Entry> _idle;
+	private int _total;
+	private boolean _closed;
+
+	private long _borrowCount;
+	private long _createCount;
+	private long _destroyCount;
+	private long _timeoutCount;
+	private long _waitTime;
+	private long _maxWaitTime;
+
+	private void
+	destroy(Entry entry)
+	{
+		entry.session.disconnect();
+		_total--;
+		_destroyCount++;
+	}
+
+	/* Checks an idle session before it is handed out. Called without the
+	** pool locked since the validator may make requests.
+	*/
+	private boolean
+	isValid(Session session)
+	{
+		if (! session.probe())
+			return false;
+		SessionValidator validator = getValidator();
+		if (validator == null)
+			return true;
+		try
+		{
+			return validator.validate(session);
+		}
+		catch (Exception e)
+		{
+			Trace.write(2, "pool: validator failed: %s", e.toString());
+			return false;
+		}
+	}
+
+	private boolean
+	expired(Entry entry, long now)
+	{
+		if (_maxLifetime > 0 && now - entry.created >= _maxLifetime)
+			return true;
+		return false;
+	}
+
+	private int
+	evictExpired()
+	{
+		long now = System.currentTimeMillis();
+		int count = 0;
+		Iterator<Entry> iter = _idle.iterator();
+		while (iter.hasNext())
+		{
+			Entry entry = iter.next();
+			boolean idle = _maxIdleTime > 0 && now - entry.used >= _maxIdleTime;
+			if (idle || expired(entry, now))
+			{
+				iter.remove();
+				destroy(entry);
+				count++;
+			}
+		}
+		if (count > 0)
+			Trace.write(2, "pool: evicted %d sessions", count);
+		return count;
+	}
+}
@@ -0,0 +1,362 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/* A row which shares its keys with the other rows of the same array.
+**
+** The keys, in the order they were read, are kept once in a Shape which is
+** shared by every row read with the same keys, and each row holds only an
+** array of its values. Looking up values, and the typed getters such as
+** getString() which use get(), work from the array directly. Anything
+** which needs the HashMap itself, such as iterating over the map or
+** changing it, first copies the values into it and drops the array, after
+** which the map behaves exactly like any other Map.
+*/
+@SuppressWarnings("serial")
+class ShapedMap extends Map
+{
+	/* The keys shared by a set of rows */
+	static final class Shape
+	{
+		/* A shape with no keys, used to mark an array whose rows have not
+		** been seen yet
+		*/
+		static final Shape EMPTY = new Shape(new String[0], 0);
+
+		Shape(String[] names, int count)
+		{
+			_names = Arrays.copyOf(names, count);
+			_index = new HashMap<String,Integer>(count * 2);
+			for (int i = 0; i < count; i++)
+				_index.put(_names[i], i);
+		}
+
+		/* Whether the names were all different, so the shape can be used */
+		boolean
+		isValid()
+		{
+			return _index.size() == _names.length;
+		}
+
+		/* The name at position i, or null if there is none */
+		String
+		name(int i)
+		{
+			return i < _names.length ? _names[i] : null;
+		}
+
+		int
+		size()
+		{
+			return _names.length;
+		}
+
+		int
+		indexOf(Object key)
+		{
+			// Keys read from the server are interned, so try them first
+			for (int i = 0; i < _names.length && i < 8; i++)
+				if (_names[i] == key)
+					return i;
+			Integer i = _index.get(key);
+			return i == null ? -1 : i;
+		}
+
+		private final String[] _names;
+		private final HashMap<String,Integer> _index;
+	}
+
+	/* Constructor */
+	public
+	ShapedMap(Shape shape, Object[] values)
+	{
+		_shape = shape;
+		_values = values;
+	}
+
+	/* Methods */
+	@Override
+	public Object
+	get(Object key)
+	{
+		if (_values == null)
+			return super.get(key);
+		int i = _shape.indexOf(key);
+		return i < 0 ? null : _values[i];
+	}
+
+	@Override
+	public Object
+	getOrDefault(Object key, Object value)
+	{
+		if (_values == null)
+			return super.getOrDefault(key, value);
+		int i = _shape.indexOf(key);
+		return i < 0 ? value : _values[i];
+	}
+
+	@Override
+	public boolean
+	containsKey(Object key)
+	{
+		if (_values == null)
+			return super.containsKey(key);
+		return _shape.indexOf(key) >= 0;
+	}
+
+	@Override
+	public boolean
+	containsValue(Object value)
+	{
+		if (_values == null)
+			return super.containsValue(value);
+		for (Object v : _values)
+			if (value == null ? v == null : value.equals(v))
+				return true;
+		return false;
+	}
+
+	@Override
+	public int
+	size()
+	{
+		if (_values == null)
+			return super.size();
+		return _values.length;
+	}
+
+	@Override
+	public boolean
+	isEmpty()
+	{
+		return size() == 0;
+	}
+
+	@Override
+	public void
+	forEach(BiConsumer<? super String,? super Object> action)
+	{
+		if (_values == null)
+		{
+			super.forEach(action);
+			return;
+		}
+		for (int i = 0; i < _values.length; i++)
+			action.accept(_shape.name(i), _values[i]);
+	}
+
+	@Override
+	public Set<String>
+	keySet()
+	{
+		inflate();
+		return super.keySet();
+	}
+
+	@Override
+	public Collection<Object>
+	values()
+	{
+		inflate();
+		return super.values();
+	}
+
+	@Override
+	public Set<java.util.Map.Entry<String,Object>>
+	entrySet()
+	{
+		inflate();
+		return super.entrySet();
+	}
+
+	@Override
+	public Object
+	put(String key, Object value)
+	{
+		inflate();
+		return super.put(key, value);
+	}
+
+	@Override
+	public void
+	putAll(java.util.Map<? extends String,? extends Object> map)
+	{
+		inflate();
+		super.putAll(map);
+	}
+
+	@Override
+	public Object
+	putIfAbsent(String key, Object value)
+	{
+		inflate();
+		return super.putIfAbsent(key, value);
+	}
+
+	@Override
+	public Object
+	remove(Object key)
+	{
+		inflate();
+		return super.remove(key);
+	}
+
+	@Override
+	public boolean
+	remove(Object key, Object value)
+	{
+		inflate();
+		return super.remove(key, value);
+	}
+
+	@Override
+	public Object
+	replace(String key, Object value)
+	{
+		inflate();
+		return super.replace(key, value);
+	}
+
+	@Override
+	public boolean
+	replace(String key, Object oldValue, Object newValue)
+	{
+		inflate();
+		return super.replace(key, oldValue, newValue);
+	}
+
+	@Override
+	public void
+	replaceAll(BiFunction<? super String,? super Object,? extends Object> function)
+	{
+		inflate();
+		super.replaceAll(function);
+	}
+
+	@Override
+	public Object
+	computeIfAbsent(String key, Function<? super String,? extends Object> function)
+	{
+		inflate();
+		return super.computeIfAbsent(key, function);
+	}
+
+	@Override
+	public Object
+	computeIfPresent(String key,
+		BiFunction<? super String,? super Object,? extends Object> function)
+	{
+		inflate();
+		return super.computeIfPresent(key, function);
+	}
+
+	@Override
+	public Object
+	compute(String key, BiFunction<? super String,? super Object,? extends Object> function)
+	{
+		inflate();
+		return super.compute(key, function);
+	}
+
+	@Override
+	public Object
+	merge(String key, Object value,
+		BiFunction<? super Object,? super Object,? extends Object> function)
+	{
+		inflate();
+		return super.merge(key, value, function);
+	}
+
+	@Override
+	public void
+	clear()
+	{
+		inflate();
+		super.clear();
+	}
+
+	@Override
+	public Object
+	clone()
+	{
+		inflate();
+		return super.clone();
+	}
+
+	private Shape _shape;
+	private Object[] _values;
+
+	/* Serialise as an ordinary Map */
+	private Object
+	writeReplace()
+	{
+		Map map = new Map();
+		map.putAll(this);
+		return map;
+	}
+
+	/* Moves the values into the HashMap */
+	private void
+	inflate()
+	{
+		if (_values == null)
+			return;
+		Object[] values = _values;
+		_values = null;
+		for (int i = 0; i < values.length; i++)
+			super.put(_shape.name(i), values[i]);
+		_shape = null;
+	}
+}
@@ -0,0 +1,102 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/*!
+** An `InputStream` whose length is known in advance.
+**
+** When a stream is passed as a value in a request, such as when inserting
+** or updating a multimedia record, the number of bytes in it must be sent
+** to the server before the bytes themselves. For an ordinary stream this
+** means copying it to a temporary file first to find out its length.
+** Wrapping the stream in a `SizedInputStream` declares the length so the
+** bytes are sent straight from the stream.
+**
+** Exactly ``size`` bytes are sent. If the stream ends early the rest are
+** sent as zeros and any bytes after ``size`` are not read.
+**
+** @usage
+**   com.kesoftware.imu.SizedInputStream
+** @end
+**
+** @extends java.io.FilterInputStream
+**
+** @since 2.8
+*/
+public class SizedInputStream extends FilterInputStream
+{
+	/* Constructor */
+	/*!
+	** @param stream
+	**   The stream to be sent.
+	**
+	** @param size
+	**   The number of bytes to send from ``stream``.
+	*/
+	public
+	SizedInputStream(InputStream stream, long size)
+	{
+		super(stream);
+		_size = size;
+	}
+
+	/* Properties */
+	/*!
+	** @property size
+	**   The number of bytes to send from the stream.
+	*/
+	public long
+	getSize()
+	{
+		return _size;
+	}
+
+	private final long _size;
+}
@@ -2,8 +2,17 @@ package com.kesoftware.imu;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 class Stream
 {
@@ -18,11 +27,27 @@ class Stream
         _blockSize = size;
     }
 
+    /* Binary values of up to this many bytes are kept in memory rather than
+    ** being saved to a temporary file
+    */
+    public static int getDefaultMemoryThreshold()
+    {
+        return _defaultMemoryThreshold;
+    }
+
+    public static void setDefaultMemoryThreshold(int threshold)
+    {
+        _defaultMemoryThreshold = threshold;
+    }
+
     /* Constructor */
-    public Stream(Socket socket) throws IMuException
+    public Stream(Socket socket, StreamParser parser) throws IMuException
     {
         _socket = socket;
-        
+
+        // Sockets opened from a channel let binaries bypass the heap
+        _channel = socket.getChannel();
+
         try
         {
         	
@@ -35,37 +60,256 @@ class Stream
            
         	
             InputStream is = _socket.getInputStream();
-            // Optimize for 20KB records × 250 results = 5MB total
-            // Large buffer to minimize socket reads across entire result set
-            BufferedInputStream bis = new BufferedInputStream(is, 131072); // 128KB buffer
-            _input = new MixedInputStream(bis);
+            if (parser == StreamParser.BYTE)
+            {
+                // The tokenizer does its own buffering
+                _tokenizer = new Tokenizer(is);
+                _input = null;
+                _number = _tokenizer.getNumber();
+                _symbols = _tokenizer.getSymbols();
+            }
+            else
+            {
+                // Optimize for 20KB records × 250 results = 5MB total
+                // Large buffer to minimize socket reads across entire result set
+                BufferedInputStream bis = new BufferedInputStream(is, 131072); // 128KB buffer
+                _input = new MixedInputStream(bis);
+                _tokenizer = null;
+                _number = new NumberBuilder();
+                _symbols = new SymbolTable();
+            }
 
             OutputStream os = _socket.getOutputStream();
             // Smaller output buffer since queries are small
-            BufferedOutputStream bos = new BufferedOutputStream(os, 16384); // 16KB buffer
-            _output = new MixedOutputStream(bos);
+            _output = new Encoder(os, 16384); // 16KB buffer
         }
         catch (Exception e)
         {
             throw new IMuException("StreamIOSetup", e);
         }
 
+        _compact = false;
+        _requestSize = 0;
+        _memoryThreshold = _defaultMemoryThreshold;
+        _memoryBytes = 0;
+        _fileBytes = 0;
+
         _next = ' ';
-        _token = null;
+        _token = 0;
         _string = null;
+        _scratch = new StringBuilder();
         _file = null;
 
         // Reusable buffer for binary I/O
         _buffer = new byte[_blockSize];
     }
 
+    /* Constructor for streams which are not attached to a socket, such as the
+    ** in-memory requests and responses used by AsyncSession. The streams are
+    ** used as given so any buffering is up to the caller.
+    */
+    public Stream(InputStream input, OutputStream output, StreamParser parser)
+    {
+        _socket = null;
+        _channel = null;
+        if (parser == StreamParser.BYTE)
+        {
+            _tokenizer = new Tokenizer(input);
+            _input = null;
+            _number = _tokenizer.getNumber();
+            _symbols = _tokenizer.getSymbols();
+        }
+        else
+        {
+            _input = new MixedInputStream(input);
+            _tokenizer = null;
+            _number = new NumberBuilder();
+            _symbols = new SymbolTable();
+        }
+        _output = new Encoder(output, 16384);
+
+        _compact = false;
+        _requestSize = 0;
+        _memoryThreshold = _defaultMemoryThreshold;
+        _memoryBytes = 0;
+        _fileBytes = 0;
+
+        _next = ' ';
+        _token = 0;
+        _string = null;
+        _scratch = new StringBuilder();
+        _file = null;
+
+        _buffer = new byte[_blockSize];
+    }
+
+    /* Properties */
+    /* Whether requests are written without indentation or line breaks
+    ** between elements
+    */
+    public boolean isCompact()
+    {
+        return _compact;
+    }
+
+    public void setCompact(boolean compact)
+    {
+        _compact = compact;
+    }
+
+    /* Passes the elements of the array at path to listener as they are read
+    ** by get(), instead of keeping them in the value returned. The array is
+    ** left empty in the returned value. A null path turns this off.
+    */
+    public void setRows(String[] path, RowListener listener)
+    {
+        _rowPath = path;
+        _rowListener = listener;
+    }
+
+    /* Reads the elements of the array at the path set by setRows() as
+    ** LazyMaps, whose values are only decoded when they are used. If there
+    ** is no listener the rows are left in the array. This needs the byte
+    ** parser and is ignored otherwise.
+    */
+    public void setLazyRows(boolean lazy)
+    {
+        _lazy = lazy;
+    }
+
+    /* Reads the objects in an array as ShapedMaps, so that elements with
+    ** the same keys as the one before share a single copy of them. Objects
+    ** are read as ordinary Maps while there is a binary sink, as the sink is
+    ** given each object while it is still being read.
+    */
+    public void setSharedKeys(boolean shared)
+    {
+        _sharedKeys = shared;
+    }
+
+    /* The first exception thrown by the row listener during the last call
+    ** to get(), if any. Elements read after the exception are discarded.
+    */
+    public Exception getRowError()
+    {
+        return _rowError;
+    }
+
+    /* Passes binary values read by get() to sink rather than saving them.
+    ** The value returned by the sink replaces the binary. A null sink turns
+    ** this off.
+    */
+    public void setBinarySink(BinarySink sink)
+    {
+        _sink = sink;
+    }
+
+    /* The first exception thrown by the binary sink during the last call to
+    ** get(), if any. Binaries read after the exception are discarded.
+    */
+    public Exception getSinkError()
+    {
+        return _sinkError;
+    }
+
+    /* The algorithm used to compute a digest of each binary value received,
+    ** or null for none
+    */
+    public String getDigest()
+    {
+        return _digest == null ? null : _digest.getAlgorithm();
+    }
+
+    public void setDigest(String algorithm) throws IMuException
+    {
+        if (algorithm == null)
+            _digest = null;
+        else if (_digest == null || !_digest.getAlgorithm().equals(algorithm))
+        {
+            try
+            {
+                _digest = MessageDigest.getInstance(algorithm);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IMuException("StreamDigest", algorithm);
+            }
+        }
+    }
+
+    /* Whether the digest of a binary value is compared with the "checksum"
+    ** entry of the object containing it, if there is one. Checksums of a
+    ** different length from the digest, such as CRC32 checksums when
+    ** computing MD5 digests, are not checked.
+    */
+    public boolean getVerify()
+    {
+        return _verify;
+    }
+
+    public void setVerify(boolean verify)
+    {
+        _verify = verify;
+    }
+
+    /* The error for the first checksum which did not match during the last
+    ** call to get(), if any. Binaries read after the mismatch are discarded.
+    */
+    public IMuException getChecksumError()
+    {
+        return _checksumError;
+    }
+
+    public int getMemoryThreshold()
+    {
+        return _memoryThreshold;
+    }
+
+    public void setMemoryThreshold(int threshold)
+    {
+        _memoryThreshold = threshold;
+    }
+
+    /* The number of bytes of binary data received and kept in memory */
+    public long getMemoryBytes()
+    {
+        return _memoryBytes;
+    }
+
+    /* The number of bytes of binary data received and saved to temporary
+    ** files
+    */
+    public long getFileBytes()
+    {
+        return _fileBytes;
+    }
+
+    /* The number of bytes written by the last call to put() */
+    public long getRequestSize()
+    {
+        return _requestSize;
+    }
+
+    /* The number of bytes of responses read so far */
+    public long getBytesRead()
+    {
+        return _tokenizer != null ? _tokenizer.getOffset() : _input.getCount();
+    }
+
     /* Methods */
     public Object get() throws IMuException
     {
         Object what = null;
+        _level = 0;
+        _matched = 0;
+        _rowGroup = 0;
+        _rowError = null;
+        _sinkError = null;
+        _checksumError = null;
         try
         {
-            getNext();
+            if (_tokenizer == null)
+                getNext();
             getToken();
             what = getValue();
         }
@@ -80,13 +324,118 @@ class Stream
         return what;
     }
 
+    /* Token level access, used by StreamReader */
+    /* Prepares to read a new top-level value */
+    void begin() throws IMuException
+    {
+        _rowError = null;
+        _checksumError = null;
+        try
+        {
+            if (_tokenizer == null)
+                getNext();
+        }
+        catch (IMuException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IMuException("StreamGet", e);
+        }
+    }
+
+    /* Reads the next token. If skip is set the token is not needed so, with
+    ** the byte parser, strings are not decoded, and binary data is discarded
+    ** rather than saved.
+    */
+    int nextToken(boolean key, boolean skip) throws IMuException
+    {
+        _skip = skip;
+        try
+        {
+            if (key)
+                getKey();
+            else
+                getToken();
+        }
+        catch (IMuException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IMuException("StreamGet", e);
+        }
+        finally
+        {
+            _skip = false;
+        }
+        return _token;
+    }
+
+    String getTokenString()
+    {
+        return _string;
+    }
+
+    NumberBuilder getTokenNumber()
+    {
+        return _number;
+    }
+
+    InputStream getTokenFile()
+    {
+        return _file;
+    }
+
+    /* Reads a value from data rather than the input. This is used by
+    ** LazyMap so may be called by any thread.
+    */
+    synchronized Object decode(byte[] data, int offset, int length) throws IMuException
+    {
+        try
+        {
+            _tokenizer.reset(data, offset, length);
+            getToken();
+            return getValue();
+        }
+        catch (IMuException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IMuException("StreamGet", e);
+        }
+    }
+
+    /* Reads the whole value which starts with the current token */
+    Object getTokenValue() throws IMuException
+    {
+        try
+        {
+            return getValue();
+        }
+        catch (IMuException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IMuException("StreamGet", e);
+        }
+    }
+
     public void put(Object what) throws IMuException
     {
         try
         {
+            _output.resetCount();
             putValue(what, 0);
             putLine();
             _output.flush();
+            _requestSize = _output.getCount();
         }
         catch (IMuException e)
         {
@@ -99,15 +448,57 @@ class Stream
     }
 
     private static int _blockSize = 65536;
+    private static int _defaultMemoryThreshold = 0;
 
     private final Socket _socket;
+    private final SocketChannel _channel;
 
     private final MixedInputStream _input;
-    private final MixedOutputStream _output;
+    private final Tokenizer _tokenizer;
+    private final Encoder _output;
+    private boolean _compact;
+    private long _requestSize;
+    private int _memoryThreshold;
+
+    // Updated by the reading thread but may be read by others
+    private volatile long _memoryBytes;
+    private volatile long _fileBytes;
+
+    private String[] _rowPath;
+    private RowListener _rowListener;
+    private Exception _rowError;
+    private int _level;
+    private int _matched;
+    private int _rowGroup;
+
+    // The keys and objects enclosing the value being read, kept only while
+    // there is a binary sink
+    private BinarySink _sink;
+    private Exception _sinkError;
+    private String[] _names = new String[8];
+    private Map[] _objects = new Map[8];
+    private Object _sunk;
+
+    private boolean _lazy;
+    private Stream _decoder;
+
+    // The shape of the last object read from the array at each level, or
+    // null if the value at that level is not an array
+    private boolean _sharedKeys = false;
+    private ShapedMap.Shape[] _shapes = new ShapedMap.Shape[8];
+
+    private MessageDigest _digest;
+    private boolean _verify;
+    private IMuException _checksumError;
 
     private char _next;
-    private String _token;
+    private int _token;
     private String _string;
+    private final NumberBuilder _number;
+    private final SymbolTable _symbols;
+    private boolean _key;
+    private boolean _skip;
+    private final StringBuilder _scratch;
     private InputStream _file;
 
     // Reusable buffer for binary IO
@@ -117,67 +508,381 @@ class Stream
     {
         return switch (_token)
         {
-            case "end" -> null;
-            case "string" -> _string;
-            case "number" -> {
-                boolean isDouble = _string.contains(".") || _string.toLowerCase().contains("e");
-                
-                if (isDouble) {
-                	yield Double.parseDouble(_string);
-                } else {
-                	yield Long.parseLong(_string);
-                }
-            }
-            case "true" -> true;
-            case "false" -> false;
-            case "null" -> null;
-            case "binary" -> _file;
-            case "{" -> {
+            case Tokenizer.STRING -> _string;
+            case Tokenizer.LONG -> _number.longValue();
+            case Tokenizer.DOUBLE -> _number.doubleValue();
+            case Tokenizer.TRUE -> true;
+            case Tokenizer.FALSE -> false;
+            case Tokenizer.NULL -> null;
+            case Tokenizer.BINARY -> _sink != null ? _sunk : _file;
+            case '{' -> {
+                int level = _level++;
+                ShapedMap.Shape shape = setShape(level, null);
+                if (shape != null && _sink == null)
+                    yield getShapedObject(level, shape);
             	Map map = new Map();
-                getToken();
-                while (!_token.equals("}"))
+                getKey();
+                while (_token != '}')
                 {
                     String name;
-                    if (_token.equals("string") || _token.equals("identifier"))
+                    if (_token == Tokenizer.STRING || _token == Tokenizer.IDENTIFIER)
                     {
                         name = _string;
                     }
                     else
                     {
-                        throw new IMuException("StreamSyntaxName", _token);
+                        throw new IMuException("StreamSyntaxName", Tokenizer.describe(_token));
                     }
 
                     getToken();
-                    if (!_token.equals(":"))
-                        throw new IMuException("StreamSyntaxColon", _token);
+                    if (_token != ':')
+                        throw new IMuException("StreamSyntaxColon", Tokenizer.describe(_token));
 
+                    if (_sink != null)
+                        enter(level, name, map);
                     getToken();
-                    map.put(name, getValue());
+                    if (isRowPath(level, name))
+                    {
+                        _matched++;
+                        map.put(name, getValue());
+                        _matched--;
+                    }
+                    else
+                        map.put(name, getValue());
 
                     getToken();
-                    if (_token.equals(","))
-                        getToken();
+                    if (_token == ',')
+                        getKey();
                 }
+                _level = level;
+                if (_verify && map.containsKey("checksum"))
+                    verify(map);
                 yield map;
             }
-            case "[" -> {
+            case '[' -> {
                 ArrayList<Object> list = new ArrayList<>();
+                int level = _level++;
+                boolean rows = _rowPath != null && _matched == level && level == _rowPath.length;
+                boolean group = isRowPath(level, "*");
+                int index = 0;
+                // Start from the shape of the last array at this level, as
+                // it is likely to hold the same objects
+                if (_sharedKeys && (level >= _shapes.length || _shapes[level] == null))
+                    setShape(level, ShapedMap.Shape.EMPTY);
+                if (_sink != null)
+                    enter(level, "0", null);
                 getToken();
-                while (!_token.equals("]"))
+                while (_token != ']')
                 {
-                    list.add(getValue());
+                    if (rows)
+                    {
+                        Object row = _lazy && _token == '{' && _tokenizer != null ? getLazyRow() : getValue();
+                        if (_rowListener != null)
+                            putRow(row);
+                        else
+                            list.add(row);
+                    }
+                    else if (group)
+                    {
+                        _matched++;
+                        _rowGroup = index;
+                        list.add(getValue());
+                        _matched--;
+                    }
+                    else
+                        list.add(getValue());
+                    index++;
                     getToken();
-                    if (_token.equals(","))
+                    if (_token == ',')
+                    {
+                        if (_sink != null)
+                            enter(level, Integer.toString(index), null);
                         getToken();
+                    }
                 }
+                _level = level;
                 yield list.toArray();
             }
-            default -> throw new IMuException("StreamSyntaxToken", _token);
+            default -> throw new IMuException("StreamSyntaxToken", Tokenizer.describe(_token));
         };
     }
 
+    /* Sets the shape for the value at level, returning the shape of the
+    ** array containing it, if it is in one and keys are being shared
+    */
+    private ShapedMap.Shape setShape(int level, ShapedMap.Shape shape)
+    {
+        if (level >= _shapes.length)
+            _shapes = Arrays.copyOf(_shapes, level * 2);
+        _shapes[level] = shape;
+        if (!_sharedKeys || level == 0)
+            return null;
+        return _shapes[level - 1];
+    }
+
+    /* Reads an object, which has just been started and is in an array, as a
+    ** ShapedMap. While its keys match those of the array's current shape
+    ** the values are simply stored in order. Otherwise a new shape is made
+    ** from its keys and used for the objects that follow.
+    */
+    private Object getShapedObject(int level, ShapedMap.Shape shape) throws Exception
+    {
+        int count = 0;
+        Object[] values = new Object[Math.max(shape.size(), 4)];
+        String[] names = null;
+
+        getKey();
+        while (_token != '}')
+        {
+            if (_token != Tokenizer.STRING && _token != Tokenizer.IDENTIFIER)
+                throw new IMuException("StreamSyntaxName", Tokenizer.describe(_token));
+            String name = _string;
+
+            getToken();
+            if (_token != ':')
+                throw new IMuException("StreamSyntaxColon", Tokenizer.describe(_token));
+
+            getToken();
+            Object value;
+            if (isRowPath(level, name))
+            {
+                _matched++;
+                value = getValue();
+                _matched--;
+            }
+            else
+                value = getValue();
+
+            if (names == null)
+            {
+                String expected = shape.name(count);
+                if (expected != name && !name.equals(expected))
+                {
+                    names = new String[values.length];
+                    for (int i = 0; i < count; i++)
+                        names[i] = shape.name(i);
+                }
+            }
+            if (count == values.length)
+            {
+                values = Arrays.copyOf(values, count * 2);
+                if (names != null)
+                    names = Arrays.copyOf(names, count * 2);
+            }
+            if (names != null)
+                names[count] = name;
+            values[count++] = value;
+
+            getToken();
+            if (_token == ',')
+                getKey();
+        }
+        _level = level;
+
+        Map map;
+        if (names == null && count == shape.size())
+            map = new ShapedMap(shape, count == values.length ? values : Arrays.copyOf(values, count));
+        else
+        {
+            if (names == null)
+            {
+                // The object had fewer keys than the shape
+                names = new String[count];
+                for (int i = 0; i < count; i++)
+                    names[i] = shape.name(i);
+            }
+            ShapedMap.Shape next = new ShapedMap.Shape(names, count);
+            if (next.isValid())
+            {
+                _shapes[level - 1] = next;
+                map = new ShapedMap(next, Arrays.copyOf(values, count));
+            }
+            else
+            {
+                // A key appears more than once, so the last value is kept
+                map = new Map();
+                for (int i = 0; i < count; i++)
+                    map.put(next.name(i), values[i]);
+            }
+        }
+        if (_verify && map.containsKey("checksum"))
+            verify(map);
+        return map;
+    }
+
+    /* Whether a key (or "*" for an array element) read at level continues
+    ** the path set by setRows()
+    */
+    private boolean isRowPath(int level, String name)
+    {
+        return _rowPath != null && _matched == level &&
+            level < _rowPath.length && _rowPath[level].equals(name);
+    }
+
+    /* Records the key (or array index) of the value about to be read at
+    ** level, and the object containing it, for the binary sink
+    */
+    private void enter(int level, String name, Map object)
+    {
+        if (level >= _names.length)
+        {
+            _names = Arrays.copyOf(_names, level * 2);
+            _objects = Arrays.copyOf(_objects, level * 2);
+        }
+        _names[level] = name;
+        _objects[level] = object;
+    }
+
+    /* Reads an object, which has just been started, as a LazyMap. The
+    ** object's bytes are copied as its values are skipped over, noting where
+    ** each of them is.
+    */
+    private Object getLazyRow() throws Exception
+    {
+        int count = 0;
+        String[] names = new String[16];
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+
+        _tokenizer.capture(1);
+        getKey();
+        while (_token != '}')
+        {
+            if (_token != Tokenizer.STRING && _token != Tokenizer.IDENTIFIER)
+                throw new IMuException("StreamSyntaxName", Tokenizer.describe(_token));
+            String name = _string;
+
+            getToken();
+            if (_token != ':')
+                throw new IMuException("StreamSyntaxColon", Tokenizer.describe(_token));
+
+            if (count == names.length)
+            {
+                names = Arrays.copyOf(names, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            names[count] = name;
+            starts[count] = _tokenizer.getCaptured();
+            _tokenizer.skipValue();
+            // Include the byte after the value, which is still inside the
+            // object, so that a number is seen to end
+            ends[count] = _tokenizer.getCaptured() + 1;
+            count++;
+
+            getToken();
+            if (_token == ',')
+                getKey();
+        }
+        byte[] data = _tokenizer.endCapture();
+
+        if (_decoder == null)
+            _decoder = new Stream(null, null, StreamParser.BYTE);
+        _decoder.setMemoryThreshold(_memoryThreshold);
+        return new LazyMap(_decoder, data, names, starts, ends, count);
+    }
+
+    private Object sink(long size, InputStream source) throws Exception
+    {
+        SinkInput input = new SinkInput(source, size);
+        Object value = null;
+        if (_sinkError == null)
+        {
+            Map row = null;
+            for (int i = _level - 1; i >= 0 && row == null; i--)
+                row = _objects[i];
+            try
+            {
+                value = _sink.receive(Arrays.copyOf(_names, _level), row, size, input);
+            }
+            catch (Exception e)
+            {
+                // A failure reading the response itself cannot be recovered
+                if (input.getError() != null)
+                    throw input.getError();
+                _sinkError = e;
+                value = null;
+            }
+        }
+        // The tokenizer skips any unread bytes itself
+        if (_tokenizer == null)
+            discard(input.getLeft(), source);
+        return value;
+    }
+
+    private void verify(Map map)
+    {
+        if (_checksumError != null || !(map.get("checksum") instanceof String checksum))
+            return;
+        for (Object value : map.values())
+        {
+            if (value instanceof Digested digested && digested.getDigest() != null &&
+                checksum.length() == digested.getDigest().length * 2 &&
+                !checksum.equalsIgnoreCase(digested.getDigestHex()))
+            {
+                _checksumError = new IMuException("StreamChecksum",
+                    digested.getDigestAlgorithm(), checksum, digested.getDigestHex());
+                return;
+            }
+        }
+    }
+
+    private void putRow(Object row)
+    {
+        if (_rowError != null)
+            return;
+        try
+        {
+            _rowListener.row(_rowGroup, row);
+        }
+        catch (Exception e)
+        {
+            _rowError = e;
+        }
+    }
+
+    /* Reads a token in a position where an object key is expected. Keys
+    ** repeat on every row of a fetch so they are shared through the
+    ** stream's symbol table rather than decoded into new strings each time.
+    */
+    private void getKey() throws Exception
+    {
+        _key = true;
+        try
+        {
+            getToken();
+        }
+        finally
+        {
+            _key = false;
+        }
+    }
+
     private void getToken() throws Exception
     {
+        if (_tokenizer != null)
+        {
+            if (_key)
+                _token = _tokenizer.nextKey();
+            else if (_skip)
+                _token = _tokenizer.skip();
+            else
+                _token = _tokenizer.next();
+            _string = _tokenizer.getString();
+            _file = null;
+            // Skipped binary data is passed over by the next call to the
+            // tokenizer. Once a checksum has failed the response is only
+            // read to its end.
+            if (_token == Tokenizer.BINARY && !_skip && _checksumError == null)
+            {
+                if (_sink != null)
+                    _sunk = sink(_tokenizer.getSize(), _tokenizer.getBinary());
+                else
+                    _file = receive(_tokenizer.getSize(), _tokenizer.getBinary());
+            }
+            return;
+        }
+
         while (Character.isWhitespace(_next))
             getNext();
 
@@ -186,8 +891,9 @@ class Stream
 
         if (_next == '"')
         {
-            _token = "string";
-            StringBuilder sb = new StringBuilder();
+            _token = Tokenizer.STRING;
+            StringBuilder sb = _scratch;
+            sb.setLength(0);
             getNext();
             while (_next != '"')
             {
@@ -203,14 +909,15 @@ class Stream
                         case 't' -> sb.append('\t');
                         case 'u' -> {
                             getNext();
-                            StringBuilder hex = new StringBuilder();
+                            int codePoint = 0;
+                            int count = 0;
                             for (int i = 0; i < 4; i++)
                             {
-                                if (Character.isDigit(_next) ||
-                                    (_next >= 'a' && _next <= 'f') ||
-                                    (_next >= 'A' && _next <= 'F'))
+                                int digit = Character.digit(_next, 16);
+                                if (digit >= 0 && _next < 0x80)
                                 {
-                                    hex.append(_next);
+                                    codePoint = codePoint * 16 + digit;
+                                    count++;
                                     if (i < 3)
                                         getNext();
                                 }
@@ -219,9 +926,8 @@ class Stream
                                     break;
                                 }
                             }
-                            if (hex.length() == 0)
+                            if (count == 0)
                                 throw new IMuException("StreamSyntaxUnicode");
-                            int codePoint = Integer.parseInt(hex.toString(), 16);
                             sb.appendCodePoint(codePoint);
                             continue; // skip getNext here as already advanced
                         }
@@ -234,121 +940,162 @@ class Stream
                 }
                 getNext();
             }
-            _string = sb.toString();
+            _string = _key ? _symbols.intern(sb) : sb.toString();
             getNext();
         }
         else if (Character.isDigit(_next) || _next == '-')
         {
-            _token = "number";
-            StringBuilder sb = new StringBuilder();
-            sb.append(_next);
+            NumberBuilder number = _number;
+            number.start();
+            number.append(_next);
             getNext();
             while (Character.isDigit(_next))
             {
-                sb.append(_next);
+                number.append(_next);
                 getNext();
             }
             if (_next == '.')
             {
-                sb.append(_next);
+                number.append(_next);
                 getNext();
                 while (Character.isDigit(_next))
                 {
-                    sb.append(_next);
+                    number.append(_next);
                     getNext();
                 }
             }
             if (_next == 'e' || _next == 'E')
             {
-                if (!sb.toString().endsWith(".") && !sb.toString().contains("."))
-                {
-                    sb.append('.');
-                }
-                sb.append('e');
+                number.append(_next);
                 getNext();
-                if (_next == '+')
-                {
-                    sb.append('+');
-                    getNext();
-                }
-                else if (_next == '-')
+                if (_next == '+' || _next == '-')
                 {
-                    sb.append('-');
+                    number.append(_next);
                     getNext();
                 }
                 while (Character.isDigit(_next))
                 {
-                    sb.append(_next);
+                    number.append(_next);
                     getNext();
                 }
             }
-            _string = sb.toString();
+            _token = number.isReal() ? Tokenizer.DOUBLE : Tokenizer.LONG;
         }
         else if (Character.isLetter(_next) || _next == '_')
         {
-            _token = "identifier";
-            StringBuilder sb = new StringBuilder();
+            StringBuilder sb = _scratch;
+            sb.setLength(0);
             while (Character.isLetterOrDigit(_next) || _next == '_')
             {
                 sb.append(_next);
                 getNext();
             }
-            String lower = sb.toString().toLowerCase();
-            if (lower.equals("false"))
-                _token = "false";
-            else if (lower.equals("null"))
-                _token = "null";
-            else if (lower.equals("true"))
-                _token = "true";
-            else
-            {
-                _string = sb.toString();
-            }
+            _token = Tokenizer.keyword(sb);
+            if (_token == Tokenizer.IDENTIFIER)
+                _string = _key ? _symbols.intern(sb) : sb.toString();
         }
         else if (_next == '*')
         {
-            _token = "binary";
-            StringBuilder sb = new StringBuilder();
+            _token = Tokenizer.BINARY;
+            long size = 0;
+            int digits = 0;
             getNext();
             while (Character.isDigit(_next))
             {
-                sb.append(_next);
+                size = size * 10 + Character.digit(_next, 10);
+                digits++;
                 getNext();
             }
-            if (sb.length() == 0)
+            if (digits == 0)
                 throw new IMuException("StreamSyntaxBinary");
 
-            long size = Long.parseLong(sb.toString());
             while (_next != '\n')
                 getNext();
 
-            TempFile temp = new TempFile();
-            try (OutputStream stream = temp.getOutputStream())
-            {
-                long left = size;
-                while (left > 0)
-                {
-                    int read = _buffer.length;
-                    if ((long) read > left)
-                        read = (int) left;
-                    int done = _input.read(_buffer, 0, read);
-                    if (done <= 0)
-                        throw new IMuException("StreamEOF", "binary");
-                    stream.write(_buffer, 0, done);
-                    left -= done;
-                }
-            }
-            _file = temp.getInputStream();
+            if (_skip || _checksumError != null)
+                discard(size, _input);
+            else if (_sink != null)
+                _sunk = sink(size, _input);
+            else
+                _file = receive(size, _input);
 
             getNext();
         }
         else
         {
-            _token = Character.toString(_next);
+            _token = _next;
             getNext();
         }
     }
 
+    private InputStream receive(long size, InputStream source) throws Exception
+    {
+        if (size > 0 && size <= _memoryThreshold)
+        {
+            byte[] data = new byte[(int) size];
+            int done = 0;
+            while (done < data.length)
+            {
+                int read = source.read(data, done, data.length - done);
+                if (read <= 0)
+                    throw new IMuException("StreamEOF", "binary");
+                done += read;
+            }
+            _memoryBytes += size;
+            if (_digest == null)
+                return new MemoryInputStream(data, null, null);
+            _digest.update(data);
+            return new MemoryInputStream(data, _digest.getAlgorithm(), _digest.digest());
+        }
+
+        _fileBytes += size;
+        TempFile temp = new TempFile();
+        try (FileOutputStream stream = temp.getOutputStream())
+        {
+            // Reads from the channel itself ignore the socket timeout so it
+            // is only used when no timeout is set. Bytes which are being
+            // digested have to pass through the heap anyway.
+            if (_tokenizer != null && _channel != null && _digest == null &&
+                _socket.getSoTimeout() == 0)
+            {
+                _tokenizer.transfer(stream.getChannel(), _channel);
+                return temp.getInputStream();
+            }
+
+            long left = size;
+            while (left > 0)
+            {
+                int read = _buffer.length;
+                if ((long) read > left)
+                    read = (int) left;
+                int done = source.read(_buffer, 0, read);
+                if (done <= 0)
+                    throw new IMuException("StreamEOF", "binary");
+                stream.write(_buffer, 0, done);
+                if (_digest != null)
+                    _digest.update(_buffer, 0, done);
+                left -= done;
+            }
+        }
+        TempInputStream input = temp.getInputStream();
+        if (_digest != null)
+            input.setDigest(_digest.getAlgorithm(), _digest.digest());
+        return input;
+    }
+
+    private void discard(long size, InputStream source) throws Exception
+    {
+        long left = size;
+        while (left > 0)
+        {
+            int read = (int) Math.min(left, _buffer.length);
+            int done = source.read(_buffer, 0, read);
+            if (done <= 0)
+                throw new IMuException("StreamEOF", "binary");
+            left -= done;
+        }
+    }
+
     private char getNext() throws Exception
     {
         int c = _input.readChar();
@@ -366,9 +1113,9 @@ class Stream
         else if (what instanceof String s)
             putString(s);
         else if (what instanceof Integer i)
-            putData(Integer.toString(i));
+            _output.writeLong(i);
         else if (what instanceof Long l)
-            putData(Long.toString(l));
+            _output.writeLong(l);
         else if (what instanceof Double d)
             putData(Double.toString(d));
         else if (what instanceof AbstractMap<?, ?> map)
@@ -377,10 +1124,22 @@ class Stream
             putArray(array, indent);
         else if (what instanceof ArrayList<?> list)
             putArray(list.toArray(), indent);
+        else if (what instanceof long[] longs)
+            putArray(longs, indent);
+        else if (what instanceof int[] ints)
+            putArray(ints, indent);
+        else if (what instanceof double[] doubles)
+            putArray(doubles, indent);
         else if (what instanceof Boolean b)
             putData(b ? "true" : "false");
         else if (what instanceof File file)
             putFile(file);
+        else if (what instanceof Path path)
+            putPath(path);
+        else if (what instanceof byte[] bytes)
+            putBytes(ByteBuffer.wrap(bytes));
+        else if (what instanceof ByteBuffer buffer)
+            putBytes(buffer.duplicate());
         else if (what instanceof InputStream is)
             putStream(is);
         else
@@ -389,52 +1148,81 @@ class Stream
 
     private void putString(String what) throws Exception
     {
-        putData('"');
-        char[] chars = what.toCharArray();
-        for (char c : chars)
-        {
-            if (c == '"' || c == '\\')
-                putData('\\');
-            putData(c);
-        }
-        putData('"');
+        _output.writeString(what);
     }
 
     private void putObject(AbstractMap<Object,Object> what, int indent) throws Exception
     {
         putData('{');
-        putLine();
-        int i = 0;
-        int size = what.size();
+        boolean first = true;
         for (var entry : what.entrySet())
         {
-            putIndent(indent + 1);
+            if (!first)
+                putData(',');
+            putLine(indent + 1);
             putString(entry.getKey().toString());
-            putData(" : ");
+            putData(_compact ? ":" : " : ");
             putValue(entry.getValue(), indent + 1);
-            if (i < size - 1)
-                putData(',');
-            putLine();
-            i++;
+            first = false;
         }
-        putIndent(indent);
+        putLine(indent);
         putData('}');
     }
 
     private void putArray(Object[] what, int indent) throws Exception
     {
         putData('[');
-        putLine();
-        int last = what.length - 1;
         for (int i = 0; i < what.length; i++)
         {
-            putIndent(indent + 1);
+            if (i > 0)
+                putData(',');
+            putLine(indent + 1);
             putValue(what[i], indent + 1);
-            if (i < last)
+        }
+        putLine(indent);
+        putData(']');
+    }
+
+    /* Arrays of primitives are written element by element without boxing */
+    private void putArray(long[] what, int indent) throws Exception
+    {
+        putData('[');
+        for (int i = 0; i < what.length; i++)
+        {
+            if (i > 0)
                 putData(',');
-            putLine();
+            putLine(indent + 1);
+            _output.writeLong(what[i]);
+        }
+        putLine(indent);
+        putData(']');
+    }
+
+    private void putArray(int[] what, int indent) throws Exception
+    {
+        putData('[');
+        for (int i = 0; i < what.length; i++)
+        {
+            if (i > 0)
+                putData(',');
+            putLine(indent + 1);
+            _output.writeLong(what[i]);
         }
-        putIndent(indent);
+        putLine(indent);
+        putData(']');
+    }
+
+    private void putArray(double[] what, int indent) throws Exception
+    {
+        putData('[');
+        for (int i = 0; i < what.length; i++)
+        {
+            if (i > 0)
+                putData(',');
+            putLine(indent + 1);
+            putData(Double.toString(what[i]));
+        }
+        putLine(indent);
         putData(']');
     }
 
@@ -447,8 +1235,43 @@ class Stream
         }
     }
 
+    private void putPath(Path what) throws Exception
+    {
+        if (what.getFileSystem() == FileSystems.getDefault())
+        {
+            putFile(what.toFile());
+            return;
+        }
+        long size = Files.size(what);
+        try (InputStream is = Files.newInputStream(what))
+        {
+            putBytes(size, is);
+        }
+    }
+
     private void putStream(InputStream what) throws Exception
     {
+        // Send streams whose length is known directly
+        if (what instanceof SizedInputStream sized)
+        {
+            putBytes(sized.getSize(), sized);
+            return;
+        }
+        if (what instanceof ByteArrayInputStream bytes)
+        {
+            putBytes(bytes.available(), bytes);
+            return;
+        }
+        if (what instanceof FileInputStream file)
+        {
+            long size = fileSize(file);
+            if (size >= 0)
+            {
+                putBytes(size, file);
+                return;
+            }
+        }
+
         // Copy stream to temp file to get size
         TempFile temp = new TempFile();
         try (OutputStream os = temp.getOutputStream())
@@ -466,13 +1289,46 @@ class Stream
         }
     }
 
+    /* The number of bytes left in a stream reading a regular file, or -1 if
+    ** this is not known, such as for a pipe
+    */
+    private static long fileSize(FileInputStream file)
+    {
+        try
+        {
+            FileChannel channel = file.getChannel();
+            long position = channel.position();
+            long size = channel.size();
+            return size >= position ? size - position : -1;
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+    }
+
+    private void putBytes(ByteBuffer buffer) throws Exception
+    {
+        putData('*');
+        _output.writeLong(buffer.remaining());
+        putData('\r');
+        putData('\n');
+        _output.write(buffer);
+    }
+
     private void putBytes(long size, InputStream stream) throws Exception
     {
         putData('*');
-        putData(Long.toString(size));
-        putLine();
+        _output.writeLong(size);
+        putData('\r');
+        putData('\n');
 
         long left = size;
+        if (_channel != null && stream instanceof FileInputStream file)
+        {
+            // Send file contents (including spooled streams) directly
+            left -= _output.transfer(file.getChannel(), size, _channel);
+        }
         while (left > 0)
         {
             int need = _buffer.length;
@@ -487,6 +1343,7 @@ class Stream
         if (left > 0)
         {
             // Pad remaining with zeros if file too short
+            Arrays.fill(_buffer, (byte) 0);
             for (; left > 0; left -= _buffer.length)
             {
                 int need = (int) Math.min(left, _buffer.length);
@@ -495,18 +1352,24 @@ class Stream
         }
     }
 
-    private void putIndent(int indent) throws Exception
-    {
-        for (int i = 0; i < indent; i++)
-            putData('\t');
-    }
-
     private void putLine() throws Exception
     {
         putData('\r');
         putData('\n');
     }
 
+    /* Ends a line within an object or array and indents the next one. In
+    ** compact mode elements follow each other directly.
+    */
+    private void putLine(int indent) throws Exception
+    {
+        if (_compact)
+            return;
+        putLine();
+        for (int i = 0; i < indent; i++)
+            putData('\t');
+    }
+
     private void putData(char chr) throws Exception
     {
         _output.write(chr);
@@ -514,6 +1377,72 @@ class Stream
 
     private void putData(String str) throws Exception
     {
-        _output.write(str);
+        _output.writeAscii(str);
+    }
+
+    /* The bytes of a binary value passed to a sink. Reading stops at the end
+    ** of the value and any failure of the underlying stream is remembered.
+    */
+    private static class SinkInput extends InputStream
+    {
+        public SinkInput(InputStream source, long size)
+        {
+            _source = source;
+            _left = size;
+            _error = null;
+        }
+
+        public long getLeft()
+        {
+            return _left;
+        }
+
+        public IOException getError()
+        {
+            return _error;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (_left <= 0)
+                return -1;
+            if (len == 0)
+                return 0;
+            int done;
+            try
+            {
+                done = _source.read(b, off, (int) Math.min(len, _left));
+            }
+            catch (IOException e)
+            {
+                _error = e;
+                throw e;
+            }
+            if (done < 0)
+            {
+                _error = new EOFException("binary value truncated");
+                throw _error;
+            }
+            _left -= done;
+            return done;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return (int) Math.min(_source.available(), _left);
+        }
+
+        private final InputStream _source;
+        private long _left;
+        private IOException _error;
     }
 }
@@ -0,0 +1,486 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*!
+** Reads values in the IMu wire format as a series of events.
+**
+** `Session` normally reads each response from the server into a tree of
+** `Map` objects and arrays. A `StreamReader` instead reports each part of
+** a value as it is read: the start and end of objects and arrays, the keys
+** of object members and each string, number, boolean, null or binary value.
+** This allows specialised decoders to pick out just the data they need and
+** to skip whole subtrees with **skipValue( )**
+** [$<link>(:streamreader:skipValue)] without building them.
+**
+** A `StreamReader` is passed to a `ResultDecoder` [$<link>(:resultdecoder)]
+** when decoding the result of a request, or can be created to read values
+** from any input stream.
+**
+** @usage
+**   com.kesoftware.imu.StreamReader
+** @end
+**
+** @since 2.8
+*/
+public class StreamReader
+{
+	/* Constructors */
+	/*!
+	** Creates a `StreamReader` which reads a value from ``input``.
+	**
+	** The value is parsed using the `Session` **defaultParser**
+	** [$<link>(:session:defaultParser)].
+	**
+	** @param input
+	**   The stream to read from.
+	*/
+	public
+	StreamReader(InputStream input)
+	{
+		this(new Stream(input, OutputStream.nullOutputStream(), Session.getDefaultParser()));
+	}
+
+	StreamReader(Stream stream)
+	{
+		_stream = stream;
+		_objects = new boolean[16];
+		reset();
+	}
+
+	/* Properties */
+	/*!
+	** @property binary
+	**
+	** The data of the current ``BINARY`` event.
+	*/
+	public InputStream
+	getBinary()
+	{
+		return _binary;
+	}
+
+	/*!
+	** @property boolean
+	**
+	** The value of the current ``BOOLEAN`` event.
+	*/
+	public boolean
+	getBoolean()
+	{
+		return _boolean;
+	}
+
+	/*!
+	** @property depth
+	**
+	** The number of objects and arrays which contain the current position.
+	** A ``START_OBJECT`` or ``START_ARRAY`` event increases the depth and the
+	** matching end event decreases it again.
+	*/
+	public int
+	getDepth()
+	{
+		return _depth;
+	}
+
+	/*!
+	** @property double
+	**
+	** The value of the current ``NUMBER`` event as a `double`.
+	*/
+	public double
+	getDouble()
+	{
+		NumberBuilder number = _stream.getTokenNumber();
+		return number.isReal() ? number.doubleValue() : number.longValue();
+	}
+
+	/*!
+	** @property event
+	**
+	** The current event, or ``null`` if **next( )**
+	** [$<link>(:streamreader:next)] has not yet been called or the value has
+	** been read completely.
+	*/
+	public StreamEvent
+	getEvent()
+	{
+		return _event;
+	}
+
+	/*!
+	** @property integer
+	**
+	** ``true`` if the current ``NUMBER`` event is an integer, with no
+	** fractional part or exponent.
+	*/
+	public boolean
+	isInteger()
+	{
+		return ! _stream.getTokenNumber().isReal();
+	}
+
+	/*!
+	** @property long
+	**
+	** The value of the current ``NUMBER`` event as a `long`. Numbers which
+	** are not integers are truncated.
+	*/
+	public long
+	getLong()
+	{
+		NumberBuilder number = _stream.getTokenNumber();
+		return number.isReal() ? (long) number.doubleValue() : number.longValue();
+	}
+
+	/*!
+	** @property string
+	**
+	** The name of the current ``KEY`` event or the value of the current
+	** ``STRING`` event. This is ``null`` for strings passed over by
+	** **skipValue( )** [$<link>(:streamreader:skipValue)].
+	*/
+	public String
+	getString()
+	{
+		return _string;
+	}
+
+	/* Methods */
+	/*!
+	** Tests whether there are more events in the value being read.
+	*/
+	public boolean
+	hasNext()
+	{
+		return ! _complete;
+	}
+
+	/*!
+	** Moves to the next event.
+	**
+	** @returns
+	**   The event, or ``null`` once the value has been read completely.
+	**
+	** @throws IMuException
+	**   If the input could not be read or is not valid.
+	*/
+	public StreamEvent
+	next() throws IMuException
+	{
+		if (_complete)
+			return _event = null;
+		if (! _started)
+		{
+			_stream.begin();
+			_started = true;
+		}
+
+		_string = null;
+		_binary = null;
+
+		int token;
+		if (_depth > 0 && ! _afterKey)
+		{
+			boolean object = _objects[_depth - 1];
+			boolean key = object && ! _skipping;
+			token = _stream.nextToken(key, _skipping);
+			if (token == ',')
+				token = _stream.nextToken(key, _skipping);
+			if (object)
+			{
+				if (token == '}')
+					return end(StreamEvent.END_OBJECT);
+				if (token != Tokenizer.STRING && token != Tokenizer.IDENTIFIER)
+					throw new IMuException("StreamSyntaxName", Tokenizer.describe(token));
+				_string = _stream.getTokenString();
+
+				token = _stream.nextToken(false, _skipping);
+				if (token != ':')
+					throw new IMuException("StreamSyntaxColon", Tokenizer.describe(token));
+				_afterKey = true;
+				return _event = StreamEvent.KEY;
+			}
+			if (token == ']')
+				return end(StreamEvent.END_ARRAY);
+		}
+		else
+			token = _stream.nextToken(false, _skipping);
+
+		_afterKey = false;
+		return value(token);
+	}
+
+	/*!
+	** Skips the value at the current position without building it.
+	**
+	** If the current event is a ``KEY`` (or **next( )** has not yet been
+	** called) the whole of the following value is skipped. If the current
+	** event is ``START_OBJECT`` or ``START_ARRAY`` the rest of the object or
+	** array is skipped, leaving the matching end event as the current event.
+	** Otherwise nothing is done.
+	**
+	** @throws IMuException
+	**   If the input could not be read or is not valid.
+	*/
+	public void
+	skipValue() throws IMuException
+	{
+		_skipping = true;
+		try
+		{
+			if (_event == StreamEvent.KEY || ! _started)
+				next();
+			if (_event != StreamEvent.START_OBJECT && _event != StreamEvent.START_ARRAY)
+				return;
+			int depth = _depth - 1;
+			while (_depth > depth)
+				next();
+		}
+		finally
+		{
+			_skipping = false;
+		}
+	}
+
+	/*!
+	** Reads the value at the current position in full.
+	**
+	** If the current event is a ``KEY`` (or **next( )** has not yet been
+	** called) the following value is read. If the current event is
+	** ``START_OBJECT`` or ``START_ARRAY`` the object or array is read,
+	** leaving the matching end event as the current event.
+	**
+	** @returns
+	**   The value in the same form as returned by `Session` **request( )**
+	**   [$<link>(:session:request)]: a `Map` for an object, an array of
+	**   `Object`\s for an array and a `String`, `Long`, `Double`, `Boolean`,
+	**   `InputStream` or ``null`` for other values.
+	**
+	** @throws IMuException
+	**   If the input could not be read or is not valid.
+	*/
+	public Object
+	readValue() throws IMuException
+	{
+		if (_event == StreamEvent.KEY || ! _started)
+			next();
+		if (_event == null)
+			return null;
+		return switch (_event)
+		{
+			case START_OBJECT -> {
+				Object value = _stream.getTokenValue();
+				end(StreamEvent.END_OBJECT);
+				yield value;
+			}
+			case START_ARRAY -> {
+				Object value = _stream.getTokenValue();
+				end(StreamEvent.END_ARRAY);
+				yield value;
+			}
+			case STRING -> _string;
+			case NUMBER -> isInteger() ? (Object) getLong() : (Object) getDouble();
+			case BOOLEAN -> _boolean;
+			case BINARY -> _binary;
+			default -> null;
+		};
+	}
+
+	/* Prepares to read a new value */
+	void
+	reset()
+	{
+		_event = null;
+		_depth = 0;
+		_started = false;
+		_complete = false;
+		_afterKey = false;
+		_skipping = false;
+		_string = null;
+		_binary = null;
+		_boolean = false;
+		_error = null;
+	}
+
+	/* Reads a complete response from the server, passing its result member
+	** to decoder rather than building it. The other members are read in
+	** full. If the decoder throws the rest of the result is skipped and the
+	** exception is available from getError().
+	*/
+	Object
+	readResponse(ResultDecoder<?> decoder) throws IMuException
+	{
+		reset();
+		if (next() != StreamEvent.START_OBJECT)
+			return readValue();
+
+		Map response = new Map();
+		while (next() == StreamEvent.KEY)
+		{
+			String name = _string;
+			if (! name.equals("result"))
+			{
+				response.put(name, readValue());
+				continue;
+			}
+
+			Object result = null;
+			try
+			{
+				result = decoder.decode(this);
+			}
+			catch (Exception e)
+			{
+				_error = e;
+			}
+			if (_depth == 1 && _afterKey)
+				skipValue();
+			else if (_depth > 1)
+			{
+				_skipping = true;
+				try
+				{
+					while (_depth > 1)
+						next();
+				}
+				finally
+				{
+					_skipping = false;
+				}
+			}
+			response.put(name, result);
+		}
+		return response;
+	}
+
+	/* The exception thrown by the decoder in the last readResponse() */
+	Exception
+	getError()
+	{
+		return _error;
+	}
+
+	private final Stream _stream;
+
+	/* Whether each open container is an object (rather than an array) */
+	private boolean[] _objects;
+	private int _depth;
+
+	private StreamEvent _event;
+	private boolean _started;
+	private boolean _complete;
+	private boolean _afterKey;
+	private boolean _skipping;
+
+	private String _string;
+	private InputStream _binary;
+	private boolean _boolean;
+	private Exception _error;
+
+	private StreamEvent
+	value(int token) throws IMuException
+	{
+		StreamEvent event;
+		switch (token)
+		{
+			case '{' -> {
+				push(true);
+				return _event = StreamEvent.START_OBJECT;
+			}
+			case '[' -> {
+				push(false);
+				return _event = StreamEvent.START_ARRAY;
+			}
+			case Tokenizer.STRING -> {
+				_string = _stream.getTokenString();
+				event = StreamEvent.STRING;
+			}
+			case Tokenizer.LONG, Tokenizer.DOUBLE -> event = StreamEvent.NUMBER;
+			case Tokenizer.TRUE -> {
+				_boolean = true;
+				event = StreamEvent.BOOLEAN;
+			}
+			case Tokenizer.FALSE -> {
+				_boolean = false;
+				event = StreamEvent.BOOLEAN;
+			}
+			case Tokenizer.NULL -> event = StreamEvent.NULL;
+			case Tokenizer.BINARY -> {
+				_binary = _stream.getTokenFile();
+				event = StreamEvent.BINARY;
+			}
+			default -> throw new IMuException("StreamSyntaxToken", Tokenizer.describe(token));
+		}
+		if (_depth == 0)
+			_complete = true;
+		return _event = event;
+	}
+
+	private void
+	push(boolean object)
+	{
+		if (_depth == _objects.length)
+			_objects = Arrays.copyOf(_objects, _depth * 2);
+		_objects[_depth++] = object;
+	}
+
+	private StreamEvent
+	end(StreamEvent event)
+	{
+		_depth--;
+		_afterKey = false;
+		if (_depth == 0)
+			_complete = true;
+		return _event = event;
+	}
+}
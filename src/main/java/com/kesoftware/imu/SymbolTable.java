@@ -0,0 +1,196 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* Canonical instances of the object keys seen on a stream.
+**
+** Every row of a fetch result repeats the same column names so, rather than
+** creating a new string for each key, the parser looks the key up here and
+** reuses the instance created the first time it was seen. ASCII keys are
+** matched directly against the raw bytes so a repeated key costs no
+** allocation at all.
+**
+** The table stops accepting new keys once it holds MAX_SYMBOLS entries so
+** that unusual responses with many distinct keys cannot make it grow without
+** limit; keys which are not added are simply returned as new strings.
+*/
+final class SymbolTable
+{
+	/* Constructor */
+	public
+	SymbolTable()
+	{
+		_symbols = new String[256];
+		_bytes = new byte[256][];
+		_hashes = new int[256];
+		_count = 0;
+	}
+
+	/* Methods */
+	/* Returns the canonical string for the ASCII bytes given. The hash must
+	** have been calculated by the caller in the same way as String's
+	** hashCode(), usually while scanning for the end of the key.
+	*/
+	public String
+	intern(byte[] bytes, int offset, int length, int hash)
+	{
+		if (_count * 2 >= _symbols.length)
+			grow();
+
+		int mask = _symbols.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask)
+		{
+			String symbol = _symbols[slot];
+			if (symbol == null)
+			{
+				symbol = new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+				add(slot, hash, symbol, Arrays.copyOfRange(bytes, offset, offset + length));
+				return symbol;
+			}
+			if (_hashes[slot] == hash)
+			{
+				byte[] match = _bytes[slot];
+				if (match != null && Arrays.equals(match, 0, match.length, bytes, offset, offset + length))
+					return symbol;
+			}
+		}
+	}
+
+	/* Returns the canonical string for the characters given */
+	public String
+	intern(CharSequence chars)
+	{
+		if (_count * 2 >= _symbols.length)
+			grow();
+
+		int length = chars.length();
+		int hash = 0;
+		boolean ascii = true;
+		for (int i = 0; i < length; i++)
+		{
+			char c = chars.charAt(i);
+			hash = 31 * hash + c;
+			if (c >= 0x80)
+				ascii = false;
+		}
+
+		int mask = _symbols.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask)
+		{
+			String symbol = _symbols[slot];
+			if (symbol == null)
+			{
+				symbol = chars.toString();
+				add(slot, hash, symbol, ascii ? symbol.getBytes(StandardCharsets.ISO_8859_1) : null);
+				return symbol;
+			}
+			if (_hashes[slot] == hash && symbol.contentEquals(chars))
+				return symbol;
+		}
+	}
+
+	/* Properties */
+	/* The number of distinct keys held */
+	public int
+	size()
+	{
+		return _count;
+	}
+
+	private static final int MAX_SYMBOLS = 4096;
+
+	/* The symbols, the bytes of each (null for symbols which are not plain
+	** ASCII) and their hash codes. The table is kept at most half full so
+	** that there is always an empty slot to end a search.
+	*/
+	private String[] _symbols;
+	private byte[][] _bytes;
+	private int[] _hashes;
+	private int _count;
+
+	private void
+	add(int slot, int hash, String symbol, byte[] bytes)
+	{
+		if (_count >= MAX_SYMBOLS)
+			return;
+
+		_symbols[slot] = symbol;
+		_bytes[slot] = bytes;
+		_hashes[slot] = hash;
+		_count++;
+	}
+
+	private void
+	grow()
+	{
+		if (_count >= MAX_SYMBOLS)
+			return;
+
+		String[] symbols = _symbols;
+		byte[][] bytes = _bytes;
+		int[] hashes = _hashes;
+		_symbols = new String[symbols.length * 2];
+		_bytes = new byte[symbols.length * 2][];
+		_hashes = new int[symbols.length * 2];
+
+		int mask = _symbols.length - 1;
+		for (int i = 0; i < symbols.length; i++)
+		{
+			if (symbols[i] == null)
+				continue;
+			int slot = hashes[i] & mask;
+			while (_symbols[slot] != null)
+				slot = (slot + 1) & mask;
+			_symbols[slot] = symbols[i];
+			_bytes[slot] = bytes[i];
+			_hashes[slot] = hashes[i];
+		}
+	}
+}
@@ -67,7 +67,7 @@ class TempFile
 	}
 	
 	/* Methods */
-	public InputStream
+	public TempInputStream
 	getInputStream() throws FileNotFoundException
 	{
 		if (_input == null)
@@ -75,7 +75,7 @@ class TempFile
 		return _input;
 	}
 	
-	public OutputStream
+	public FileOutputStream
 	getOutputStream() throws FileNotFoundException
 	{
 		if (_output == null)
@@ -68,16 +68,22 @@ import java.util.Objects;
 **   com.kesoftware.imu.TempInputStream
 ** @end
 **
+** If the `Session` computed a digest of the file as it was received
+** [$<link>(:session:digest)] it is available through the `Digested`
+** [$<link>(:digested)] properties.
+**
 ** @extends java.io.FileInputStream
 **
 ** @since 1.0
 */
-public class TempInputStream extends FileInputStream {
+public class TempInputStream extends FileInputStream implements Digested {
 
     private static final Cleaner cleaner = Cleaner.create();
 
     private final File file;
     private final Cleaner.Cleanable cleanable;
+    private String algorithm;
+    private byte[] digest;
 
     /**
      * Creates an input stream for the specified temporary file.
@@ -92,6 +98,24 @@ public class TempInputStream extends FileInputStream {
         this.cleanable = cleaner.register(this, new FileCleanup(file));
     }
 
+    @Override
+    public String getDigestAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * Records the digest computed while the file was being received.
+     */
+    void setDigest(String algorithm, byte[] digest) {
+        this.algorithm = algorithm;
+        this.digest = digest;
+    }
+
     /**
      * Closes the stream and deletes the file.
      *
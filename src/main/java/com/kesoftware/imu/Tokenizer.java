@@ -0,0 +1,883 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* Splits the server's responses into tokens working directly on the raw
+** UTF-8 bytes.
+**
+** Input is read into a private buffer in large blocks. String values which
+** contain no escapes are sliced straight out of the buffer, and are only
+** decoded as UTF-8 if a non-ASCII byte was seen. Other tokens are plain
+** ASCII so are recognised without any decoding at all.
+**
+** Tokens are reported in the same way as the character based parser in
+** Stream so the two can be used interchangeably. Each token is identified
+** by an int code: punctuation by its own character and everything else by
+** one of the negative constants below.
+*/
+class Tokenizer
+{
+	/* Token codes */
+	public static final int STRING = -1;
+	public static final int LONG = -2;
+	public static final int DOUBLE = -3;
+	public static final int IDENTIFIER = -4;
+	public static final int TRUE = -5;
+	public static final int FALSE = -6;
+	public static final int NULL = -7;
+	public static final int BINARY = -8;
+
+	/* Returns a printable name for a token code, for use in error messages */
+	public static String
+	describe(int token)
+	{
+		return switch (token)
+		{
+			case STRING -> "string";
+			case LONG, DOUBLE -> "number";
+			case IDENTIFIER -> "identifier";
+			case TRUE -> "true";
+			case FALSE -> "false";
+			case NULL -> "null";
+			case BINARY -> "binary";
+			default -> new String(Character.toChars(token));
+		};
+	}
+
+	/* Constructor */
+	public
+	Tokenizer(InputStream input)
+	{
+		_input = input;
+		// Without an input all the data is given to reset()
+		_buffer = new byte[input == null ? 0 : 131072];
+		_position = 0;
+		_limit = 0;
+
+		_string = null;
+		_size = 0;
+		_left = 0;
+		_binary = new BinaryInput();
+		_scratch = new StringBuilder();
+		_number = new NumberBuilder();
+		_symbols = new SymbolTable();
+		_key = false;
+		_skip = false;
+		_fixed = false;
+		_mark = -1;
+		_capture = null;
+		_captured = 0;
+		_read = 0;
+	}
+
+	/* Properties */
+	/* The text of the last string or identifier token */
+	public String
+	getString()
+	{
+		return _string;
+	}
+
+	/* The value of the last number token */
+	public NumberBuilder
+	getNumber()
+	{
+		return _number;
+	}
+
+	/* The table used to share the strings of object keys */
+	public SymbolTable
+	getSymbols()
+	{
+		return _symbols;
+	}
+
+	/* The number of bytes in the last binary token */
+	public long
+	getSize()
+	{
+		return _size;
+	}
+
+	/* The number of bytes of input used so far, not counting any which have
+	** been read into the buffer but not yet tokenized
+	*/
+	public long
+	getOffset()
+	{
+		return _read - (_limit - _position);
+	}
+
+	/* The bytes of the last binary token. Any bytes not read before the next
+	** token is requested are skipped.
+	*/
+	public InputStream
+	getBinary()
+	{
+		return _binary;
+	}
+
+	/* Methods */
+	/* Reads a token which is expected to be an object key. String and
+	** identifier values are returned as their canonical instances from the
+	** symbol table.
+	*/
+	public int
+	nextKey() throws IOException, IMuException
+	{
+		_key = true;
+		try
+		{
+			return next();
+		}
+		finally
+		{
+			_key = false;
+		}
+	}
+
+	/* Reads a token which is being skipped. The contents of strings are
+	** not decoded and getString() returns null for them. The bytes of a
+	** binary token are skipped when the next token is read.
+	*/
+	public int
+	skip() throws IOException, IMuException
+	{
+		_skip = true;
+		try
+		{
+			return next();
+		}
+		finally
+		{
+			_skip = false;
+		}
+	}
+
+	/* Writes the bytes of the last binary token to file. Any bytes already
+	** read into the buffer are written first and the rest are transferred
+	** straight from source, which must be the channel underlying the input
+	** stream.
+	*/
+	public void
+	transfer(FileChannel file, ReadableByteChannel source) throws IOException, IMuException
+	{
+		if (_left > 0 && _position < _limit)
+		{
+			int count = (int) Math.min(_left, (long) (_limit - _position));
+			ByteBuffer buffer = ByteBuffer.wrap(_buffer, _position, count);
+			while (buffer.hasRemaining())
+				file.write(buffer);
+			_position += count;
+			_left -= count;
+		}
+		long position = file.position();
+		while (_left > 0)
+		{
+			long done = file.transferFrom(source, position, _left);
+			if (done <= 0)
+				throw new IMuException("StreamEOF", "binary");
+			_read += done;
+			position += done;
+			_left -= done;
+		}
+		file.position(position);
+	}
+
+	/* Tokenizes data rather than the input stream. The data is used in
+	** place and is not changed.
+	*/
+	public void
+	reset(byte[] data, int offset, int length)
+	{
+		_buffer = data;
+		_position = offset;
+		_limit = offset + length;
+		_left = 0;
+		_fixed = true;
+	}
+
+	/* Starts keeping a copy of the input, beginning back bytes before the
+	** current position
+	*/
+	public void
+	capture(int back)
+	{
+		_mark = _position - back;
+		if (_capture == null)
+			_capture = new byte[8192];
+		_captured = 0;
+	}
+
+	/* The number of bytes copied since capture() was called */
+	public int
+	getCaptured()
+	{
+		return _captured + _position - _mark;
+	}
+
+	/* Stops copying the input and returns the bytes copied */
+	public byte[]
+	endCapture()
+	{
+		keep(_position);
+		_mark = -1;
+		return Arrays.copyOf(_capture, _captured);
+	}
+
+	/* Passes over the bytes of the last binary token now rather than when
+	** the next token is read
+	*/
+	public void
+	skipBinary() throws IOException, IMuException
+	{
+		while (_left > 0)
+		{
+			if (_position >= _limit && ! fill())
+				throw new IMuException("StreamEOF", "binary");
+			int skip = (int) Math.min(_left, (long) (_limit - _position));
+			_position += skip;
+			_left -= skip;
+		}
+	}
+
+	/* Passes over the whole of the next value, including any objects or
+	** arrays within it, by scanning its bytes rather than reading it token
+	** by token. Only the bracketing, strings and binary data are looked at so
+	** the value is not checked for errors.
+	*/
+	public void
+	skipValue() throws IOException, IMuException
+	{
+		skipBinary();
+		int depth = 0;
+		do
+		{
+			int c = skipWhitespace();
+			_position++;
+			if (c == '"')
+				skipString();
+			else if (c == '{' || c == '[')
+				depth++;
+			else if (c == '}' || c == ']')
+				depth--;
+			else if (c == '*')
+			{
+				readBinary();
+				skipBinary();
+			}
+			else if (c != ',' && c != ':')
+				skipScalar();
+		}
+		while (depth > 0);
+	}
+
+	public int
+	next() throws IOException, IMuException
+	{
+		skipBinary();
+
+		int c = skipWhitespace();
+		_string = null;
+
+		if (c == '"')
+		{
+			_position++;
+			if (_skip)
+				skipString();
+			else if (_key)
+				readKey();
+			else
+				readString();
+			return STRING;
+		}
+		if ((c >= '0' && c <= '9') || c == '-')
+		{
+			return readNumber();
+		}
+		if (c == '*')
+		{
+			_position++;
+			readBinary();
+			return BINARY;
+		}
+		if (c >= 0x80)
+		{
+			int code = peekCodePoint();
+			if (Character.isLetter(code))
+				return readIdentifier();
+			_position += _width;
+			return code;
+		}
+		if (isLetter(c) || c == '_')
+			return readIdentifier();
+
+		_position++;
+		return c;
+	}
+
+	private final InputStream _input;
+	private byte[] _buffer;
+	private int _position;
+	private int _limit;
+
+	private String _string;
+	private long _size;
+	private long _left;
+	private final BinaryInput _binary;
+	private final StringBuilder _scratch;
+	private final NumberBuilder _number;
+	private final SymbolTable _symbols;
+	private boolean _key;
+	private boolean _skip;
+	private int _width;
+
+	// Set when tokenizing data given to reset()
+	private boolean _fixed;
+
+	// The copy of the input being captured, from _mark in the buffer
+	private int _mark;
+	private byte[] _capture;
+	private int _captured;
+	private long _read;
+
+	/* Reads more input into the buffer. Bytes from _position on are kept. */
+	private boolean
+	fill() throws IOException
+	{
+		if (_fixed)
+			return false;
+		if (_mark >= 0)
+		{
+			keep(_position);
+			_mark = _position;
+		}
+		if (_position > 0)
+		{
+			System.arraycopy(_buffer, _position, _buffer, 0, _limit - _position);
+			_limit -= _position;
+			_position = 0;
+			if (_mark >= 0)
+				_mark = 0;
+		}
+		else if (_limit == _buffer.length)
+			_buffer = Arrays.copyOf(_buffer, _buffer.length * 2);
+
+		int done = _input.read(_buffer, _limit, _buffer.length - _limit);
+		if (done <= 0)
+			return false;
+		_limit += done;
+		_read += done;
+		return true;
+	}
+
+	/* Adds the buffer from _mark up to end to the captured bytes */
+	private void
+	keep(int end)
+	{
+		int count = end - _mark;
+		if (_captured + count > _capture.length)
+			_capture = Arrays.copyOf(_capture, Math.max(_capture.length * 2, _captured + count));
+		System.arraycopy(_buffer, _mark, _capture, _captured, count);
+		_captured += count;
+	}
+
+	private boolean
+	ensure(int count) throws IOException
+	{
+		while (_limit - _position < count)
+			if (! fill())
+				return false;
+		return true;
+	}
+
+	private int
+	peek() throws IOException, IMuException
+	{
+		if (_position >= _limit && ! fill())
+			throw new IMuException("StreamEOF", "character");
+		return _buffer[_position] & 0xFF;
+	}
+
+	private int
+	read() throws IOException, IMuException
+	{
+		int c = peek();
+		_position++;
+		return c;
+	}
+
+	private int
+	skipWhitespace() throws IOException, IMuException
+	{
+		while (true)
+		{
+			while (_position < _limit)
+			{
+				int c = _buffer[_position] & 0xFF;
+				if (! isWhitespace(c))
+					return c;
+				_position++;
+			}
+			if (! fill())
+				throw new IMuException("StreamEOF", "character");
+		}
+	}
+
+	/* Passes over the rest of a number or identifier */
+	private void
+	skipScalar() throws IOException
+	{
+		while (true)
+		{
+			while (_position < _limit)
+			{
+				int c = _buffer[_position] & 0xFF;
+				if (isWhitespace(c) || c == ',' || c == ':' || c == '}' || c == ']')
+					return;
+				_position++;
+			}
+			if (! fill())
+				return;
+		}
+	}
+
+	private static boolean
+	isWhitespace(int c)
+	{
+		return c == ' ' || (c >= 0x09 && c <= 0x0D) || (c >= 0x1C && c <= 0x1F);
+	}
+
+	private static boolean
+	isLetter(int c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean
+	isDigit(int c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean
+	isHex(int c)
+	{
+		return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	/* Decodes the UTF-8 character at the current position without consuming
+	** it. The number of bytes it occupies is left in _width.
+	*/
+	private int
+	peekCodePoint() throws IOException, IMuException
+	{
+		int b = peek();
+		int v;
+		int n;
+		if ((b & 0x80) == 0)
+		{
+			v = b;
+			n = 0;
+		}
+		else if ((b & 0xE0) == 0xC0)
+		{
+			v = b & 0x1F;
+			n = 1;
+		}
+		else if ((b & 0xF0) == 0xE0)
+		{
+			v = b & 0x0F;
+			n = 2;
+		}
+		else if ((b & 0xF8) == 0xF0)
+		{
+			v = b & 0x07;
+			n = 3;
+		}
+		else
+			throw new IMuException("InputCharacterStart", b);
+
+		if (! ensure(n + 1))
+			throw new IMuException("InputCharacterTruncated");
+		for (int i = 1; i <= n; i++)
+		{
+			b = _buffer[_position + i] & 0xFF;
+			if ((b & 0xC0) != 0x80)
+				throw new IMuException("InputCharacterCorrupted");
+			v = (v << 6) | (b & 0x3F);
+		}
+		_width = n + 1;
+		return v;
+	}
+
+	private void
+	readString() throws IOException, IMuException
+	{
+		int scan = _position;
+		boolean ascii = true;
+		boolean key = _key;
+		while (true)
+		{
+			byte[] buffer = _buffer;
+			int limit = _limit;
+			while (scan < limit)
+			{
+				byte b = buffer[scan];
+				if (b == '"')
+				{
+					int length = scan - _position;
+					if (ascii)
+						_string = new String(buffer, _position, length, StandardCharsets.ISO_8859_1);
+					else
+						_string = new String(buffer, _position, length, StandardCharsets.UTF_8);
+					if (key)
+						_string = _symbols.intern(_string);
+					_position = scan + 1;
+					return;
+				}
+				if (b == '\\')
+				{
+					readEscapedString(scan);
+					return;
+				}
+				if (b < 0)
+					ascii = false;
+				scan++;
+			}
+
+			int start = _position;
+			if (! fill())
+				throw new IMuException("StreamEOF", "character");
+			scan -= start - _position;
+		}
+	}
+
+	/* Moves past a string without decoding it. Only quotes and backslashes
+	** matter as neither can appear inside a multi-byte UTF-8 sequence.
+	*/
+	private void
+	skipString() throws IOException, IMuException
+	{
+		while (true)
+		{
+			while (_position < _limit)
+			{
+				byte b = _buffer[_position++];
+				if (b == '"')
+					return;
+				if (b == '\\')
+				{
+					if (_position >= _limit && ! fill())
+						throw new IMuException("StreamEOF", "character");
+					_position++;
+				}
+			}
+			if (! fill())
+				throw new IMuException("StreamEOF", "character");
+		}
+	}
+
+	/* As readString() but for object keys, which are looked up in the
+	** symbol table. The key's hash is calculated during the scan so plain
+	** ASCII keys can be matched without creating a string.
+	*/
+	private void
+	readKey() throws IOException, IMuException
+	{
+		int scan = _position;
+		int hash = 0;
+		while (true)
+		{
+			byte[] buffer = _buffer;
+			int limit = _limit;
+			while (scan < limit)
+			{
+				byte b = buffer[scan];
+				if (b == '"')
+				{
+					_string = _symbols.intern(buffer, _position, scan - _position, hash);
+					_position = scan + 1;
+					return;
+				}
+				if (b == '\\' || b < 0)
+				{
+					readString();
+					return;
+				}
+				hash = 31 * hash + b;
+				scan++;
+			}
+
+			int start = _position;
+			if (! fill())
+				throw new IMuException("StreamEOF", "character");
+			scan -= start - _position;
+		}
+	}
+
+	/* Slow path for strings containing escapes. The text before the first
+	** escape is decoded in one go and the rest a character at a time.
+	*/
+	private void
+	readEscapedString(int escape) throws IOException, IMuException
+	{
+		StringBuilder sb = _scratch;
+		sb.setLength(0);
+		sb.append(new String(_buffer, _position, escape - _position, StandardCharsets.UTF_8));
+		_position = escape;
+
+		while (true)
+		{
+			int c = peek();
+			if (c == '"')
+			{
+				_position++;
+				break;
+			}
+			if (c == '\\')
+			{
+				_position++;
+				c = peek();
+				switch (c)
+				{
+					case 'b' -> sb.append('\b');
+					case 'f' -> sb.append('\f');
+					case 'n' -> sb.append('\n');
+					case 'r' -> sb.append('\r');
+					case 't' -> sb.append('\t');
+					case 'u' -> {
+						_position++;
+						int code = 0;
+						int count = 0;
+						while (count < 4 && isHex(peek()))
+						{
+							code = code * 16 + Character.digit(read(), 16);
+							count++;
+						}
+						if (count == 0)
+							throw new IMuException("StreamSyntaxUnicode");
+						sb.appendCodePoint(code);
+						continue;
+					}
+					default -> {
+						sb.appendCodePoint(peekCodePoint());
+						_position += _width;
+						continue;
+					}
+				}
+				_position++;
+			}
+			else if (c >= 0x80)
+			{
+				sb.appendCodePoint(peekCodePoint());
+				_position += _width;
+			}
+			else
+			{
+				sb.append((char) c);
+				_position++;
+			}
+		}
+		_string = _key ? _symbols.intern(sb) : sb.toString();
+	}
+
+	private int
+	readNumber() throws IOException, IMuException
+	{
+		NumberBuilder number = _number;
+		number.start();
+		number.append((char) read());
+		while (isDigit(peek()))
+			number.append((char) read());
+		if (peek() == '.')
+		{
+			number.append((char) read());
+			while (isDigit(peek()))
+				number.append((char) read());
+		}
+		int c = peek();
+		if (c == 'e' || c == 'E')
+		{
+			number.append((char) read());
+			c = peek();
+			if (c == '+' || c == '-')
+				number.append((char) read());
+			while (isDigit(peek()))
+				number.append((char) read());
+		}
+		return number.isReal() ? DOUBLE : LONG;
+	}
+
+	private int
+	readIdentifier() throws IOException, IMuException
+	{
+		StringBuilder sb = _scratch;
+		sb.setLength(0);
+		while (true)
+		{
+			int c = peek();
+			if (c < 0x80)
+			{
+				if (! isLetter(c) && ! isDigit(c) && c != '_')
+					break;
+				sb.append((char) c);
+				_position++;
+			}
+			else
+			{
+				int code = peekCodePoint();
+				if (! Character.isLetterOrDigit(code))
+					break;
+				sb.appendCodePoint(code);
+				_position += _width;
+			}
+		}
+		int keyword = keyword(sb);
+		if (keyword != IDENTIFIER)
+			return keyword;
+		_string = _key ? _symbols.intern(sb) : sb.toString();
+		return IDENTIFIER;
+	}
+
+	/* Checks for the keywords true, false and null, ignoring case, without
+	** creating a string.
+	*/
+	static int
+	keyword(CharSequence name)
+	{
+		if (matches(name, "false"))
+			return FALSE;
+		if (matches(name, "null"))
+			return NULL;
+		if (matches(name, "true"))
+			return TRUE;
+		return IDENTIFIER;
+	}
+
+	private static boolean
+	matches(CharSequence name, String keyword)
+	{
+		int length = keyword.length();
+		if (name.length() != length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (Character.toLowerCase(name.charAt(i)) != keyword.charAt(i))
+				return false;
+		return true;
+	}
+
+	private void
+	readBinary() throws IOException, IMuException
+	{
+		long size = 0;
+		int digits = 0;
+		while (isDigit(peek()))
+		{
+			size = size * 10 + (read() - '0');
+			digits++;
+		}
+		if (digits == 0)
+			throw new IMuException("StreamSyntaxBinary");
+		while (read() != '\n')
+			;
+		_size = size;
+		_left = size;
+	}
+
+	/* Reads the bytes of the current binary token, draining the buffer
+	** before going to the underlying stream.
+	*/
+	private class BinaryInput extends InputStream
+	{
+		@Override
+		public int
+		read() throws IOException
+		{
+			byte[] one = new byte[1];
+			int done = read(one, 0, 1);
+			if (done <= 0)
+				return -1;
+			return one[0] & 0xFF;
+		}
+
+		@Override
+		public int
+		read(byte[] b, int off, int len) throws IOException
+		{
+			if (_left <= 0)
+				return -1;
+			if (len > _left)
+				len = (int) _left;
+
+			int done;
+			if (_position < _limit)
+			{
+				done = Math.min(len, _limit - _position);
+				System.arraycopy(_buffer, _position, b, off, done);
+				_position += done;
+			}
+			else
+			{
+				done = _input.read(b, off, len);
+				if (done <= 0)
+					return -1;
+				_read += done;
+			}
+			_left -= done;
+			return done;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/* Tests how AsyncSession finds the end of each response. The responses are
+** written by a scripted server, in pieces of random sizes, so that frames,
+** strings, escapes and binary values are split across reads at every kind
+** of position.
+*/
+public class AsyncSessionTest extends TestCase
+{
+	public void
+	testFramesSplitAcrossReads() throws Exception
+	{
+		checkFrames(7);
+	}
+
+	public void
+	testFramesSplitIntoSingleBytes() throws Exception
+	{
+		checkFrames(1);
+	}
+
+	public void
+	testFramesInOneRead() throws Exception
+	{
+		checkFrames(0);
+	}
+
+	public void
+	testBinaryValues() throws Exception
+	{
+		byte[] small = binary(100, 1);
+		byte[] large = binary(200000, 2);
+
+		ByteArrayOutputStream script = new ByteArrayOutputStream();
+		script.write(ascii("{\"status\":\"ok\",\"result\":[*" + small.length + "\r\n"));
+		script.write(small);
+		script.write(ascii(",*" + large.length + "\r\n"));
+		script.write(large);
+		script.write(ascii(",*0\r\n,\"end}\"]}"));
+		script.write(ascii("{\"status\":\"ok\",\"result\":\"after\"}"));
+
+		List<Object> results = run(script.toByteArray(), 2, 4096);
+		Object[] values = (Object[]) results.get(0);
+		assertEquals(4, values.length);
+		assertTrue(Arrays.equals(small, readAll(values[0])));
+		assertTrue(Arrays.equals(large, readAll(values[1])));
+		assertEquals(0, readAll(values[2]).length);
+		assertEquals("end}", values[3]);
+		assertEquals("after", results.get(1));
+	}
+
+	public void
+	testBadTokenFailsRequests() throws Exception
+	{
+		try
+		{
+			run(ascii("x{\"status\":\"ok\"}"), 1, 0);
+			fail("a response not starting with a bracket should fail");
+		}
+		catch (ExecutionException e)
+		{
+			assertEquals("StreamSyntaxToken", ((IMuException) e.getCause()).getID());
+		}
+	}
+
+	/* Responses whose strings contain brackets, quotes and escapes, with
+	** nesting and whitespace between them
+	*/
+	private static final String[] RESPONSES =
+	{
+		"{\"status\":\"ok\",\"result\":\"a}b]c{d[\"}",
+		"\r\n {\"status\":\"ok\",\"result\":\"quote \\\" and \\\\\"}\n",
+		"{\"status\":\"ok\",\"result\":[1,[2,[3,{\"x\":\"}\"}]]]}",
+		"{\"status\":\"ok\",\"result\":\"\\\\\"}",
+		"{\"status\":\"ok\",\"result\":\"\u00e9\u4e2d\"}"
+	};
+
+	private static final Object[] RESULTS =
+	{
+		"a}b]c{d[",
+		"quote \" and \\",
+		null,
+		"\\",
+		"\u00e9\u4e2d"
+	};
+
+	private void
+	checkFrames(int piece) throws Exception
+	{
+		StringBuilder script = new StringBuilder();
+		for (String response : RESPONSES)
+			script.append(response);
+		List<Object> results = run(script.toString().getBytes("UTF-8"), RESPONSES.length, piece);
+		for (int i = 0; i < RESULTS.length; i++)
+		{
+			if (RESULTS[i] != null)
+				assertEquals(RESULTS[i], results.get(i));
+		}
+
+		Object[] nested = (Object[]) results.get(2);
+		assertEquals(2, nested.length);
+		Object[] inner = (Object[]) ((Object[]) nested[1])[1];
+		assertEquals("}", ((Map) inner[1]).getString("x"));
+	}
+
+	/* Sends count requests to a server which answers with script, written
+	** in pieces of up to piece bytes (or all at once if piece is zero), and
+	** returns the results
+	*/
+	private List<Object>
+	run(byte[] script, int count, int piece) throws Exception
+	{
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(() -> play(server, script, count, piece), "test-script");
+		thread.setDaemon(true);
+		thread.start();
+
+		AsyncSession session = new AsyncSession(server.getInetAddress().getHostAddress(), server.getLocalPort());
+		try
+		{
+			List<CompletableFuture<Map>> futures = new ArrayList<CompletableFuture<Map>>();
+			for (int i = 0; i < count; i++)
+			{
+				Map request = new Map();
+				request.put("method", "test" + i);
+				futures.add(session.request(request));
+			}
+			List<Object> results = new ArrayList<Object>();
+			for (CompletableFuture<Map> future : futures)
+				results.add(future.get(30, TimeUnit.SECONDS).get("result"));
+			return results;
+		}
+		finally
+		{
+			session.disconnect();
+			server.close();
+		}
+	}
+
+	/* Waits for count requests and then writes the script */
+	private static void
+	play(ServerSocket server, byte[] script, int count, int piece)
+	{
+		try (Socket socket = server.accept())
+		{
+			InputStream input = socket.getInputStream();
+			int depth = 0;
+			boolean string = false;
+			boolean escape = false;
+			while (count > 0)
+			{
+				int c = input.read();
+				if (c < 0)
+					return;
+				if (escape)
+					escape = false;
+				else if (string)
+				{
+					if (c == '\\')
+						escape = true;
+					else if (c == '"')
+						string = false;
+				}
+				else if (c == '"')
+					string = true;
+				else if (c == '{' || c == '[')
+					depth++;
+				else if ((c == '}' || c == ']') && --depth == 0)
+					count--;
+			}
+
+			OutputStream output = socket.getOutputStream();
+			if (piece == 0)
+				output.write(script);
+			else
+			{
+				Random random = new Random(piece);
+				for (int i = 0; i < script.length; )
+				{
+					int size = Math.min(1 + random.nextInt(piece), script.length - i);
+					output.write(script, i, size);
+					output.flush();
+					i += size;
+					if (random.nextInt(8) == 0)
+						Thread.sleep(1);
+				}
+			}
+			output.flush();
+
+			// Keep the connection open until the client has finished
+			input.read();
+		}
+		catch (IOException | InterruptedException e)
+		{
+			// Server closed
+		}
+	}
+
+	private static byte[]
+	ascii(String text) throws IOException
+	{
+		return text.getBytes("US-ASCII");
+	}
+
+	/* Random bytes including the characters the scanner looks for */
+	private static byte[]
+	binary(int size, long seed)
+	{
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		for (int i = 0; i < size; i += 97)
+			data[i] = (byte) "{}[]\"\\*\n".charAt(i % 8);
+		return data;
+	}
+
+	private static byte[]
+	readAll(Object value) throws IOException
+	{
+		try (InputStream input = (InputStream) value)
+		{
+			return input.readAllBytes();
+		}
+	}
+}
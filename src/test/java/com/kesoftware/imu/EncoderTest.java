@@ -0,0 +1,233 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class EncoderTest extends TestCase
+{
+	public void
+	testWriteLong() throws Exception
+	{
+		long[] values = { 0, 1, -1, 9, 10, -10, 99, 100, 1234567890123L, -987654321L,
+			Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1 };
+		for (int size : SIZES)
+		{
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			Encoder encoder = new Encoder(output, size);
+			StringBuilder expected = new StringBuilder();
+			for (long value : values)
+			{
+				encoder.writeLong(value);
+				encoder.write(' ');
+				expected.append(value).append(' ');
+			}
+			encoder.flush();
+			assertEquals("buffer of " + size, expected.toString(), output.toString("US-ASCII"));
+		}
+	}
+
+	public void
+	testWriteString() throws Exception
+	{
+		assertEquals("\"plain\"", string("plain"));
+		assertEquals("\"\"", string(""));
+		assertEquals("\"q\\\"b\\\\\"", string("q\"b\\"));
+
+		// Control characters are left as they are
+		assertEquals("\"a\nb\"", string("a\nb"));
+	}
+
+	public void
+	testWriteCharsJson() throws Exception
+	{
+		assertEquals("q\\\"b\\\\s/", chars("q\"b\\s/", Encoder.ESCAPE_JSON));
+		assertEquals("\\b\\f\\n\\r\\t", chars("\b\f\n\r\t", Encoder.ESCAPE_JSON));
+		assertEquals("\\u0000\\u001f\\u000b", chars("\u0000\u001f\u000b", Encoder.ESCAPE_JSON));
+		assertEquals("\u007f", chars("\u007f", Encoder.ESCAPE_JSON));
+	}
+
+	public void
+	testWriteCharsCsv() throws Exception
+	{
+		assertEquals("say \"\"hi\"\"", chars("say \"hi\"", Encoder.ESCAPE_CSV));
+		assertEquals("a,b\nc\\d", chars("a,b\nc\\d", Encoder.ESCAPE_CSV));
+	}
+
+	public void
+	testWriteCharsNone() throws Exception
+	{
+		String text = "\"\\\n\t,";
+		assertEquals(text, chars(text, Encoder.ESCAPE_NONE));
+	}
+
+	public void
+	testUtf8() throws Exception
+	{
+		String text = "\u00e9\u07ff\u0800\u4e2d\uffff\ud83d\ude00\udbff\udfff";
+		for (int escape : ESCAPES)
+			assertEquals(text, chars(text, escape));
+		assertEquals("\"" + text + "\"", string(text));
+	}
+
+	public void
+	testUnpairedSurrogates() throws Exception
+	{
+		String[] texts = { "a\ud83db", "a\ude00b", "\ud83d", "\ude00\ud83d", "\ud83d\ud83d\ude00" };
+		for (String text : texts)
+		{
+			String expected = new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+			assertEquals(expected, chars(text, Encoder.ESCAPE_NONE));
+			assertEquals("\"" + expected + "\"", string(text));
+		}
+	}
+
+	/* Long text through buffers of every size, so that escapes and multi-byte
+	** characters fall on the buffer boundaries
+	*/
+	public void
+	testBufferBoundaries() throws Exception
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			text.append("x\u00e9\"\u4e2d\n\ud83d\ude00\u0001\\");
+		String json = chars(text.toString(), Encoder.ESCAPE_JSON, 1 << 16);
+		String csv = chars(text.toString(), Encoder.ESCAPE_CSV, 1 << 16);
+		String quoted = string(text.toString(), 1 << 16);
+		for (int size : SIZES)
+		{
+			assertEquals("buffer of " + size, json, chars(text.toString(), Encoder.ESCAPE_JSON, size));
+			assertEquals("buffer of " + size, csv, chars(text.toString(), Encoder.ESCAPE_CSV, size));
+			assertEquals("buffer of " + size, quoted, string(text.toString(), size));
+		}
+	}
+
+	public void
+	testWriteBytes() throws Exception
+	{
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		for (int size : SIZES)
+		{
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			Encoder encoder = new Encoder(output, size);
+			encoder.writeAscii("<");
+			encoder.write(data, 10, 50);
+			encoder.write(ByteBuffer.wrap(data, 60, 40));
+			encoder.write(ByteBuffer.allocateDirect(3).put((byte) 1).put((byte) 2).put((byte) 3).flip());
+			encoder.writeAscii(">");
+			encoder.flush();
+
+			byte[] result = output.toByteArray();
+			assertEquals(95, result.length);
+			assertEquals('<', result[0]);
+			for (int i = 0; i < 90; i++)
+				assertEquals(10 + i, result[1 + i]);
+			assertEquals(3, result[93]);
+			assertEquals('>', result[94]);
+			assertEquals(95, encoder.getCount());
+		}
+	}
+
+	public void
+	testCount() throws Exception
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(output, 8);
+		encoder.writeString("\u00e9t\u00e9");
+		assertEquals(7, encoder.getCount());
+		encoder.resetCount();
+		assertEquals(0, encoder.getCount());
+		encoder.writeLong(-12345);
+		encoder.writeAscii("0123456789");
+		assertEquals(16, encoder.getCount());
+		encoder.flush();
+		assertEquals(16, encoder.getCount());
+		assertEquals(23, output.size());
+	}
+
+	private static final int[] SIZES = { 1, 2, 3, 5, 6, 7, 8, 19, 20, 21, 64 };
+	private static final int[] ESCAPES = { Encoder.ESCAPE_NONE, Encoder.ESCAPE_JSON, Encoder.ESCAPE_CSV };
+
+	private static String
+	chars(String text, int escape) throws IOException
+	{
+		return chars(text, escape, 64);
+	}
+
+	private static String
+	chars(String text, int escape, int size) throws IOException
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(output, size);
+		encoder.writeChars(text, escape);
+		encoder.flush();
+		return output.toString("UTF-8");
+	}
+
+	private static String
+	string(String text) throws IOException
+	{
+		return string(text, 64);
+	}
+
+	private static String
+	string(String text, int size) throws IOException
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(output, size);
+		encoder.writeString(text);
+		encoder.flush();
+		return output.toString("UTF-8");
+	}
+}
@@ -0,0 +1,190 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class LazyMapTest extends TestCase
+{
+	public void
+	testLookup() throws Exception
+	{
+		Map row = row(0, true);
+		assertTrue(row instanceof LazyMap);
+		assertEquals(6, row.size());
+		assertEquals("a,b}\"c", row.get("title"));
+		assertEquals(2.5, row.get("amount"));
+		assertNull(row.get("missing"));
+		assertEquals("fallback", row.getOrDefault("missing", "fallback"));
+
+		// Keys which are not the parser's own instances still match
+		assertEquals(1000000L, row.get(new String("irn")));
+
+		Object[] list = (Object[]) row.get("list");
+		assertEquals(2, list.length);
+		assertEquals("y", ((Map) list[1]).getString("x"));
+	}
+
+	public void
+	testContainsKeyAndSize() throws Exception
+	{
+		Map row = row(0, true);
+		assertTrue(row.containsKey("empty"));
+		assertNull(row.get("empty"));
+		assertTrue(row.containsKey("empty"));
+		assertFalse(row.containsKey("missing"));
+		assertFalse(row.isEmpty());
+		assertEquals(6, row.size());
+	}
+
+	public void
+	testRepeatedKeys() throws Exception
+	{
+		Map row = row(0, true);
+		assertEquals(6, row.size());
+		assertEquals(7L, row.get("rownum"));
+		assertEquals(6, row.size());
+		assertEquals(6, row.keySet().size());
+
+		// As for an eagerly read row
+		Map eager = row(0, false);
+		assertEquals(7L, eager.get("rownum"));
+		assertEquals(eager.size(), row.size());
+	}
+
+	public void
+	testSameAsEagerRow() throws Exception
+	{
+		Map lazy = row(1, true);
+		Map eager = row(1, false);
+		assertEquals(eager.keySet(), lazy.keySet());
+		for (String key : eager.keySet())
+		{
+			if (eager.get(key) instanceof Object[])
+				assertEquals(key, ((Object[]) eager.get(key)).length, ((Object[]) lazy.get(key)).length);
+			else
+				assertEquals(key, eager.get(key), lazy.get(key));
+		}
+	}
+
+	public void
+	testIterationDecodesEverything() throws Exception
+	{
+		Map row = row(0, true);
+		row.get("title");
+		Set<String> keys = new HashSet<String>();
+		for (java.util.Map.Entry<String, Object> entry : row.entrySet())
+		{
+			keys.add(entry.getKey());
+			if (entry.getKey().equals("amount"))
+				assertEquals(2.5, entry.getValue());
+		}
+		assertEquals(6, keys.size());
+		assertTrue(row.containsValue(1000000L));
+	}
+
+	public void
+	testChanges() throws Exception
+	{
+		Map row = row(0, true);
+		row.put("extra", "value");
+		assertEquals(7, row.size());
+		assertEquals("value", row.get("extra"));
+		assertEquals("a,b}\"c", row.remove("title"));
+		assertEquals(6, row.size());
+		assertFalse(row.containsKey("title"));
+	}
+
+	public void
+	testSerialisedAsMap() throws Exception
+	{
+		Map row = row(0, true);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream output = new ObjectOutputStream(bytes))
+		{
+			output.writeObject(row);
+		}
+		Object copy;
+		try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+		{
+			copy = input.readObject();
+		}
+		assertEquals(Map.class, copy.getClass());
+		assertEquals("a,b}\"c", ((Map) copy).get("title"));
+		assertEquals(6, ((Map) copy).size());
+	}
+
+	/* Each row ends with a number so that the end of the last value is
+	** only seen at the closing bracket
+	*/
+	private static final String RESPONSE =
+		"{\"status\":\"ok\",\"result\":{\"rows\":[\r\n" +
+		"{\"irn\":1000000,\"rownum\":0,\"title\":\"a,b}\\\"c\",\"list\":[1,{\"x\":\"y\"}],\"empty\":null,\"rownum\":7,\"amount\":2.5},\r\n" +
+		"{irn:1000001, title : \"caf\\u00e9\",flag:true,\"nested\":{\"a\":\"b\"},rownum:1}\r\n" +
+		"]}}\r\n";
+
+	/* Reads the response and returns the row at index */
+	private static Map
+	row(int index, boolean lazy) throws Exception
+	{
+		Stream stream = new Stream(new ByteArrayInputStream(RESPONSE.getBytes("UTF-8")),
+			OutputStream.nullOutputStream(), StreamParser.BYTE);
+		stream.setRows(new String[] { "result", "rows" }, null);
+		stream.setLazyRows(lazy);
+		Map response = (Map) stream.get();
+		Object[] rows = (Object[]) ((Map) response.get("result")).get("rows");
+		return (Map) rows[index];
+	}
+}
@@ -0,0 +1,166 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/* A loopback stand-in for an IMu server, used by the tests that need a
+** connection. Each request is passed to a handler and whatever it returns
+** is sent back as the response. Each connection is served by its own
+** thread.
+*/
+class LoopbackServer
+{
+	public
+	LoopbackServer(Function<Map, Object> handler) throws IOException
+	{
+		_handler = handler;
+		_server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		_connections = new AtomicInteger();
+
+		Thread thread = new Thread(this::accept, "test-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* Returns a handler which answers every request with a successful
+	** response containing result.
+	*/
+	public static Function<Map, Object>
+	answer(Object result)
+	{
+		return request ->
+		{
+			Map response = new Map();
+			response.put("status", "ok");
+			response.put("result", result);
+			return response;
+		};
+	}
+
+	public String
+	getHost()
+	{
+		return _server.getInetAddress().getHostAddress();
+	}
+
+	public int
+	getPort()
+	{
+		return _server.getLocalPort();
+	}
+
+	/* The number of connections accepted so far */
+	public int
+	getConnections()
+	{
+		return _connections.get();
+	}
+
+	public void
+	close()
+	{
+		try
+		{
+			_server.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+	}
+
+	private final Function<Map, Object> _handler;
+	private final ServerSocket _server;
+	private final AtomicInteger _connections;
+
+	private void
+	accept()
+	{
+		try
+		{
+			while (true)
+			{
+				Socket socket = _server.accept();
+				_connections.incrementAndGet();
+				Thread thread = new Thread(() -> serve(socket), "test-connection");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		catch (IOException e)
+		{
+			// Server closed
+		}
+	}
+
+	private void
+	serve(Socket socket)
+	{
+		try (Socket s = socket)
+		{
+			Stream stream = new Stream(s, StreamParser.CHAR);
+			while (true)
+			{
+				Map request = (Map) stream.get();
+				Object response = _handler.apply(request);
+				if (response == null)
+					return;
+				stream.put(response);
+			}
+		}
+		catch (Exception e)
+		{
+			// Connection closed
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/* A handler for a LoopbackServer which behaves like a server-side module
+** holding a fixed number of records. Record i has an irn of 10 * (i + 1), a
+** name and a rownum.
+**
+** findWhere() finds every record, or only those after a given irn if the
+** search includes "irn > n". findTerms() finds every record and findKeys()
+** those with the keys given. Every connection sees the result of the most
+** recent search, so the tests must not search for different records at the
+** same time. sort() returns an empty summary and any other method simply
+** succeeds. Fetches can be delayed and made to fail.
+*/
+class ModuleServer implements Function<Map, Object>
+{
+	public
+	ModuleServer(int records)
+	{
+		_records = records;
+		_lower = -1;
+		_keys = null;
+		_delay = 0;
+		_failAt = -1;
+		_changeAt = -1;
+		_searches = 0;
+		_fetches = 0;
+		_methods = new ArrayList<String>();
+	}
+
+	/* The number of milliseconds each fetch takes */
+	public synchronized void
+	setDelay(int delay)
+	{
+		_delay = delay;
+	}
+
+	/* Makes the next fetch from offset onwards fail with a server error */
+	public synchronized void
+	failFetch(long offset)
+	{
+		_failAt = offset;
+	}
+
+	/* Makes the count'th search from now report one record too many */
+	public synchronized void
+	changeHits(int count)
+	{
+		_changeAt = _searches + count;
+	}
+
+	public synchronized void
+	setRecords(int records)
+	{
+		_records = records;
+	}
+
+	public synchronized int
+	getFetches()
+	{
+		return _fetches;
+	}
+
+	/* The methods called, in order */
+	public synchronized List<String>
+	getMethods()
+	{
+		return new ArrayList<String>(_methods);
+	}
+
+	@Override
+	public Object
+	apply(Map request)
+	{
+		String method = request.getString("method");
+		Object params = request.get("params");
+		Map response = new Map();
+		response.put("status", "ok");
+		response.put("id", "module");
+
+		int delay;
+		synchronized (this)
+		{
+			_methods.add(method);
+			delay = _delay;
+			if (method.equals("fetch"))
+			{
+				Map args = (Map) params;
+				long offset = args.getLong("offset");
+				_fetches++;
+				if (_failAt >= 0 && offset >= _failAt)
+				{
+					_failAt = -1;
+					return error("ModuleServerFailure");
+				}
+				response.put("result", fetch(offset, args.getInt("count")));
+			}
+			else if (method.startsWith("find"))
+				response.put("result", search(method, params));
+			else if (method.equals("sort"))
+				response.put("result", new Object[0]);
+			else
+				response.put("result", 1L);
+		}
+		if (method.equals("fetch") && delay > 0)
+		{
+			try
+			{
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		return response;
+	}
+
+	/* The irn of record index */
+	public static long
+	irn(int index)
+	{
+		return 10L * (index + 1);
+	}
+
+	private int _records;
+	private long _lower;
+	private Set<Long> _keys;
+	private int _delay;
+	private long _failAt;
+	private int _changeAt;
+	private int _searches;
+	private int _fetches;
+	private final List<String> _methods;
+
+	private long
+	search(String method, Object params)
+	{
+		_lower = -1;
+		_keys = null;
+		if (method.equals("findWhere"))
+		{
+			String where = (String) params;
+			int index = where.indexOf("irn > ");
+			if (index >= 0)
+				_lower = Long.parseLong(where.substring(index + 6).trim());
+		}
+		else if (method.equals("findKeys") || method.equals("findKey"))
+		{
+			_keys = new HashSet<Long>();
+			Object[] keys = params instanceof Object[] ? (Object[]) params : new Object[] { params };
+			for (Object key : keys)
+				_keys.add(((Number) key).longValue());
+		}
+
+		long hits = 0;
+		for (int i = 0; i < _records; i++)
+			if (matches(irn(i)))
+				hits++;
+		if (_searches++ == _changeAt)
+			hits++;
+		return hits;
+	}
+
+	private Map
+	fetch(long offset, int count)
+	{
+		List<Object> rows = new ArrayList<Object>();
+		long hits = 0;
+		for (int i = 0; i < _records; i++)
+		{
+			long irn = irn(i);
+			if (! matches(irn) || hits++ < offset || rows.size() >= count)
+				continue;
+			Map row = new Map();
+			row.put("irn", irn);
+			row.put("name", "record " + irn);
+			row.put("rownum", (long) i + 1);
+			rows.add(row);
+		}
+
+		Map result = new Map();
+		result.put("hits", hits);
+		result.put("count", (long) rows.size());
+		result.put("rows", rows.toArray());
+		return result;
+	}
+
+	private boolean
+	matches(long irn)
+	{
+		if (_keys != null)
+			return _keys.contains(irn);
+		return irn > _lower;
+	}
+
+	private static Map
+	error(String id)
+	{
+		Map response = new Map();
+		response.put("status", "error");
+		response.put("error", id);
+		return response;
+	}
+}
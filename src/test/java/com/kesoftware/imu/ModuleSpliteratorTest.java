@@ -0,0 +1,241 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import junit.framework.TestCase;
+
+public class ModuleSpliteratorTest extends TestCase
+{
+	@Override
+	protected void
+	setUp() throws Exception
+	{
+		_records = new ModuleServer(1003);
+		_server = new LoopbackServer(_records);
+		_session = new Session(_server.getHost(), _server.getPort());
+		_module = new Module("eparties", _session);
+	}
+
+	@Override
+	protected void
+	tearDown() throws Exception
+	{
+		_session.disconnect();
+		_server.close();
+	}
+
+	public void
+	testSequentialStream() throws Exception
+	{
+		_module.findWhere("true");
+		List<Long> irns;
+		try (java.util.stream.Stream<Map> stream = _module.stream(new String[] { "irn", "name" }))
+		{
+			irns = stream.map(row -> row.getLong("irn")).collect(Collectors.toList());
+		}
+		checkAll(irns);
+		assertEquals(1, _server.getConnections());
+	}
+
+	public void
+	testWithoutSearch() throws Exception
+	{
+		ModuleSpliterator spliterator = new ModuleSpliterator(_module, null);
+		assertEquals(Long.MAX_VALUE, spliterator.estimateSize());
+		assertNull(spliterator.trySplit());
+		checkAll(read(spliterator));
+	}
+
+	public void
+	testEstimatedSize() throws Exception
+	{
+		_module.findWhere("true");
+		ModuleSpliterator spliterator = new ModuleSpliterator(_module, null);
+		assertEquals(0, spliterator.characteristics() & Spliterator.SIZED);
+		assertEquals(1003, spliterator.estimateSize());
+	}
+
+	public void
+	testExactSize() throws Exception
+	{
+		_module.findKeys(allKeys());
+		ModuleSpliterator spliterator = new ModuleSpliterator(_module, null);
+		spliterator.setPageSize(100);
+		int flags = spliterator.characteristics();
+		assertTrue((flags & Spliterator.SIZED) != 0);
+		assertTrue((flags & Spliterator.SUBSIZED) != 0);
+		assertEquals(1003, spliterator.getExactSizeIfKnown());
+
+		int[] count = { 0 };
+		assertTrue(spliterator.tryAdvance(row -> count[0]++));
+		assertEquals(1002, spliterator.estimateSize());
+	}
+
+	public void
+	testSplit() throws Exception
+	{
+		_module.findKeys(allKeys());
+		ModuleSpliterator suffix = new ModuleSpliterator(_module, null);
+		suffix.setPageSize(50);
+		Spliterator<Map> prefix = suffix.trySplit();
+		assertNotNull(prefix);
+		assertEquals(1003, prefix.estimateSize() + suffix.estimateSize());
+		assertEquals(0, prefix.estimateSize() % 50);
+
+		// Only a range which has not been started can be split
+		List<Long> second = new ArrayList<Long>();
+		assertTrue(suffix.tryAdvance(row -> second.add(row.getLong("irn"))));
+		assertNull(suffix.trySplit());
+
+		// The prefix is read with a session of its own
+		List<Long> first = read(prefix);
+		assertEquals(2, _server.getConnections());
+		second.addAll(read(suffix));
+
+		List<Long> irns = new ArrayList<Long>(first);
+		irns.addAll(second);
+		checkAll(irns);
+		suffix.close();
+	}
+
+	public void
+	testParallelStream() throws Exception
+	{
+		for (boolean exact : new boolean[] { true, false })
+		{
+			if (exact)
+				_module.findKeys(allKeys());
+			else
+				_module.findWhere("true");
+			ModuleSpliterator spliterator = new ModuleSpliterator(_module, null);
+			spliterator.setPageSize(20);
+			List<Long> irns;
+			try (java.util.stream.Stream<Map> stream = StreamSupport.stream(spliterator, true).onClose(spliterator::close))
+			{
+				irns = stream.map(row -> row.getLong("irn")).collect(Collectors.toList());
+			}
+			// An ordered stream keeps the order of the result set
+			checkAll(irns);
+		}
+		assertTrue(_server.getConnections() > 1);
+	}
+
+	public void
+	testServerError() throws Exception
+	{
+		_module.findWhere("true");
+		_records.failFetch(500);
+		try (java.util.stream.Stream<Map> stream = _module.stream((String) null))
+		{
+			stream.forEach(row -> { });
+			fail("a failed fetch should fail the stream");
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("ModuleServerFailure", ((IMuException) e.getCause()).getID());
+		}
+	}
+
+	public void
+	testDifferentHits() throws Exception
+	{
+		_module.findKeys(allKeys());
+		ModuleSpliterator suffix = new ModuleSpliterator(_module, null);
+		suffix.setPageSize(50);
+		Spliterator<Map> prefix = suffix.trySplit();
+		_records.changeHits(0);
+		try
+		{
+			prefix.tryAdvance(row -> { });
+			fail("a range whose session finds a different number of records should fail");
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("ModuleSpliteratorHits", ((IMuException) e.getCause()).getID());
+		}
+		finally
+		{
+			suffix.close();
+		}
+	}
+
+	private LoopbackServer _server;
+	private ModuleServer _records;
+	private Session _session;
+	private Module _module;
+
+	private static long[]
+	allKeys()
+	{
+		long[] keys = new long[1003];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = ModuleServer.irn(i);
+		return keys;
+	}
+
+	private static List<Long>
+	read(Spliterator<Map> spliterator)
+	{
+		List<Long> irns = new ArrayList<Long>();
+		spliterator.forEachRemaining(row -> irns.add(row.getLong("irn")));
+		return irns;
+	}
+
+	private static void
+	checkAll(List<Long> irns)
+	{
+		assertEquals(1003, irns.size());
+		for (int i = 0; i < irns.size(); i++)
+			assertEquals(ModuleServer.irn(i), (long) irns.get(i));
+	}
+}
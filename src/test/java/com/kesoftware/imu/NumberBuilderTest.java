@@ -0,0 +1,223 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class NumberBuilderTest extends TestCase
+{
+	public void
+	testIntegers()
+	{
+		String[] texts = { "0", "-0", "7", "-42", "1234567890", "9223372036854775807",
+			"-9223372036854775808", "00012" };
+		for (String text : texts)
+		{
+			NumberBuilder number = build(text);
+			assertFalse(text, number.isReal());
+			assertEquals(text, Long.parseLong(text), number.longValue());
+		}
+	}
+
+	public void
+	testOverflowingIntegers()
+	{
+		checkFails("9223372036854775808", false);
+		checkFails("-9223372036854775809", false);
+		checkFails("123456789012345678901", false);
+	}
+
+	public void
+	testDecimals()
+	{
+		String[] texts = { "0.0", "-0.0", "0.1", "4.35", "-2.5", "0.30000000000000004", "1e5", "1E+5",
+			"1.5e-3", "6.02e23", "9007199254740993.0", "9007199254740993e0",
+			"123456789012345678901234.5", "1e400", "-1e400", "1e-400", "1.7976931348623157e308",
+			"4.9e-324", "-.5", "1.", ".5", "1.e3" };
+		for (String text : texts)
+		{
+			NumberBuilder number = build(text);
+			assertTrue(text, number.isReal());
+			assertEquals(text, Double.doubleToLongBits(Double.parseDouble(text)),
+				Double.doubleToLongBits(number.doubleValue()));
+		}
+	}
+
+	public void
+	testMalformed()
+	{
+		String[] reals = { "1.5e", "1e", "1e+", "1e-", "-1.5E", "-.", "-e5", "1..5", "1e5e3",
+			"1e5.0", "1e+-3", "1.5e3-" };
+		for (String text : reals)
+			checkFails(text, true);
+
+		String[] integers = { "-", "--1", "1-5", "+-1" };
+		for (String text : integers)
+			checkFails(text, false);
+	}
+
+	public void
+	testReuse()
+	{
+		NumberBuilder number = build("-1.5e-3");
+		number.start();
+		for (char c : "42".toCharArray())
+			number.append(c);
+		assertFalse(number.isReal());
+		assertEquals(42, number.longValue());
+		assertEquals("42", number.toString());
+	}
+
+	/* Compares random numbers with the results of the standard parsing
+	** methods
+	*/
+	public void
+	testAgreesWithStandardParsing()
+	{
+		Random random = new Random(3);
+		for (int i = 0; i < 100000; i++)
+		{
+			StringBuilder text = new StringBuilder();
+			if (random.nextBoolean())
+				text.append('-');
+			int digits = 1 + random.nextInt(random.nextBoolean() ? 6 : 20);
+			for (int j = 0; j < digits; j++)
+				text.append((char) ('0' + random.nextInt(10)));
+			if (random.nextInt(3) == 0)
+			{
+				text.append('.');
+				int fraction = random.nextInt(18);
+				for (int j = 0; j < fraction; j++)
+					text.append((char) ('0' + random.nextInt(10)));
+			}
+			if (random.nextInt(4) == 0)
+			{
+				text.append(random.nextBoolean() ? 'e' : 'E');
+				int sign = random.nextInt(3);
+				if (sign == 1)
+					text.append('-');
+				else if (sign == 2)
+					text.append('+');
+				text.append(random.nextInt(random.nextBoolean() ? 30 : 400));
+			}
+			check(text.toString());
+		}
+
+		// Random strings of the characters allowed in numbers
+		String alphabet = "0123456789.eE+-";
+		for (int i = 0; i < 100000; i++)
+		{
+			StringBuilder text = new StringBuilder();
+			int length = 1 + random.nextInt(8);
+			for (int j = 0; j < length; j++)
+				text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			check(text.toString());
+		}
+	}
+
+	private static NumberBuilder
+	build(String text)
+	{
+		NumberBuilder number = new NumberBuilder();
+		number.start();
+		for (int i = 0; i < text.length(); i++)
+			number.append(text.charAt(i));
+		return number;
+	}
+
+	private static void
+	checkFails(String text, boolean real)
+	{
+		NumberBuilder number = build(text);
+		assertEquals(text, real, number.isReal());
+		try
+		{
+			if (real)
+				number.doubleValue();
+			else
+				number.longValue();
+			fail(text + " should not parse");
+		}
+		catch (NumberFormatException e)
+		{
+			// expected
+		}
+	}
+
+	/* Checks that text gives the same value, or the same failure, as the
+	** standard parsing methods
+	*/
+	private static void
+	check(String text)
+	{
+		boolean real = text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0;
+		Object expected;
+		try
+		{
+			expected = real ? (Object) Double.parseDouble(text) : (Object) Long.parseLong(text);
+		}
+		catch (NumberFormatException e)
+		{
+			expected = "invalid";
+		}
+
+		NumberBuilder number = build(text);
+		assertEquals(text, real, number.isReal());
+		Object actual;
+		try
+		{
+			actual = real ? (Object) number.doubleValue() : (Object) number.longValue();
+		}
+		catch (NumberFormatException e)
+		{
+			actual = "invalid";
+		}
+		assertEquals(text, expected, actual);
+	}
+}
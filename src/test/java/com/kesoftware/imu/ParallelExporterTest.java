@@ -0,0 +1,249 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class ParallelExporterTest extends TestCase
+{
+	@Override
+	protected void
+	setUp() throws Exception
+	{
+		_records = new ModuleServer(1003);
+		_server = new LoopbackServer(_records);
+		_session = new Session(_server.getHost(), _server.getPort());
+		_module = new Module("eparties", _session);
+	}
+
+	@Override
+	protected void
+	tearDown() throws Exception
+	{
+		_session.disconnect();
+		_server.close();
+	}
+
+	public void
+	testOrdered() throws Exception
+	{
+		_module.findWhere("true");
+		for (int sessions : new int[] { 1, 4 })
+		{
+			List<Long> irns = export(sessions, true);
+			assertEquals(1003, irns.size());
+			for (int i = 0; i < irns.size(); i++)
+				assertEquals(ModuleServer.irn(i), (long) irns.get(i));
+		}
+	}
+
+	public void
+	testUnordered() throws Exception
+	{
+		_records.setDelay(5);
+		_module.findWhere("true");
+		List<Long> irns = export(4, false);
+		assertEquals(1003, irns.size());
+		assertEquals(1003, new HashSet<Long>(irns).size());
+	}
+
+	public void
+	testReplaysSetUpAndSearch() throws Exception
+	{
+		_module.addFetchSet("set", new String[] { "irn" });
+		_module.findKeys(new long[] { 10, 20, 30, 99 });
+		_module.sort("irn");
+		List<Long> irns = export(2, true);
+		assertEquals(3, irns.size());
+
+		List<String> methods = _records.getMethods();
+		assertEquals(3, Collections.frequency(methods, "addFetchSet"));
+		assertEquals(3, Collections.frequency(methods, "findKeys"));
+		assertEquals(3, Collections.frequency(methods, "sort"));
+	}
+
+	public void
+	testNoSearch() throws Exception
+	{
+		try
+		{
+			export(2, true);
+			fail("export without a search should fail");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("ParallelExporterSearch", e.getID());
+		}
+	}
+
+	public void
+	testEmptyResult() throws Exception
+	{
+		_records.setRecords(0);
+		_module.findWhere("true");
+		assertEquals(0, export(3, true).size());
+	}
+
+	public void
+	testDifferentHits() throws Exception
+	{
+		_module.findWhere("true");
+		_records.changeHits(2);
+		try
+		{
+			export(3, true);
+			fail("sessions finding different numbers of records should fail");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("ParallelExporterHits", e.getID());
+		}
+	}
+
+	public void
+	testServerError() throws Exception
+	{
+		_module.findWhere("true");
+		_records.failFetch(500);
+		try
+		{
+			export(3, true);
+			fail("a failed fetch should fail the export");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("ModuleServerFailure", e.getID());
+		}
+		assertExportThreadsStopped();
+	}
+
+	public void
+	testHandlerError() throws Exception
+	{
+		_module.findWhere("true");
+		ParallelExporter exporter = new ParallelExporter(_module, 4);
+		exporter.setPageSize(50);
+		int[] count = { 0 };
+		try
+		{
+			exporter.export(row ->
+			{
+				if (++count[0] == 120)
+					throw new RuntimeException("handler failed");
+			});
+			fail("a handler error should fail the export");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("ParallelExporterHandler", e.getID());
+		}
+		assertEquals(120, count[0]);
+		assertExportThreadsStopped();
+
+		// The module's own session is unaffected
+		assertEquals(1003L, _module.findWhere("true"));
+	}
+
+	public void
+	testSessionError() throws Exception
+	{
+		_module.findWhere("true");
+		ParallelExporter exporter = new ParallelExporter(_module, 2)
+		{
+			@Override
+			protected Session
+			createSession() throws Exception
+			{
+				throw new IllegalStateException("cannot log in");
+			}
+		};
+		try
+		{
+			exporter.export(row -> { });
+			fail("a session which cannot be created should fail the export");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("ParallelExporterSession", e.getID());
+		}
+	}
+
+	private LoopbackServer _server;
+	private ModuleServer _records;
+	private Session _session;
+	private Module _module;
+
+	/* Exports the module's records and returns their irns in the order they
+	** were handled
+	*/
+	private List<Long>
+	export(int sessions, boolean ordered) throws Exception
+	{
+		ParallelExporter exporter = new ParallelExporter(_module, sessions);
+		exporter.setColumns(new String[] { "irn", "name" });
+		exporter.setOrdered(ordered);
+		exporter.setPageSize(50);
+		List<Long> irns = new ArrayList<Long>();
+		long count = exporter.export(row -> irns.add(row.getLong("irn")));
+		assertEquals(irns.size(), count);
+		return irns;
+	}
+
+	private static void
+	assertExportThreadsStopped()
+	{
+		Set<Thread> threads = Thread.getAllStackTraces().keySet();
+		for (Thread thread : threads)
+			assertFalse(thread.getName(), thread.getName().startsWith("imu-export-"));
+	}
+}
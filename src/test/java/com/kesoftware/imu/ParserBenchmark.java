@@ -0,0 +1,211 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/* Measures how quickly the character and byte parsers read large fetch
+** responses, and how much they allocate in doing so. It is not run with
+** the tests; after compiling them run
+**
+**   java -cp target/classes:target/test-classes com.kesoftware.imu.ParserBenchmark [workload]
+**
+** with no workload to run them all. Each response is built in memory so no
+** server is needed. The best time over a number of parses is reported, after
+** a warm-up round, together with the bytes allocated by one parse and the
+** heap still used by the parsed response after garbage collection.
+*/
+public class ParserBenchmark
+{
+	public static void
+	main(String[] args) throws Exception
+	{
+		String workload = args.length > 0 ? args[0] : null;
+		if (workload == null || workload.equals("numbers"))
+			numbers();
+		if (workload == null || workload.equals("keys"))
+			keys();
+	}
+
+	/* 5000 rows of 22 numeric fields, mostly integers with every fourth a
+	** decimal
+	*/
+	private static void
+	numbers() throws Exception
+	{
+		Random random = new Random(4);
+		Object[] rows = new Object[5000];
+		for (int i = 0; i < rows.length; i++)
+		{
+			Map row = new Map();
+			row.put("irn", (long) (1000000 + i));
+			row.put("rownum", (long) i);
+			for (int c = 0; c < 20; c++)
+			{
+				if (c % 4 == 0)
+					row.put("Num" + c, random.nextInt(100000) / 100.0);
+				else
+					row.put("Num" + c, (long) random.nextInt(10000000));
+			}
+			row.put("Title", "Item " + i);
+			rows[i] = row;
+		}
+		measure("numbers", response(rows), 40);
+	}
+
+	/* 2500 rows of 41 short columns, where the repeated keys make up much
+	** of the response
+	*/
+	private static void
+	keys() throws Exception
+	{
+		Random random = new Random(6);
+		Object[] rows = new Object[2500];
+		for (int i = 0; i < rows.length; i++)
+		{
+			Map row = new Map();
+			row.put("irn", (long) (1000000 + i));
+			for (int c = 0; c < 40; c++)
+				row.put("SummaryColumn" + c, Integer.toString(random.nextInt(1000), 36));
+			rows[i] = row;
+		}
+		measure("keys", response(rows), 30);
+	}
+
+	/* Wraps rows in a fetch response and returns its text */
+	private static byte[]
+	response(Object[] rows) throws Exception
+	{
+		Map result = new Map();
+		result.put("hits", (long) rows.length);
+		result.put("count", (long) rows.length);
+		result.put("rows", rows);
+
+		Map response = new Map();
+		response.put("status", "ok");
+		response.put("result", result);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new Stream(InputStream.nullInputStream(), output, StreamParser.CHAR).put(response);
+		return output.toByteArray();
+	}
+
+	private static void
+	measure(String name, byte[] data, int count) throws Exception
+	{
+		System.out.printf("%s: %.1fMB response%n", name, data.length / 1048576.0);
+		for (int round = 0; round < 2; round++)
+		{
+			for (StreamParser parser : new StreamParser[] { StreamParser.CHAR, StreamParser.BYTE })
+			{
+				long best = Long.MAX_VALUE;
+				long allocated = 0;
+				for (int i = 0; i < count; i++)
+				{
+					long before = allocated();
+					long start = System.nanoTime();
+					parse(data, parser);
+					best = Math.min(best, System.nanoTime() - start);
+					allocated = allocated() - before;
+				}
+				if (round > 0)
+					System.out.printf("  %-4s %7.1fms %7.1fMB allocated %7.1fMB retained%n",
+						parser.name().toLowerCase(), best / 1e6, allocated / 1048576.0,
+						retained(data, parser) / 1048576.0);
+			}
+		}
+	}
+
+	private static Object
+	parse(byte[] data, StreamParser parser) throws Exception
+	{
+		InputStream input = new ByteArrayInputStream(data);
+		return new Stream(input, OutputStream.nullOutputStream(), parser).get();
+	}
+
+	/* The growth in the heap used after garbage collection while the
+	** result of a parse is kept
+	*/
+	private static long
+	retained(byte[] data, StreamParser parser) throws Exception
+	{
+		long before = used();
+		Object result = parse(data, parser);
+		long after = used();
+		Reference.reachabilityFence(result);
+		return after - before;
+	}
+
+	private static long
+	used() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/* The bytes allocated by this thread so far, or zero if the JVM cannot
+	** say
+	*/
+	private static long
+	allocated()
+	{
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads)
+			return threads.getCurrentThreadAllocatedBytes();
+		return 0;
+	}
+}
@@ -0,0 +1,347 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class RecordExporterTest extends TestCase
+{
+	public void
+	testCSVQuoting() throws Exception
+	{
+		Map row = new Map();
+		row.put("plain", "no quotes needed");
+		row.put("comma", "a,b");
+		row.put("quote", "say \"hi\"");
+		row.put("newline", "line\nbreak");
+		row.put("return", "line\rbreak");
+		row.put("other", "tab\tand caf\u00e9 \ud83d\ude00");
+		String[] header = { "plain", "comma", "quote", "newline", "return", "other" };
+		assertEquals("no quotes needed,\"a,b\",\"say \"\"hi\"\"\",\"line\nbreak\",\"line\rbreak\",tab\tand caf\u00e9 \ud83d\ude00\r\n",
+			csv(row, header));
+	}
+
+	public void
+	testCSVValues() throws Exception
+	{
+		Map row = new Map();
+		row.put("long", -42L);
+		row.put("double", 2.5);
+		row.put("true", true);
+		row.put("null", null);
+		row.put("nan", Double.NaN);
+		row.put("infinity", Double.NEGATIVE_INFINITY);
+		row.put("float", Float.NaN);
+		row.put("binary", new ByteArrayInputStream("hello".getBytes(StandardCharsets.US_ASCII)));
+		String[] header = { "long", "double", "true", "null", "missing", "nan", "infinity", "float", "binary" };
+		assertEquals("-42,2.5,true,,,,,,aGVsbG8=\r\n", csv(row, header));
+	}
+
+	public void
+	testCSVNestedValues() throws Exception
+	{
+		Map nested = new Map();
+		nested.put("a", "x\"y");
+		Map row = new Map();
+		row.put("ref", nested);
+		row.put("tab", new Object[] { 1L, "two", null });
+		assertEquals("\"{\"\"a\"\":\"\"x\\\"\"y\"\"}\",\"[1,\"\"two\"\",null]\"\r\n",
+			csv(row, new String[] { "ref", "tab" }));
+	}
+
+	public void
+	testCSVHeader() throws Exception
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(output, 64);
+		RecordExporter.writeHeader(encoder, new String[] { "irn", "a,b", "c" });
+		encoder.flush();
+		assertEquals("irn,\"a,b\",c\r\n", output.toString("UTF-8"));
+	}
+
+	public void
+	testJSONStrings() throws Exception
+	{
+		assertEquals("\"q\\\"b\\\\s/\"", json("q\"b\\s/"));
+		assertEquals("\"\\b\\f\\n\\r\\t\\u0000\\u001f\"", json("\b\f\n\r\t\u0000\u001f"));
+		assertEquals("\"caf\u00e9 \ud83d\ude00\"", json("caf\u00e9 \ud83d\ude00"));
+	}
+
+	public void
+	testJSONValues() throws Exception
+	{
+		assertEquals("null", json(null));
+		assertEquals("-9223372036854775808", json(Long.MIN_VALUE));
+		assertEquals("7", json(7));
+		assertEquals("2.5", json(2.5));
+		assertEquals("null", json(Double.NaN));
+		assertEquals("null", json(Double.POSITIVE_INFINITY));
+		assertEquals("null", json(Float.NEGATIVE_INFINITY));
+		assertEquals("false", json(false));
+		assertEquals("[1,\"two\",null,[]]", json(new Object[] { 1L, "two", null, new Object[0] }));
+
+		Map map = new Map();
+		map.put("k\"ey", "v");
+		assertEquals("{\"k\\\"ey\":\"v\"}", json(map));
+	}
+
+	public void
+	testJSONBinary() throws Exception
+	{
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 7);
+		boolean[] closed = { false };
+		InputStream input = new ByteArrayInputStream(data)
+		{
+			@Override
+			public void
+			close()
+			{
+				closed[0] = true;
+			}
+		};
+		assertEquals("\"" + java.util.Base64.getEncoder().encodeToString(data) + "\"", json(input));
+		assertTrue(closed[0]);
+	}
+
+	public void
+	testExportNDJSON() throws Exception
+	{
+		withModule(1003, (module, records) ->
+		{
+			RecordExporter exporter = new RecordExporter(module, ExportFormat.NDJSON);
+			exporter.setPageSize(100);
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			assertEquals(1003, exporter.export(output));
+
+			String[] lines = output.toString("UTF-8").split("\n", -1);
+			assertEquals(1004, lines.length);
+			assertEquals("", lines[1003]);
+			for (int i = 0; i < 1003; i++)
+			{
+				long irn = ModuleServer.irn(i);
+				assertTrue(lines[i], lines[i].startsWith("{") && lines[i].endsWith("}"));
+				assertTrue(lines[i], lines[i].contains("\"irn\":" + irn));
+				assertTrue(lines[i], lines[i].contains("\"name\":\"record " + irn + "\""));
+			}
+		});
+	}
+
+	public void
+	testExportCSV() throws Exception
+	{
+		withModule(250, (module, records) ->
+		{
+			RecordExporter exporter = new RecordExporter(module, ExportFormat.CSV);
+			exporter.setPageSize(100);
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			assertEquals(250, exporter.export(output));
+
+			String[] lines = output.toString("UTF-8").split("\r\n");
+			assertEquals(251, lines.length);
+			assertEquals(new HashSet<String>(Arrays.asList("irn", "name", "rownum")),
+				new HashSet<String>(Arrays.asList(lines[0].split(","))));
+
+			exporter.setHeader(new String[] { "name", "irn", "missing" });
+			output.reset();
+			exporter.export(output);
+			lines = output.toString("UTF-8").split("\r\n");
+			assertEquals("name,irn,missing", lines[0]);
+			assertEquals("record 10,10,", lines[1]);
+			assertEquals("record 2500,2500,", lines[250]);
+		});
+	}
+
+	public void
+	testExportGzip() throws Exception
+	{
+		withModule(500, (module, records) ->
+		{
+			RecordExporter plain = new RecordExporter(module, ExportFormat.NDJSON);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			plain.export(expected);
+
+			RecordExporter exporter = new RecordExporter(module, ExportFormat.NDJSON);
+			exporter.setGzip(true);
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			assertEquals(500, exporter.export(output));
+			try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())))
+			{
+				assertTrue(Arrays.equals(expected.toByteArray(), input.readAllBytes()));
+			}
+		});
+	}
+
+	public void
+	testExportEmpty() throws Exception
+	{
+		withModule(0, (module, records) ->
+		{
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			assertEquals(0, new RecordExporter(module, ExportFormat.CSV).export(output));
+			assertEquals(0, output.size());
+
+			RecordExporter exporter = new RecordExporter(module, ExportFormat.CSV);
+			exporter.setHeader(new String[] { "irn" });
+			exporter.export(output);
+			assertEquals("irn\r\n", output.toString("UTF-8"));
+		});
+	}
+
+	public void
+	testServerError() throws Exception
+	{
+		withModule(1003, (module, records) ->
+		{
+			records.failFetch(500);
+			RecordExporter exporter = new RecordExporter(module, ExportFormat.NDJSON);
+			exporter.setPageSize(100);
+			try
+			{
+				exporter.export(OutputStream.nullOutputStream());
+				fail("a failed fetch should fail the export");
+			}
+			catch (IMuException e)
+			{
+				assertEquals("ModuleServerFailure", e.getID());
+			}
+			assertEquals(1003L, module.findWhere("true"));
+		});
+	}
+
+	public void
+	testWriteError() throws Exception
+	{
+		withModule(5000, (module, records) ->
+		{
+			OutputStream broken = new OutputStream()
+			{
+				@Override
+				public void
+				write(int b) throws IOException
+				{
+					throw new IOException("disk full");
+				}
+			};
+			RecordExporter exporter = new RecordExporter(module, ExportFormat.NDJSON);
+			exporter.setPageSize(100);
+			exporter.setQueueSize(10);
+			try
+			{
+				exporter.export(broken);
+				fail("a failed write should fail the export");
+			}
+			catch (IMuException e)
+			{
+				assertEquals("RecordExporterWrite", e.getID());
+			}
+
+			// The reader has stopped and the session can be used again
+			for (Thread thread : Thread.getAllStackTraces().keySet())
+				assertFalse(thread.getName().equals("imu-export-reader"));
+			assertEquals(5000L, module.findWhere("true"));
+		});
+	}
+
+	/* A test which uses a module on a ModuleServer */
+	private interface ModuleTest
+	{
+		void
+		run(Module module, ModuleServer records) throws Exception;
+	}
+
+	/* Runs test with a module which has found count records */
+	private static void
+	withModule(int count, ModuleTest test) throws Exception
+	{
+		ModuleServer records = new ModuleServer(count);
+		LoopbackServer server = new LoopbackServer(records);
+		Session session = new Session(server.getHost(), server.getPort());
+		try
+		{
+			Module module = new Module("eparties", session);
+			module.findWhere("true");
+			test.run(module, records);
+		}
+		finally
+		{
+			session.disconnect();
+			server.close();
+		}
+	}
+
+	private static String
+	csv(Map row, String[] header) throws IOException
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(output, 64);
+		RecordExporter.writeCSV(encoder, row, header);
+		encoder.flush();
+		return output.toString("UTF-8");
+	}
+
+	private static String
+	json(Object value) throws IOException
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(output, 64);
+		RecordExporter.writeJSON(encoder, value);
+		encoder.flush();
+		return output.toString("UTF-8");
+	}
+}
@@ -0,0 +1,259 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class ResumableExporterTest extends TestCase
+{
+	@Override
+	protected void
+	setUp() throws Exception
+	{
+		_records = new ModuleServer(2345);
+		_server = new LoopbackServer(_records);
+		_session = new Session(_server.getHost(), _server.getPort());
+		_directory = Files.createTempDirectory("imu-test").toFile();
+	}
+
+	@Override
+	protected void
+	tearDown() throws Exception
+	{
+		_session.disconnect();
+		_server.close();
+		for (File file : _directory.listFiles())
+			file.delete();
+		_directory.delete();
+	}
+
+	public void
+	testExport() throws Exception
+	{
+		File output = new File(_directory, "records.ndjson");
+		ResumableExporter exporter = exporter(output, ExportFormat.NDJSON, false);
+		assertEquals(2345, exporter.export());
+		assertFalse(exporter.getCheckpoint().exists());
+
+		String[] lines = new String(read(output, false), "UTF-8").split("\n");
+		assertEquals(2345, lines.length);
+		for (int i = 0; i < lines.length; i++)
+			assertTrue(lines[i], lines[i].contains("\"irn\":" + ModuleServer.irn(i)));
+	}
+
+	/* Fails part of the way through, leaves part of a page after the
+	** checkpoint, as a crash while writing would, and resumes. The result
+	** must be the same as an export which did not fail.
+	*/
+	public void
+	testResume() throws Exception
+	{
+		for (ExportFormat format : ExportFormat.values())
+		{
+			for (boolean gzip : new boolean[] { false, true })
+			{
+				String name = format + (gzip ? ".gz" : "");
+				File expected = new File(_directory, "expected." + name);
+				assertEquals(2345, exporter(expected, format, gzip).export());
+
+				File output = new File(_directory, "output." + name);
+				_records.failFetch(700);
+				ResumableExporter exporter = exporter(output, format, gzip);
+				try
+				{
+					exporter.export();
+					fail("a failed fetch should fail the export");
+				}
+				catch (IMuException e)
+				{
+					assertEquals("ModuleServerFailure", e.getID());
+				}
+				assertTrue(exporter.getCheckpoint().exists());
+				try (OutputStream partial = new FileOutputStream(output, true))
+				{
+					partial.write("{\"irn\":99999,\"name\":\"parti".getBytes("UTF-8"));
+				}
+
+				assertEquals(2345, exporter(output, format, gzip).export());
+				assertFalse(exporter.getCheckpoint().exists());
+				assertTrue(name, Arrays.equals(read(expected, gzip), read(output, gzip)));
+			}
+		}
+	}
+
+	public void
+	testResumeTwice() throws Exception
+	{
+		File expected = new File(_directory, "expected.csv");
+		exporter(expected, ExportFormat.CSV, false).export();
+
+		File output = new File(_directory, "output.csv");
+		for (long offset : new long[] { 300, 900 })
+		{
+			_records.failFetch(offset);
+			try
+			{
+				exporter(output, ExportFormat.CSV, false).export();
+				fail("a failed fetch should fail the export");
+			}
+			catch (IMuException e)
+			{
+				// expected
+			}
+		}
+		assertEquals(2345, exporter(output, ExportFormat.CSV, false).export());
+		assertTrue(Arrays.equals(read(expected, false), read(output, false)));
+	}
+
+	public void
+	testDifferentExport() throws Exception
+	{
+		File output = new File(_directory, "records.ndjson");
+		_records.failFetch(500);
+		try
+		{
+			exporter(output, ExportFormat.NDJSON, false).export();
+			fail("a failed fetch should fail the export");
+		}
+		catch (IMuException e)
+		{
+			// expected
+		}
+
+		ResumableExporter[] others =
+		{
+			new ResumableExporter(new Module("eparties", _session), "other", ExportFormat.NDJSON, output),
+			exporter(output, ExportFormat.CSV, false),
+			exporter(output, ExportFormat.NDJSON, true),
+			exporter(output, ExportFormat.NDJSON, false)
+		};
+		others[3].setColumns(new String[] { "irn", "name" });
+		for (ResumableExporter other : others)
+		{
+			other.setPageSize(100);
+			try
+			{
+				other.export();
+				fail("a checkpoint for a different export should be rejected");
+			}
+			catch (IMuException e)
+			{
+				assertEquals("ResumableExporterCheckpoint", e.getID());
+			}
+		}
+
+		// The original export can still be resumed
+		assertEquals(2345, exporter(output, ExportFormat.NDJSON, false).export());
+	}
+
+	public void
+	testShortOutput() throws Exception
+	{
+		File output = new File(_directory, "records.ndjson");
+		_records.failFetch(500);
+		try
+		{
+			exporter(output, ExportFormat.NDJSON, false).export();
+			fail("a failed fetch should fail the export");
+		}
+		catch (IMuException e)
+		{
+			// expected
+		}
+		try (RandomAccessFile file = new RandomAccessFile(output, "rw"))
+		{
+			file.setLength(10);
+		}
+		try
+		{
+			exporter(output, ExportFormat.NDJSON, false).export();
+			fail("output shorter than the checkpoint should be rejected");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("ResumableExporterOutput", e.getID());
+		}
+	}
+
+	private ModuleServer _records;
+	private LoopbackServer _server;
+	private Session _session;
+	private File _directory;
+
+	private ResumableExporter
+	exporter(File output, ExportFormat format, boolean gzip)
+	{
+		Module module = new Module("eparties", _session);
+		ResumableExporter exporter = new ResumableExporter(module, "true", format, output);
+		exporter.setGzip(gzip);
+		exporter.setPageSize(100);
+		return exporter;
+	}
+
+	private static byte[]
+	read(File file, boolean gzip) throws IOException
+	{
+		byte[] data = Files.readAllBytes(file.toPath());
+		if (! gzip)
+			return data;
+		try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(data)))
+		{
+			return input.readAllBytes();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+public class SessionPipelineTest extends TestCase
+{
+	@Override
+	protected void
+	setUp() throws Exception
+	{
+		// Echoes the parameters back, failing for "bad" and answering
+		// "raw" with something other than a response object. The id lets
+		// later requests go to the same server-side object without waiting
+		_server = new LoopbackServer(request ->
+		{
+			Object params = request.get("params");
+			if ("raw".equals(params))
+				return "not a response";
+			Map response = new Map();
+			if ("bad".equals(params))
+			{
+				response.put("status", "error");
+				response.put("error", "Bad");
+			}
+			else
+				response.put("status", "ok");
+			response.put("id", "handler");
+			response.put("result", params);
+			return response;
+		});
+		_session = new Session(_server.getHost(), _server.getPort());
+	}
+
+	@Override
+	protected void
+	tearDown() throws Exception
+	{
+		_session.disconnect();
+		_server.close();
+	}
+
+	public void
+	testResponsesMatchRequestsInOrder() throws Exception
+	{
+		Module module = new Module("eparties", _session);
+		// Create the server-side object first so the others need not wait
+		assertEquals(-1L, module.findKey(-1));
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (long i = 0; i < 10; i++)
+			futures.add(module.submit("findKey", i));
+		assertEquals(10, _session.getPending());
+
+		// Reading the last response reads all the earlier ones first
+		assertEquals(9L, futures.get(9).get());
+		assertEquals(0, _session.getPending());
+		for (int i = 0; i < 10; i++)
+		{
+			assertTrue(futures.get(i).isDone());
+			assertEquals((long) i, futures.get(i).get());
+		}
+		assertEquals(1, _server.getConnections());
+	}
+
+	public void
+	testErrorFailsOnlyItsOwnRequest() throws Exception
+	{
+		Module module = new Module("eparties", _session);
+		Future<Object> before = module.submit("findKey", 1L);
+		Future<Object> bad = module.submit("findKey", "bad");
+		Future<Object> after = module.submit("findKey", 2L);
+
+		assertEquals(2L, after.get());
+		assertEquals(1L, before.get());
+		try
+		{
+			bad.get();
+			fail("error response should fail its request");
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof IMuException);
+		}
+
+		// The connection is still in step
+		assertEquals(3L, module.findKey(3));
+		assertEquals(1, _server.getConnections());
+	}
+
+	public void
+	testUnexpectedResponseClosesConnection() throws Exception
+	{
+		Module module = new Module("eparties", _session);
+		assertEquals(0L, module.findKey(0));
+		Future<Object> raw = module.submit("findKey", "raw");
+		Future<Object> next = module.submit("findKey", 1L);
+		try
+		{
+			raw.get();
+			fail("a response which is not an object should fail");
+		}
+		catch (ExecutionException e)
+		{
+			assertEquals("SessionResponse", ((IMuException) e.getCause()).getID());
+		}
+		try
+		{
+			next.get();
+			fail("requests behind an unreadable response should fail");
+		}
+		catch (ExecutionException e)
+		{
+			// expected
+		}
+
+		// Later requests go over a new connection
+		assertEquals(2L, module.findKey(2));
+		assertEquals(2, _server.getConnections());
+	}
+
+	public void
+	testMalformedResponseClosesConnection() throws Exception
+	{
+		// A server which sends a malformed response followed by a stale
+		// one on its first connection, and a good response on later ones
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(() ->
+		{
+			try
+			{
+				for (int count = 0; ; count++)
+				{
+					Socket socket = server.accept();
+					InputStream input = socket.getInputStream();
+					OutputStream output = socket.getOutputStream();
+					input.read(new byte[4096]);
+					if (count == 0)
+						output.write("{\"status\":\"ok\",\"result\":[1,:]}{\"status\":\"ok\",\"result\":\"stale\"}".getBytes("UTF-8"));
+					else
+						output.write("{\"status\":\"ok\",\"result\":\"fresh\"}".getBytes("UTF-8"));
+					output.flush();
+				}
+			}
+			catch (Exception e)
+			{
+				// Server closed
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+
+		Session session = new Session(server.getInetAddress().getHostAddress(), server.getLocalPort());
+		try
+		{
+			Handler handler = new Handler(session);
+			handler.setName("test");
+			try
+			{
+				handler.call("one");
+				fail("a malformed response should fail");
+			}
+			catch (Exception e)
+			{
+				// expected
+			}
+			assertEquals("fresh", handler.call("two"));
+		}
+		finally
+		{
+			session.disconnect();
+			server.close();
+		}
+	}
+
+	private LoopbackServer _server;
+	private Session _session;
+}
@@ -0,0 +1,172 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import junit.framework.TestCase;
+
+public class SessionPoolTest extends TestCase
+{
+	@Override
+	protected void
+	setUp() throws Exception
+	{
+		_server = new LoopbackServer(LoopbackServer.answer("done"));
+		_pool = new SessionPool(_server.getHost(), _server.getPort(), 2);
+	}
+
+	@Override
+	protected void
+	tearDown() throws Exception
+	{
+		_pool.close();
+		_server.close();
+	}
+
+	public void
+	testReusesReleasedSession() throws Exception
+	{
+		Session session = _pool.borrow();
+		assertEquals("done", new Handler(session).call("test"));
+		_pool.release(session);
+		assertEquals(1, _pool.getIdleCount());
+
+		assertSame(session, _pool.borrow());
+		assertEquals(1, _pool.getCreateCount());
+		assertEquals(1, _server.getConnections());
+	}
+
+	public void
+	testReleaseResetsSettings() throws Exception
+	{
+		Session session = _pool.borrow();
+		session.setDigest("MD5");
+		session.setMemoryThreshold(99);
+		session.setSharedKeys(true);
+		session.setCompact(true);
+		session.setSuspend(true);
+		session.setBinarySink((name, row, size, input) -> null);
+		_pool.release(session);
+
+		Session again = _pool.borrow();
+		assertSame(session, again);
+		assertNull(again.getDigest());
+		assertEquals(Session.getDefaultMemoryThreshold(), again.getMemoryThreshold());
+		assertFalse(again.getSharedKeys());
+		assertEquals(Session.getDefaultCompact(), again.getCompact());
+		assertFalse(again.getSuspend());
+		assertNull(again.getBinarySink());
+	}
+
+	public void
+	testReleaseDiscardsLoggedInSession() throws Exception
+	{
+		Session session = _pool.borrow();
+		session.login("user", "password");
+		_pool.release(session);
+
+		assertEquals(0, _pool.getIdleCount());
+		assertEquals(1, _pool.getDestroyCount());
+		assertNotSame(session, _pool.borrow());
+	}
+
+	public void
+	testReleaseDiscardsSessionWithContext() throws Exception
+	{
+		Session session = _pool.borrow();
+		session.setContext("context");
+		_pool.release(session);
+
+		assertEquals(1, _pool.getDestroyCount());
+		assertNotSame(session, _pool.borrow());
+	}
+
+	public void
+	testReleaseDiscardsRedirectedSession() throws Exception
+	{
+		Session session = _pool.borrow();
+		session.setPort(_server.getPort() + 1);
+		_pool.release(session);
+
+		assertEquals(1, _pool.getDestroyCount());
+	}
+
+	public void
+	testBorrowTimesOutWhenFull() throws Exception
+	{
+		_pool.setBorrowTimeout(50);
+		_pool.borrow();
+		_pool.borrow();
+		try
+		{
+			_pool.borrow();
+			fail("borrow should time out");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("SessionPoolTimeout", e.getID());
+		}
+		assertEquals(1, _pool.getTimeoutCount());
+	}
+
+	public void
+	testClosedPoolRefusesBorrow() throws Exception
+	{
+		_pool.close();
+		try
+		{
+			_pool.borrow();
+			fail("borrow should fail once closed");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("SessionPoolClosed", e.getID());
+		}
+	}
+
+	private LoopbackServer _server;
+	private SessionPool _pool;
+}
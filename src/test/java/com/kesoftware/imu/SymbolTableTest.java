@@ -0,0 +1,145 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class SymbolTableTest extends TestCase
+{
+	public void
+	testBytesAndCharsShareInstances()
+	{
+		SymbolTable table = new SymbolTable();
+		String first = intern(table, "SummaryData");
+		assertEquals("SummaryData", first);
+		assertSame(first, intern(table, "SummaryData"));
+		assertSame(first, table.intern(new StringBuilder("SummaryData")));
+
+		String second = table.intern("irn");
+		assertSame(second, intern(table, "irn"));
+		assertEquals(2, table.size());
+	}
+
+	public void
+	testBytesWithinLargerBuffer()
+	{
+		SymbolTable table = new SymbolTable();
+		byte[] data = "{\"irn\":1,\"irn\":2}".getBytes(StandardCharsets.US_ASCII);
+		String first = table.intern(data, 2, 3, "irn".hashCode());
+		String second = table.intern(data, 10, 3, "irn".hashCode());
+		assertEquals("irn", first);
+		assertSame(first, second);
+	}
+
+	public void
+	testEmptyAndNonAsciiKeys()
+	{
+		SymbolTable table = new SymbolTable();
+		assertSame(intern(table, ""), table.intern(""));
+		String key = table.intern("caf\u00e9");
+		assertSame(key, table.intern(new StringBuilder("caf\u00e9")));
+		assertNotSame(key, table.intern("cafe"));
+	}
+
+	public void
+	testCollidingHashes()
+	{
+		// "Aa" and "BB" have the same hash code
+		SymbolTable table = new SymbolTable();
+		String aa = intern(table, "Aa");
+		String bb = intern(table, "BB");
+		assertEquals("Aa", aa);
+		assertEquals("BB", bb);
+		assertSame(aa, table.intern("Aa"));
+		assertSame(bb, table.intern("BB"));
+	}
+
+	public void
+	testGrowth()
+	{
+		SymbolTable table = new SymbolTable();
+		String[] keys = new String[1000];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = intern(table, "Column" + i);
+		for (int i = 0; i < keys.length; i++)
+		{
+			assertSame(keys[i], intern(table, "Column" + i));
+			assertSame(keys[i], table.intern("Column" + i));
+		}
+		assertEquals(keys.length, table.size());
+	}
+
+	public void
+	testLimit()
+	{
+		SymbolTable table = new SymbolTable();
+		String first = intern(table, "key0");
+		for (int i = 1; i < 10000; i++)
+			intern(table, "key" + i);
+		assertEquals(4096, table.size());
+
+		// Keys already held are still shared, later ones are new strings
+		assertSame(first, intern(table, "key0"));
+		String late = intern(table, "key9999");
+		assertEquals("key9999", late);
+		assertNotSame(late, intern(table, "key9999"));
+		assertEquals(4096, table.size());
+	}
+
+	/* Interns an ASCII key as the tokenizer does, from its bytes */
+	private static String
+	intern(SymbolTable table, String key)
+	{
+		byte[] bytes = key.getBytes(StandardCharsets.US_ASCII);
+		int hash = 0;
+		for (byte b : bytes)
+			hash = 31 * hash + b;
+		return table.intern(bytes, 0, bytes.length, hash);
+	}
+}
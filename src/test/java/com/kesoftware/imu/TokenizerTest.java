@@ -0,0 +1,439 @@
+/* KE Software Open Source Licence
+** 
+** Notice: Copyright (c) 2011-2013 KE SOFTWARE PTY LTD (ACN 006 213 298)
+** (the "Owner"). All rights reserved.
+** 
+** Licence: Permission is hereby granted, free of charge, to any person
+** obtaining a copy of this software and associated documentation files
+** (the "Software"), to deal with the Software without restriction,
+** including without limitation the rights to use, copy, modify, merge,
+** publish, distribute, sublicense, and/or sell copies of the Software,
+** and to permit persons to whom the Software is furnished to do so,
+** subject to the following conditions.
+** 
+** Conditions: The Software is licensed on condition that:
+** 
+** (1) Redistributions of source code must retain the above Notice,
+**     these Conditions and the following Limitations.
+** 
+** (2) Redistributions in binary form must reproduce the above Notice,
+**     these Conditions and the following Limitations in the
+**     documentation and/or other materials provided with the distribution.
+** 
+** (3) Neither the names of the Owner, nor the names of its contributors
+**     may be used to endorse or promote products derived from this
+**     Software without specific prior written permission.
+** 
+** Limitations: Any person exercising any of the permissions in the
+** relevant licence will be taken to have accepted the following as
+** legally binding terms severally with the Owner and any other
+** copyright owners (collectively "Participants"):
+** 
+** TO THE EXTENT PERMITTED BY LAW, THE SOFTWARE IS PROVIDED "AS IS",
+** WITHOUT ANY REPRESENTATION, WARRANTY OR CONDITION OF ANY KIND, EXPRESS
+** OR IMPLIED, INCLUDING (WITHOUT LIMITATION) AS TO MERCHANTABILITY,
+** FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. TO THE EXTENT
+** PERMITTED BY LAW, IN NO EVENT SHALL ANY PARTICIPANT BE LIABLE FOR ANY
+** CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+** TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+** SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE SOFTWARE.
+** 
+** WHERE BY LAW A LIABILITY (ON ANY BASIS) OF ANY PARTICIPANT IN RELATION
+** TO THE SOFTWARE CANNOT BE EXCLUDED, THEN TO THE EXTENT PERMITTED BY
+** LAW THAT LIABILITY IS LIMITED AT THE OPTION OF THE PARTICIPANT TO THE
+** REPLACEMENT, REPAIR OR RESUPPLY OF THE RELEVANT GOODS OR SERVICES
+** (INCLUDING BUT NOT LIMITED TO SOFTWARE) OR THE PAYMENT OF THE COST OF SAME.
+*/
+package com.kesoftware.imu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class TokenizerTest extends TestCase
+{
+	public void
+	testTokens() throws Exception
+	{
+		Tokenizer tokenizer = tokenizer("{\"a\" : 12, b:-2.5e3,\r\n\t\"c\":[true, FALSE, Null, name_1]}\n", false);
+		assertEquals('{', tokenizer.next());
+		assertEquals(Tokenizer.STRING, tokenizer.nextKey());
+		assertEquals("a", tokenizer.getString());
+		assertEquals(':', tokenizer.next());
+		assertEquals(Tokenizer.LONG, tokenizer.next());
+		assertEquals(12L, tokenizer.getNumber().longValue());
+		assertEquals(',', tokenizer.next());
+		assertEquals(Tokenizer.IDENTIFIER, tokenizer.nextKey());
+		assertEquals("b", tokenizer.getString());
+		assertEquals(':', tokenizer.next());
+		assertEquals(Tokenizer.DOUBLE, tokenizer.next());
+		assertEquals(-2500.0, tokenizer.getNumber().doubleValue());
+		assertEquals(',', tokenizer.next());
+		assertEquals(Tokenizer.STRING, tokenizer.nextKey());
+		assertEquals(':', tokenizer.next());
+		assertEquals('[', tokenizer.next());
+		assertEquals(Tokenizer.TRUE, tokenizer.next());
+		assertEquals(',', tokenizer.next());
+		assertEquals(Tokenizer.FALSE, tokenizer.next());
+		assertEquals(',', tokenizer.next());
+		assertEquals(Tokenizer.NULL, tokenizer.next());
+		assertEquals(',', tokenizer.next());
+		assertEquals(Tokenizer.IDENTIFIER, tokenizer.next());
+		assertEquals("name_1", tokenizer.getString());
+		assertEquals(']', tokenizer.next());
+		assertEquals('}', tokenizer.next());
+	}
+
+	public void
+	testStrings() throws Exception
+	{
+		assertEquals("plain", string("\"plain\" "));
+		assertEquals("", string("\"\" "));
+		assertEquals("caf\u00e9 \u4e2d \ud83d\ude00", string("\"caf\u00e9 \u4e2d \ud83d\ude00\" "));
+		assertEquals("q\"b\\s/", string("\"q\\\"b\\\\s\\/\" "));
+		assertEquals("\b\f\n\r\t", string("\"\\b\\f\\n\\r\\t\" "));
+		assertEquals("A\u00e9\ud83d\ude00", string("\"\\u0041\\u00E9\\ud83d\\ude00\" "));
+		assertEquals("\u00e9\n\u00e9", string("\"\u00e9\\n\u00e9\" "));
+	}
+
+	public void
+	testStringsAcrossReads() throws Exception
+	{
+		String text = "\"caf\u00e9 \\\"\u4e2d\\u0041\ud83d\ude00\" ";
+		Tokenizer tokenizer = tokenizer(text, true);
+		assertEquals(Tokenizer.STRING, tokenizer.next());
+		assertEquals("caf\u00e9 \"\u4e2dA\ud83d\ude00", tokenizer.getString());
+	}
+
+	public void
+	testNumbers() throws Exception
+	{
+		String[] texts = { "0", "-0", "7", "-123456789012345678", "9223372036854775807",
+			"-9223372036854775808", "1.5", "-0.25", "1e10", "2E-3", "6.02e+23", "123.456e-7" };
+		for (String text : texts)
+		{
+			Tokenizer tokenizer = tokenizer(text + ",", true);
+			int token = tokenizer.next();
+			if (token == Tokenizer.LONG)
+				assertEquals(text, Long.parseLong(text), tokenizer.getNumber().longValue());
+			else
+			{
+				assertEquals(text, Tokenizer.DOUBLE, token);
+				assertEquals(text, Double.parseDouble(text), tokenizer.getNumber().doubleValue());
+			}
+			assertEquals(',', tokenizer.next());
+		}
+	}
+
+	public void
+	testKeysAreShared() throws Exception
+	{
+		Tokenizer tokenizer = tokenizer("\"irn\" \"irn\" \"caf\u00e9\" \"caf\u00e9\" \"a\\nb\" \"a\\nb\" ", false);
+		for (int i = 0; i < 3; i++)
+		{
+			assertEquals(Tokenizer.STRING, tokenizer.nextKey());
+			String first = tokenizer.getString();
+			assertEquals(Tokenizer.STRING, tokenizer.nextKey());
+			assertSame(first, tokenizer.getString());
+		}
+	}
+
+	public void
+	testBinary() throws Exception
+	{
+		byte[] data = "ab}\"c".getBytes("US-ASCII");
+		Tokenizer tokenizer = tokenizer(bytes("[*5\r\n", data, ",*5\r\n", data, ",*0\r\n]"), false);
+		assertEquals('[', tokenizer.next());
+		assertEquals(Tokenizer.BINARY, tokenizer.next());
+		assertEquals(5, tokenizer.getSize());
+		assertTrue(Arrays.equals(data, tokenizer.getBinary().readAllBytes()));
+		assertEquals(',', tokenizer.next());
+
+		// Unread bytes are skipped
+		assertEquals(Tokenizer.BINARY, tokenizer.next());
+		assertEquals(',', tokenizer.next());
+		assertEquals(Tokenizer.BINARY, tokenizer.next());
+		assertEquals(0, tokenizer.getSize());
+		assertEquals(']', tokenizer.next());
+	}
+
+	public void
+	testSkipValue() throws Exception
+	{
+		Tokenizer tokenizer = tokenizer(bytes("[{\"a\":\"]}\\\"\",\"b\":[1,{}],\"c\":*3\r\n", "]}[".getBytes("US-ASCII"), "},2.5 , true] 7,"), true);
+		tokenizer.skipValue();
+		assertEquals(Tokenizer.LONG, tokenizer.next());
+		assertEquals(7L, tokenizer.getNumber().longValue());
+	}
+
+	public void
+	testSkip() throws Exception
+	{
+		Tokenizer tokenizer = tokenizer("\"not decoded\" 1,", false);
+		assertEquals(Tokenizer.STRING, tokenizer.skip());
+		assertNull(tokenizer.getString());
+		assertEquals(Tokenizer.LONG, tokenizer.next());
+	}
+
+	public void
+	testReset() throws Exception
+	{
+		byte[] data = "xx[\"a\",1]xx".getBytes("US-ASCII");
+		Tokenizer tokenizer = new Tokenizer(null);
+		tokenizer.reset(data, 2, 7);
+		assertEquals('[', tokenizer.next());
+		assertEquals(Tokenizer.STRING, tokenizer.next());
+		assertEquals("a", tokenizer.getString());
+		assertEquals(',', tokenizer.next());
+		assertEquals(Tokenizer.LONG, tokenizer.next());
+		assertEquals(']', tokenizer.next());
+		try
+		{
+			tokenizer.next();
+			fail("reading past the data should fail");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("StreamEOF", e.getID());
+		}
+	}
+
+	public void
+	testEndOfInput() throws Exception
+	{
+		Tokenizer tokenizer = tokenizer("\"unterminated", false);
+		try
+		{
+			tokenizer.next();
+			fail("an unterminated string should fail");
+		}
+		catch (IMuException e)
+		{
+			assertEquals("StreamEOF", e.getID());
+		}
+	}
+
+	/* Parses random responses with both the character and byte parsers,
+	** reading the input a few bytes at a time, and checks that they agree
+	*/
+	public void
+	testParsersAgree() throws Exception
+	{
+		Random random = new Random(1);
+		for (int test = 0; test < 500; test++)
+		{
+			List<byte[]> binaries = new ArrayList<byte[]>();
+			StringBuilder text = new StringBuilder();
+			int count = 1 + random.nextInt(3);
+			for (int i = 0; i < count; i++)
+				text.append("{ \"v\" : ").append(value(random, 0, binaries)).append(" }\r\n");
+			byte[] data = build(text.toString(), binaries);
+
+			Stream chars = new Stream(new ByteArrayInputStream(data), OutputStream.nullOutputStream(), StreamParser.CHAR);
+			Stream bytes = new Stream(new Chunked(new ByteArrayInputStream(data), random), OutputStream.nullOutputStream(), StreamParser.BYTE);
+			for (int i = 0; i < count; i++)
+				assertEquals(text.toString(), normalise(chars.get()), normalise(bytes.get()));
+		}
+	}
+
+	/* Returns a tokenizer for text, optionally reading it a byte at a time */
+	private static Tokenizer
+	tokenizer(String text, boolean slow) throws IOException
+	{
+		return tokenizer(text.getBytes("UTF-8"), slow);
+	}
+
+	private static Tokenizer
+	tokenizer(byte[] data, boolean slow)
+	{
+		InputStream input = new ByteArrayInputStream(data);
+		if (slow)
+			input = new Chunked(input, null);
+		return new Tokenizer(input);
+	}
+
+	private static String
+	string(String text) throws Exception
+	{
+		Tokenizer tokenizer = tokenizer(text, false);
+		assertEquals(Tokenizer.STRING, tokenizer.next());
+		return tokenizer.getString();
+	}
+
+	private static byte[]
+	bytes(Object... parts) throws IOException
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (Object part : parts)
+		{
+			if (part instanceof byte[])
+				output.write((byte[]) part);
+			else
+				output.write(((String) part).getBytes("UTF-8"));
+		}
+		return output.toByteArray();
+	}
+
+	private static String
+	text(Random random)
+	{
+		StringBuilder text = new StringBuilder();
+		int length = random.nextInt(30);
+		for (int i = 0; i < length; i++)
+		{
+			switch (random.nextInt(10))
+			{
+			case 5:
+				text.append("\\\"");
+				break;
+			case 6:
+				text.append("\\\\");
+				break;
+			case 7:
+				text.append("\u00e9");
+				break;
+			case 8:
+				text.append("\ud83d\ude00");
+				break;
+			case 9:
+				text.append("\\n");
+				break;
+			default:
+				text.append((char) ('a' + random.nextInt(26)));
+				break;
+			}
+		}
+		return text.toString();
+	}
+
+	/* Returns the text of a random value. Binary values are given as a
+	** marker which build() replaces with the bytes.
+	*/
+	private static String
+	value(Random random, int depth, List<byte[]> binaries)
+	{
+		switch (random.nextInt(depth > 3 ? 6 : 9))
+		{
+		case 0:
+			return "\"" + text(random) + "\"";
+		case 1:
+			return Long.toString(random.nextLong() % 100000);
+		case 2:
+			return random.nextInt(1000) + "." + random.nextInt(1000) +
+				(random.nextBoolean() ? "e" + (random.nextBoolean() ? "-" : "+") + random.nextInt(5) : "");
+		case 3:
+			return random.nextBoolean() ? "true" : "NULL";
+		case 4:
+			return "False";
+		case 5:
+		{
+			byte[] binary = new byte[random.nextInt(200)];
+			random.nextBytes(binary);
+			binaries.add(binary);
+			return "*" + binary.length + "\r\n\u0000" + (binaries.size() - 1) + "\u0000";
+		}
+		case 6:
+		case 7:
+		{
+			StringBuilder text = new StringBuilder("{\r\n");
+			int count = random.nextInt(5);
+			for (int i = 0; i < count; i++)
+			{
+				text.append(random.nextBoolean() ? "\t\"k" + i + "\"" : "\tk" + i);
+				text.append(" : ").append(value(random, depth + 1, binaries));
+				if (i < count - 1)
+					text.append(",");
+				text.append("\r\n");
+			}
+			return text.append("}").toString();
+		}
+		default:
+		{
+			StringBuilder text = new StringBuilder("[ ");
+			int count = random.nextInt(5);
+			for (int i = 0; i < count; i++)
+			{
+				text.append(value(random, depth + 1, binaries));
+				if (i < count - 1)
+					text.append(", ");
+			}
+			return text.append("]").toString();
+		}
+		}
+	}
+
+	private static byte[]
+	build(String text, List<byte[]> binaries) throws IOException
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		String[] parts = text.split("\u0000");
+		for (int i = 0; i < parts.length; i++)
+		{
+			if (i % 2 == 1)
+				output.write(binaries.get(Integer.parseInt(parts[i])));
+			else
+				output.write(parts[i].getBytes("UTF-8"));
+		}
+		return output.toByteArray();
+	}
+
+	/* Converts a parsed value into one which can be compared with equals() */
+	private static Object
+	normalise(Object value) throws IOException
+	{
+		if (value instanceof Object[])
+		{
+			List<Object> list = new ArrayList<Object>();
+			for (Object item : (Object[]) value)
+				list.add(normalise(item));
+			return list;
+		}
+		if (value instanceof java.util.Map)
+		{
+			TreeMap<String, Object> map = new TreeMap<String, Object>();
+			for (java.util.Map.Entry<?, ?> entry : ((java.util.Map<?, ?>) value).entrySet())
+				map.put((String) entry.getKey(), normalise(entry.getValue()));
+			return map;
+		}
+		if (value instanceof InputStream)
+		{
+			try (InputStream input = (InputStream) value)
+			{
+				return Arrays.toString(input.readAllBytes());
+			}
+		}
+		return value;
+	}
+
+	/* Returns at most a few bytes from each read, or one if random is null */
+	private static class Chunked extends FilterInputStream
+	{
+		public
+		Chunked(InputStream input, Random random)
+		{
+			super(input);
+			_random = random;
+		}
+
+		@Override
+		public int
+		read(byte[] b, int off, int len) throws IOException
+		{
+			int most = _random == null ? 1 : 1 + _random.nextInt(3);
+			return super.read(b, off, Math.min(len, most));
+		}
+
+		private final Random _random;
+	}
+}